@@ -0,0 +1,91 @@
+package de.survivalworkers.core.engine.graphics;
+
+import de.survivalworkers.core.engine.graphics.rendering.InstanceBuffer;
+import de.survivalworkers.core.engine.graphics.scene.Entity;
+import de.survivalworkers.core.engine.graphics.scene.Scene;
+import de.survivalworkers.core.engine.graphics.vertex.VertexBufferStruct;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the model matrices of one model with many entities are written: into a push constant once per entity and
+ * mesh as the direct path of {@code ForwardRenderActivity} does, or packed once into instance data as
+ * {@code prepareEntitiesInstanced} does. No command buffer is recorded, so the cost of recording and submitting the draws
+ * is not part of the time; the number of draws each path would record is reported as a counter instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceWriteBenchmark {
+    @Param({"100", "5000"})
+    public int entities;
+    @Param({"1", "4"})
+    public int meshes;
+
+    private List<Entity> entityList;
+    private ByteBuffer pushConstant;
+    private ByteBuffer instanceData;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Draws {
+        public long drawCalls;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            drawCalls = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        // the entities live in the transform store of a scene, like the ones the renderer draws
+        Scene scene = new Scene(1, 1);
+        entityList = new ArrayList<>(entities);
+        for (int i = 0; i < entities; i++) {
+            Entity entity = new Entity("tree" + i, "tree", new Vector3f(i % 100, 0, i / 100f));
+            entity.setScale(1 + (i % 3) * 0.5f);
+            scene.addEntity(entity);
+            entityList.add(entity);
+        }
+        scene.update();
+        pushConstant = MemoryUtil.memAlloc(64);
+        instanceData = MemoryUtil.memAlloc(entities * VertexBufferStruct.INSTANCE_STRIDE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        MemoryUtil.memFree(pushConstant);
+        MemoryUtil.memFree(instanceData);
+    }
+
+    @Benchmark
+    public void perEntity(Draws draws, Blackhole bh) {
+        for (int m = 0; m < meshes; m++) {
+            for (Entity entity : entityList) {
+                entity.getModelMatrix(0, pushConstant);
+                bh.consume(pushConstant);
+                draws.drawCalls++;
+            }
+        }
+    }
+
+    @Benchmark
+    public void instanced(Draws draws, Blackhole bh) {
+        InstanceBuffer.pack(entityList, instanceData, 0);
+        for (int m = 0; m < meshes; m++) {
+            bh.consume(instanceData);
+            draws.drawCalls++;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package de.survivalworkers.core.engine.graphics;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting the draw keys of one frame with {@link RenderQueue} compared to {@link Arrays#sort(long[])} (which does not carry the payload).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderQueueBenchmark {
+    @Param({"100000"})
+    public int draws;
+
+    private long[] frameKeys;
+    private long[] copy;
+    private RenderQueue queue;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        frameKeys = new long[draws];
+        for (int i = 0; i < draws; i++) {
+            long state = RenderQueue.state(random.nextInt(4), random.nextInt(200), random.nextInt(2000));
+            float depth = random.nextFloat() * 1000;
+            frameKeys[i] = random.nextInt(10) == 0 ? RenderQueue.transparentKey(state, depth) : RenderQueue.opaqueKey(state, depth);
+        }
+        copy = new long[draws];
+        queue = new RenderQueue(draws);
+    }
+
+    @Benchmark
+    public RenderQueue radixSort() {
+        queue.clear();
+        for (int i = 0; i < draws; i++) queue.add(frameKeys[i], i);
+        queue.sort();
+        return queue;
+    }
+
+    @Benchmark
+    public long[] arraysSort() {
+        System.arraycopy(frameKeys, 0, copy, 0, draws);
+        Arrays.sort(copy);
+        return copy;
+    }
+}
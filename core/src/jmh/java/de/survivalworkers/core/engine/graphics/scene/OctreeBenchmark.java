@@ -0,0 +1,101 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulation tick on a map with 100k props: 10% of them move, then the visible set and the props around the player are queried, once
+ * through {@link Octree} and once by scanning every entity.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OctreeBenchmark {
+    private static final float WORLD_SIZE = 4000;
+    private static final float RADIUS = 1.5f;
+
+    @Param({"100000"})
+    public int entities;
+
+    @Param({"0.1"})
+    public float moving;
+
+    private Entity[] all;
+    private Octree octree;
+    private float[] planes;
+    private float[] spheres;
+    private int[] visible;
+    private List<Entity> result;
+    private Random random;
+
+    @Setup
+    public void setup() {
+        random = new Random(1);
+        all = new Entity[entities];
+        octree = new Octree(WORLD_SIZE / 2, 4);
+        for (int i = 0; i < entities; i++) {
+            Vector3f position = new Vector3f((random.nextFloat() - 0.5f) * WORLD_SIZE, random.nextFloat() * 20, (random.nextFloat() - 0.5f) * WORLD_SIZE);
+            all[i] = new Entity("prop" + i, "prop", position);
+            octree.insert(all[i], position.x, position.y, position.z, RADIUS);
+        }
+        Matrix4f projection = new Matrix4f().setPerspective((float) Math.toRadians(60), 16f / 9f, 0.1f, 300, true);
+        Matrix4f view = new Matrix4f().lookAt(0, 10, 0, 100, 10, 100, 0, 1, 0);
+        planes = new float[FrustumCuller.PLANES * 4];
+        FrustumCuller.extractPlanes(projection.mul(view), planes);
+        spheres = new float[entities * 4];
+        visible = new int[entities];
+        result = new ArrayList<>();
+    }
+
+    private void move() {
+        int count = (int) (entities * moving);
+        for (int i = 0; i < count; i++) {
+            Entity entity = all[random.nextInt(entities)];
+            entity.setPosition(entity.getX() + random.nextFloat() * 2 - 1, entity.getY(), entity.getZ() + random.nextFloat() * 2 - 1);
+            octree.update(entity, entity.getX(), entity.getY(), entity.getZ(), RADIUS);
+        }
+    }
+
+    @Benchmark
+    public int tickOctree() {
+        move();
+        result.clear();
+        octree.queryFrustum(planes, result);
+        octree.querySphere(0, 10, 0, 50, result);
+        return result.size();
+    }
+
+    @Benchmark
+    public int tickLinear() {
+        move();
+        for (int i = 0; i < entities; i++) {
+            int o = i * 4;
+            spheres[o] = all[i].getX();
+            spheres[o + 1] = all[i].getY();
+            spheres[o + 2] = all[i].getZ();
+            spheres[o + 3] = RADIUS;
+        }
+        int count = FrustumCuller.cull(planes, spheres, 0, entities, visible, 0);
+        float r = 50 + RADIUS;
+        for (int i = 0; i < entities; i++) {
+            float dx = all[i].getX(), dy = all[i].getY() - 10, dz = all[i].getZ();
+            if (dx * dx + dy * dy + dz * dz <= r * r) count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int moveOnly() {
+        move();
+        return octree.size();
+    }
+}
@@ -0,0 +1,75 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+import de.survivalworkers.core.engine.graphics.vertex.ModelData;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per frame scene update of {@link SceneUpdater} on 200k moving entities: rebuilding all model matrices, culling and writing the visible
+ * matrices to an instance buffer, with different pool sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SceneUpdateBenchmark {
+    @Param({"200000"})
+    public int entities;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private ForkJoinPool pool;
+    private SceneUpdater updater;
+    private TransformStore store;
+    private List<Entity> list;
+    private ModelData.Bounds bounds;
+    private float[] planes;
+    private ByteBuffer instances;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        store = new TransformStore(entities);
+        list = new ArrayList<>(entities);
+        for (int i = 0; i < entities; i++) {
+            Entity entity = new Entity("prop" + i, "prop", new Vector3f((random.nextFloat() - 0.5f) * 2000, 0, (random.nextFloat() - 0.5f) * 2000));
+            entity.moveTo(store);
+            list.add(entity);
+        }
+        bounds = new ModelData.Bounds(-1, 0, -1, 1, 3, 1);
+        Matrix4f projection = new Matrix4f().setPerspective((float) Math.toRadians(60), 16f / 9f, 0.1f, 1000, true);
+        Matrix4f view = new Matrix4f().lookAt(0, 10, 0, 100, 10, 100, 0, 1, 0);
+        planes = new float[FrustumCuller.PLANES * 4];
+        FrustumCuller.extractPlanes(projection.mul(view), planes);
+        pool = new ForkJoinPool(threads);
+        updater = new SceneUpdater(pool, SceneUpdater.DEFAULT_CHUNK_SIZE);
+        instances = MemoryUtil.memAlloc(entities * TransformStore.MATRIX_FLOATS * 4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        MemoryUtil.memFree(instances);
+    }
+
+    @Benchmark
+    public int frame() {
+        for (int i = 0; i < entities; i++) store.setScale(i, 1);
+        updater.updateTransforms(store);
+        int visible = updater.cull(list, bounds, planes);
+        updater.writeMatrices(list, updater.getVisible(), visible, instances, 0);
+        return visible;
+    }
+}
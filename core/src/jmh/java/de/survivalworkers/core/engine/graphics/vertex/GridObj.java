@@ -0,0 +1,35 @@
+package de.survivalworkers.core.engine.graphics.vertex;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes the generated models the benchmarks load, so no assets are needed.
+ */
+final class GridObj {
+    private GridObj() {
+    }
+
+    /**
+     * Writes a gently waved grid of {@code size}² quads with texture coordinates as an OBJ file, (size + 1)² vertices and 2 * size² triangles.
+     */
+    static void write(Path file, int size) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int z = 0; z <= size; z++) {
+                for (int x = 0; x <= size; x++) {
+                    writer.write("v " + x + " " + (float) Math.sin(x * 0.1) * Math.cos(z * 0.1) + " " + z + "\n");
+                    writer.write("vt " + (float) x / size + " " + (float) z / size + "\n");
+                }
+            }
+            for (int z = 0; z < size; z++) {
+                for (int x = 0; x < size; x++) {
+                    int i = z * (size + 1) + x + 1;
+                    int j = i + size + 1;
+                    writer.write("f " + i + "/" + i + " " + j + "/" + j + " " + (j + 1) + "/" + (j + 1) + " " + (i + 1) + "/" + (i + 1) + "\n");
+                }
+            }
+        }
+    }
+}
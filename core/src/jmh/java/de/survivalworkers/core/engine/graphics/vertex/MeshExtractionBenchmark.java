@@ -0,0 +1,80 @@
+package de.survivalworkers.core.engine.graphics.vertex;
+
+import de.survivalworkers.core.engine.graphics.Util;
+import org.lwjgl.assimp.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying an imported mesh out of Assimp's memory: {@link ModelLoader#processMesh(AIMesh)} against the former extraction which boxed every
+ * float and index into lists before unboxing them into arrays. Run with {@code -prof gc} to see the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeshExtractionBenchmark {
+    /** Quads per side of the grid, about size² vertices. */
+    @Param({"300", "1000"})
+    public int size;
+
+    private Path obj;
+    private AIScene scene;
+    private AIMesh mesh;
+
+    @Setup
+    public void setup() throws IOException {
+        obj = Files.createTempFile("grid", ".obj");
+        GridObj.write(obj, size);
+        scene = Assimp.aiImportFile(obj.toString(), Assimp.aiProcess_JoinIdenticalVertices | Assimp.aiProcess_Triangulate);
+        if (scene == null) throw new IllegalStateException("Could not import " + obj + ": " + Assimp.aiGetErrorString());
+        mesh = AIMesh.create(scene.mMeshes().get(0));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Assimp.aiReleaseImport(scene);
+        Files.deleteIfExists(obj);
+    }
+
+    @Benchmark
+    public ModelData.MeshData bulk() {
+        return ModelLoader.processMesh(mesh);
+    }
+
+    @Benchmark
+    public ModelData.MeshData boxed() {
+        List<Float> vertices = new ArrayList<>();
+        AIVector3D.Buffer aiVertices = mesh.mVertices();
+        while (aiVertices.remaining() > 0) {
+            AIVector3D aiVertex = aiVertices.get();
+            vertices.add(aiVertex.x());
+            vertices.add(aiVertex.y());
+            vertices.add(aiVertex.z());
+        }
+        List<Float> texCoords = new ArrayList<>();
+        AIVector3D.Buffer aiTexCoords = mesh.mTextureCoords(0);
+        int count = aiTexCoords != null ? aiTexCoords.remaining() : 0;
+        for (int i = 0; i < count; i++) {
+            AIVector3D texCoord = aiTexCoords.get();
+            texCoords.add(texCoord.x());
+            texCoords.add(1 - texCoord.y());
+        }
+        List<Integer> indices = new ArrayList<>();
+        AIFace.Buffer aiFaces = mesh.mFaces();
+        for (int i = 0; i < mesh.mNumFaces(); i++) {
+            IntBuffer ip = aiFaces.get(i).mIndices();
+            while (ip.remaining() > 0) indices.add(ip.get());
+        }
+        return new ModelData.MeshData(Util.toArrayFloat(vertices), Util.toArrayFloat(texCoords), Util.toArrayInt(indices), mesh.mMaterialIndex());
+    }
+}
@@ -0,0 +1,91 @@
+package de.survivalworkers.core.engine.graphics.vertex;
+
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.Assimp;
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesh ingestion from an Assimp import into a direct buffer standing in for the staging ring: copying into arrays first and interleaving
+ * those, against {@link ModelLoader#streamModel(String, String, String)} which interleaves straight from Assimp's memory. The {@code bytes}
+ * counter is reported per second, divided by 10^6 it is the ingestion rate in MB/s of vertex and index data written.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeshIngestBenchmark {
+    /** Quads per side of the grid, about size² vertices. */
+    @Param({"300", "1000"})
+    public int size;
+
+    private Path dir;
+    private AIScene scene;
+    private AIMesh aiMesh;
+    private ModelData streamed;
+    private ByteBuffer staging;
+    private long bytesPerOp;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Written {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("mesh-ingest");
+        Path obj = dir.resolve("grid.obj");
+        GridObj.write(obj, size);
+        scene = Assimp.aiImportFile(obj.toString(), ModelLoader.DEFAULT_FLAGS);
+        if (scene == null) throw new IllegalStateException("Could not import " + obj + ": " + Assimp.aiGetErrorString());
+        aiMesh = AIMesh.create(scene.mMeshes().get(0));
+        streamed = ModelLoader.streamModel("grid", obj.toString(), dir.toString());
+        ModelData.MeshData mesh = streamed.getMeshData().get(0);
+        bytesPerOp = (long) mesh.vertexCount() * VertexBufferStruct.VERTEX_SIZE + (long) mesh.indexCount() * 4;
+        staging = MemoryUtil.memAlloc((int) bytesPerOp);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        MemoryUtil.memFree(staging);
+        streamed.close();
+        Assimp.aiReleaseImport(scene);
+        Files.deleteIfExists(dir.resolve("grid.obj"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public ByteBuffer viaArrays(Written written) {
+        staging.clear();
+        ModelData.MeshData mesh = ModelLoader.processMesh(aiMesh);
+        mesh.writeVertices(staging);
+        mesh.writeIndices(staging);
+        written.bytes += bytesPerOp;
+        return staging;
+    }
+
+    @Benchmark
+    public ByteBuffer streamed(Written written) {
+        staging.clear();
+        ModelData.MeshData mesh = streamed.getMeshData().get(0);
+        mesh.writeVertices(staging);
+        mesh.writeIndices(staging);
+        written.bytes += bytesPerOp;
+        return staging;
+    }
+}
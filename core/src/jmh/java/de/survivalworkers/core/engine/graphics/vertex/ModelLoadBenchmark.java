@@ -0,0 +1,71 @@
+package de.survivalworkers.core.engine.graphics.vertex;
+
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Startup cost of one model, from the file on disk to its vertices and indices in a staging buffer: importing the OBJ with Assimp against
+ * loading the baked file, which includes hashing the OBJ to check that the baked file is still current. The model is a generated grid, so
+ * no assets are needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelLoadBenchmark {
+    /** Quads per side of the grid, 2 * size² triangles. */
+    @Param({"100", "500"})
+    public int size;
+
+    private Path dir;
+    private String modelPath;
+    private ByteBuffer staging;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("model-bench");
+        Path obj = dir.resolve("grid.obj");
+        GridObj.write(obj, size);
+        modelPath = obj.toString();
+        // bakes the file, so the measured baked loads only map it
+        ModelLoader.loadModel("grid", modelPath, dir.toString(), dir);
+        staging = MemoryUtil.memAlloc((size + 1) * (size + 1) * 4 * VertexBufferStruct.VERTEX_SIZE + size * size * 6 * 4);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        MemoryUtil.memFree(staging);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer assimpImport() {
+        return stage(ModelLoader.loadModel("grid", modelPath, dir.toString()));
+    }
+
+    @Benchmark
+    public ByteBuffer bakedLoad() {
+        return stage(ModelLoader.loadModel("grid", modelPath, dir.toString(), dir));
+    }
+
+    private ByteBuffer stage(ModelData data) {
+        staging.clear();
+        for (ModelData.MeshData mesh : data.getMeshData()) {
+            mesh.writeVertices(staging);
+            mesh.writeIndices(staging);
+        }
+        return staging;
+    }
+}
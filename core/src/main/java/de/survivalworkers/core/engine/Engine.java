@@ -3,28 +3,55 @@ package de.survivalworkers.core.engine;
 import de.survivalworkers.core.Window;
 import de.survivalworkers.core.vk.Renderer;
 import de.survivalworkers.core.engine.graphics.scene.Scene;
+import de.survivalworkers.core.engine.io.Configuration;
 import de.survivalworkers.core.engine.io.HIDInput;
 import lombok.extern.slf4j.Slf4j;
 import org.lwjgl.glfw.GLFW;
 
 @Slf4j
 public class Engine {
-    private boolean running;
+    private volatile boolean running;
     private Window window;
     private HIDInput input;
     private Renderer render;
     private final Scene scene;
+    private final GameLoop gameLoop;
+    private final FrameLimiter frameLimiter;
+    private volatile Tickable tickable;
 
     public Engine(String title) {
+        this(title, /*Properties.getInstance().getTps()*/20);
+    }
+
+    public Engine(String title, int tps) {
         window = new Window(title);
         input = new HIDInput();
         scene = new Scene(window);
-        render = new Renderer(window, scene);
+        Configuration config = Configuration.getInstance();
+        render = new Renderer(window, scene, config.getPresentMode(), config.getRequImgs());
+        render.setLowLatency(config.isLowLatency());
+        frameLimiter = new FrameLimiter(config.getMaxFps());
+        tickable = delta -> {};
+        gameLoop = new GameLoop(scene, tps, delta -> tickable.tick(delta));
         GLFW.glfwSetKeyCallback(window.getHandle(), input.getKeyboard());
         GLFW.glfwSetMouseButtonCallback(window.getHandle(), input.getMouseKeys());
         GLFW.glfwSetCursorPosCallback(window.getHandle(), input.getMousePos());
     }
 
+    /**
+     * Creates a headless engine without window and input which renders offscreen frames of the given size, e.g. for automated performance runs
+     * or server side rendering. Frames can be read back through {@link #getRenderer()}.
+     */
+    public Engine(int width, int height, int tps) {
+        input = new HIDInput();
+        scene = new Scene(width, height);
+        Configuration config = Configuration.getInstance();
+        render = new Renderer(scene, width, height);
+        frameLimiter = new FrameLimiter(config.getMaxFps());
+        tickable = delta -> {};
+        gameLoop = new GameLoop(scene, tps, delta -> tickable.tick(delta));
+    }
+
     public boolean isKeyDown(int key) {
         return input.getKeys()[key];
     }
@@ -43,35 +70,48 @@ public class Engine {
     }
 
     public void run(){
-        double tickTime = 1000000000d / /*Properties.getInstance().getTps()*/20;
-        double delta = 0;
-        long updateTime = System.nanoTime();
+        gameLoop.start();
         int i = 0;
         long timeS = System.currentTimeMillis();
-        while (running && !window.shouldClose()){
-            window.pollEvents();
-            long time = System.nanoTime();
-            delta += (time - updateTime) / tickTime;
+        while (running && (window == null || !window.shouldClose())){
+            frameLimiter.sync();
+            if(window != null) window.pollEvents();
             if(timeS + 1000 <= System.currentTimeMillis()){
-                log.info("FPS:" + i);
+                log.info("FPS:{} TPS:{}", i, gameLoop.getMeasuredTps());
                 timeS = System.currentTimeMillis();
                 i = 0;
             }
-            if(delta >= 1){
-                long diffTime = time - updateTime;
-                updateTime = time;
-                --delta;
-                /*test.test();*/
-            }
-            render.render(window);
+            if(window != null) render.render(window);
+            else render.render();
             i++;
         }
+        gameLoop.stop();
         close();
         System.exit(0);
     }
 
+    /**
+     * Sets the game logic run on the simulation thread. It may change entities of the scene, everything else shared with the render thread
+     * has to be guarded by {@link Scene#getLock()} which is held during the tick.
+     */
+    public void setTickable(Tickable tickable) {
+        this.tickable = tickable;
+    }
+
     public void close() {
-        window.close();
+        if(window != null) window.close();
+    }
+
+    public Renderer getRenderer() {
+        return render;
+    }
+
+    public FrameLimiter getFrameLimiter() {
+        return frameLimiter;
+    }
+
+    public Scene getScene() {
+        return scene;
     }
 
     public HIDInput getInput() {
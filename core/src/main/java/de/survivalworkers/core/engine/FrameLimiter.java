@@ -0,0 +1,40 @@
+package de.survivalworkers.core.engine;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Caps the frame rate of the render loop. {@link #sync()} sleeps until the start of the next frame slot, a frame which is late by more than a
+ * slot restarts the schedule instead of being followed by a burst of frames.
+ */
+public class FrameLimiter {
+    private long frameNanos;
+    private long next;
+
+    /**
+     * @param maxFps the frame rate limit, 0 for none
+     */
+    public FrameLimiter(int maxFps) {
+        setMaxFps(maxFps);
+    }
+
+    public void setMaxFps(int maxFps) {
+        if (maxFps < 0) throw new IllegalArgumentException("Frame rate limit must not be negative: " + maxFps);
+        frameNanos = maxFps == 0 ? 0 : 1_000_000_000L / maxFps;
+        next = System.nanoTime();
+    }
+
+    public int getMaxFps() {
+        return frameNanos == 0 ? 0 : (int) (1_000_000_000L / frameNanos);
+    }
+
+    public void sync() {
+        if (frameNanos == 0) return;
+        long now = System.nanoTime();
+        if (now - next > frameNanos) next = now;
+        while (next - now > 0) {
+            LockSupport.parkNanos(next - now);
+            now = System.nanoTime();
+        }
+        next += frameNanos;
+    }
+}
@@ -0,0 +1,113 @@
+package de.survivalworkers.core.engine;
+
+import de.survivalworkers.core.engine.graphics.scene.Scene;
+import de.survivalworkers.core.engine.graphics.scene.TransformSnapshot;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the simulation with a fixed tick rate on its own thread. After every tick the entity transforms are published to the scene's
+ * {@link TransformSnapshot}, the render thread interpolates between the last two ticks, so it can render at any rate and a slow frame does not
+ * delay the simulation. The scene lock is held during each tick.
+ */
+@Slf4j
+public class GameLoop {
+    private static final int MAX_CATCH_UP_TICKS = 5;
+
+    private final Scene scene;
+    private final Tickable tickable;
+    private final long tickNanos;
+    private final float tickSeconds;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile int measuredTps;
+
+    public GameLoop(Scene scene, int tps, Tickable tickable) {
+        this.scene = scene;
+        this.tickable = tickable;
+        tickNanos = 1_000_000_000L / tps;
+        tickSeconds = 1.0f / tps;
+    }
+
+    public void start() {
+        if (running) return;
+        scene.getLock().lock();
+        try {
+            scene.setSnapshot(new TransformSnapshot(tickNanos));
+        } finally {
+            scene.getLock().unlock();
+        }
+        running = true;
+        thread = new Thread(this::run, "Simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (!running) return;
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scene.getLock().lock();
+        try {
+            scene.setSnapshot(null);
+        } finally {
+            scene.getLock().unlock();
+        }
+    }
+
+    private void run() {
+        ReentrantLock lock = scene.getLock();
+        long next = System.nanoTime();
+        long tick = 1;
+        long secondStart = next;
+        int ticks = 0;
+        while (running) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            if (now - next > MAX_CATCH_UP_TICKS * tickNanos) {
+                long skipped = (now - next) / tickNanos;
+                log.warn("Simulation is {} ticks behind, skipping them", skipped);
+                next += skipped * tickNanos;
+            }
+
+            lock.lock();
+            try {
+                tickable.tick(tickSeconds);
+                scene.publish(tick, next);
+            } catch (RuntimeException e) {
+                log.error("Tick {} failed", tick, e);
+            } finally {
+                lock.unlock();
+            }
+            tick++;
+            next += tickNanos;
+
+            ticks++;
+            if (now - secondStart >= 1_000_000_000L) {
+                measuredTps = ticks;
+                ticks = 0;
+                secondStart = now;
+            }
+        }
+    }
+
+    /**
+     * Ticks done within the last second.
+     */
+    public int getMeasuredTps() {
+        return measuredTps;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,12 @@
+package de.survivalworkers.core.engine;
+
+/**
+ * Game logic run by the {@link GameLoop} on the simulation thread.
+ */
+@FunctionalInterface
+public interface Tickable {
+    /**
+     * @param delta the fixed length of one tick in seconds
+     */
+    void tick(float delta);
+}
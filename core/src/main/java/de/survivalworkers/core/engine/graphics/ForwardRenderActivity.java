@@ -4,6 +4,8 @@ import de.survivalworkers.core.engine.graphics.pipeline.Pipeline;
 import de.survivalworkers.core.engine.graphics.pipeline.PipelineCache;
 import de.survivalworkers.core.engine.graphics.rendering.*;
 import de.survivalworkers.core.engine.graphics.scene.Entity;
+import de.survivalworkers.core.engine.graphics.scene.FrustumCuller;
+import de.survivalworkers.core.engine.graphics.scene.SceneUpdater;
 import de.survivalworkers.core.engine.graphics.scene.Scene;
 import de.survivalworkers.core.engine.graphics.shaders.ShaderProgram;
 import de.survivalworkers.core.engine.graphics.vertex.Model;
@@ -11,41 +13,80 @@ import de.survivalworkers.core.engine.graphics.vertex.Texture;
 import de.survivalworkers.core.engine.graphics.vertex.VertexBufferStruct;
 import de.survivalworkers.core.vk.device.LogicalDevice;
 import lombok.extern.slf4j.Slf4j;
+import org.joml.Matrix4f;
+import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.*;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.lwjgl.vulkan.VK10.*;
 
 @Slf4j
 public class ForwardRenderActivity {
-    public static final String VERTEX_SHADER = "src/main/resources/shaders/vertex.glsl";
-    public static final String FRAGMENT_SHADER = "src/main/resources/shaders/fragment.glsl";
+    public static final String VERTEX_SHADER = "src/main/resources/shader/vertex.glsl";
+    public static final String FRAGMENT_SHADER = "src/main/resources/shader/fragment.glsl";
+    public static final String INSTANCED_VERTEX_SHADER = "src/main/resources/shader/vertex_instanced.glsl";
+    private static final int INITIAL_MATERIALS = 10;
 
     private final LogicalDevice device;
-    private final CommandBuffer[] commandBuffers;
-    private final Fence[] fences;
+    private final int framesInFlight;
     private final ShaderProgram shaderProgram;
     private final int materialSize;
     private final Pipeline pipeLine;
     private final PipelineCache pipelineCache;
     private final RenderPass renderPass;
     private final Scene scene;
+    private final InstanceBuffer[] instanceBuffers;
+    private final RenderStats stats;
+
+    private DrawMode drawMode;
+    private ShaderProgram instancedShaderProgram;
+    private Pipeline instancedPipeline;
+    private IndirectDrawBuffer indirectDrawBuffer;
+    private final List<Model> registeredModels;
+    private final Map<Model.Material, Integer> materialOffsets;
+    private final RecordWorker inlineWorker;
+    private final int queueFamilyIndex;
+    private RecordWorker[] workers;
+    private ExecutorService recordExecutor;
+    private long[] threadRecordNanos;
+    private final RenderQueue renderQueue;
+    private final FrustumCuller culler;
+    private final SceneUpdater sceneUpdater;
+    private final Map<String, Integer> textureIds;
+    private final Map<Model.Mesh, Long> meshStates;
+
+    private Model.Material[] itemMaterials;
+    private Model.Mesh[] itemMeshes;
+    private float[] itemMatrices;
+    private final Matrix4f itemMatrix;
+    private long frameStart;
+    private long indirectInstanceBuffer;
+    private int[] itemFirstInstances;
+    private int[] itemInstanceCounts;
+    private int itemCount;
 
     private Attachment[] depthAttachments;
     private DescriptorPool descriptorPool;
+    private List<DescriptorPool> texturePools;
+    private int textureSetsLeft;
+    private int materialCapacity;
     private DescriptorSetLayout[] descriptorSetLayouts;
     private Map<String, TextureDescriptorSet> descriptorSetMap;
     private FrameBuffer[] frameBuffers;
     private DescriptorSetLayout.DynUniformDescriptorSetLayout descriptorSetLayout;
     private DescriptorSet.UniformDescriptorSet projMatrixDescriptorSet;
     private Buffer projMatrixUniform;
-    private SwapChain swapChain;
+    private RenderTarget target;
+    private FrameCapture capture;
     private DescriptorSetLayout.SamplerDescriptorSetLayout textureDescriptorSetLayout;
     private TextureSampler textureSampler;
     private Buffer[] matreciesBuffer;
@@ -56,92 +97,118 @@ public class ForwardRenderActivity {
     private Buffer materialBuffer;
     private DescriptorSet.DynUniformDescriptorSet materialDescriptorSet;
 
-    public ForwardRenderActivity(SwapChain swapChain, CommandPool commandPool, PipelineCache pipelineCache, Scene scene) {
-        this.swapChain = swapChain;
+    /**
+     * @param framesInFlight number of frames of the {@link FrameScheduler}, per frame resources are indexed with {@link FrameScheduler.Frame#getIndex()}
+     */
+    public ForwardRenderActivity(RenderTarget target, CommandPool commandPool, PipelineCache pipelineCache, Scene scene, SceneUpdater sceneUpdater,
+                                 int framesInFlight) {
+        this.target = target;
+        this.framesInFlight = framesInFlight;
         this.pipelineCache = pipelineCache;
         this.scene = scene;
-        device = swapChain.getLogicalDevice();
+        this.sceneUpdater = sceneUpdater;
+        device = target.getLogicalDevice();
 
-        int numImages = swapChain.getImageViews().length;
         materialSize = calcMaterials();
         createDepthImages();
-        renderPass = new RenderPass(swapChain, depthAttachments[0].getImage().getFormat());
+        renderPass = new RenderPass(target, depthAttachments[0].getImage().getFormat());
         createFrameBuffers();
 
         shaderProgram = new ShaderProgram(device,new ShaderProgram.ShaderModuleData[]{new ShaderProgram.ShaderModuleData(VK_SHADER_STAGE_VERTEX_BIT,VERTEX_SHADER + ".spv"),
                 new ShaderProgram.ShaderModuleData(VK_SHADER_STAGE_FRAGMENT_BIT,FRAGMENT_SHADER + ".spv")});
-        createDescriptorSets(numImages);
+        createDescriptorSets(framesInFlight);
 
         Pipeline.PipeLineCreateInfo pipeLineCreationInfo = new Pipeline.PipeLineCreateInfo(renderPass.getRenderPass(), shaderProgram, 1, true, 64, new VertexBufferStruct(), descriptorSetLayouts,
                 true);
         pipeLine = new Pipeline(this.pipelineCache, pipeLineCreationInfo);
         pipeLineCreationInfo.descriptorLayouts();
 
-        commandBuffers = new CommandBuffer[numImages];
-        fences = new Fence[numImages];
-        for (int i = 0; i < numImages; i++) {
-            commandBuffers[i] = new CommandBuffer(commandPool, true, false);
-            fences[i] = new Fence(device, true);
+        instanceBuffers = new InstanceBuffer[framesInFlight];
+        for (int i = 0; i < framesInFlight; i++) {
+            instanceBuffers[i] = new InstanceBuffer(device, 0);
         }
+        drawMode = DrawMode.PER_ENTITY;
+        stats = new RenderStats();
+        registeredModels = new ArrayList<>();
+        materialOffsets = new IdentityHashMap<>();
+        inlineWorker = new RecordWorker();
+        queueFamilyIndex = commandPool.getQueueFamilyIndex();
+        workers = new RecordWorker[0];
+        renderQueue = new RenderQueue(1024);
+        culler = new FrustumCuller();
+        textureIds = new HashMap<>();
+        meshStates = new IdentityHashMap<>();
+        itemMaterials = new Model.Material[1024];
+        itemMeshes = new Model.Mesh[1024];
+        itemMatrices = new float[1024 * 16];
+        itemMatrix = new Matrix4f();
+        itemFirstInstances = new int[1024];
+        itemInstanceCounts = new int[1024];
         Util.copyMatrixToBuffer(projMatrixUniform, scene.getProjection().getProjectionMatrix());
     }
 
     private int calcMaterials() {
-        //long ubo = device.limits().minUniformBufferOffsetAlignment(); //TODO: fix
-        long ubo = 1;
-        long mult = 144 / ubo + 1;
-        return (int) (mult * ubo);
+        return (int) device.getPhysicalDevice().getCapabilities().alignUniform(144);
     }
 
     public void close() {
         projMatrixUniform.close();
         textureSampler.close();
         descriptorPool.close();
+        texturePools.forEach(DescriptorPool::close);
         pipeLine.close();
+        if(instancedPipeline != null){
+            instancedPipeline.close();
+            instancedShaderProgram.close();
+        }
+        Arrays.stream(instanceBuffers).forEach(InstanceBuffer::close);
+        inlineWorker.close();
+        closeWorkers();
+        if(indirectDrawBuffer != null){
+            scene.removeListener(indirectDrawBuffer);
+            indirectDrawBuffer.close();
+        }
         Arrays.stream(descriptorSetLayouts).forEach(DescriptorSetLayout::close);
         Arrays.stream(depthAttachments).forEach(Attachment::close);
         shaderProgram.close();
         Arrays.stream(frameBuffers).forEach(FrameBuffer::close);
         renderPass.close();
-        Arrays.stream(commandBuffers).forEach(CommandBuffer::close);
-        Arrays.stream(fences).forEach(Fence::close);
         materialBuffer.close();
         Arrays.stream(viewMatricesBuffer).forEach(Buffer::close);
         materialDescriptorLayout.close();
     }
 
     private void createDepthImages() {
-        int numImages = swapChain.getNumImages();
-        VkExtent2D swapChainExtent = swapChain.getCreateInfo().imageExtent();
+        int numImages = target.getImageViews().length;
         depthAttachments = new Attachment[numImages];
         for (int i = 0; i < numImages; i++) {
-            depthAttachments[i] = new Attachment(device, swapChainExtent.width(), swapChainExtent.height(),
+            depthAttachments[i] = new Attachment(device, target.getWidth(), target.getHeight(),
                     VK_FORMAT_D32_SFLOAT, VK_IMAGE_USAGE_DEPTH_STENCIL_ATTACHMENT_BIT);
         }
     }
 
-    private void createDescriptorSets(int numImages) {
+    private void createDescriptorSets(int numFrames) {
         uniformDescriptorSetLayout = new DescriptorSetLayout.UniformDescriptorSetLayout(device, 0, VK_SHADER_STAGE_VERTEX_BIT);
         textureDescriptorSetLayout = new DescriptorSetLayout.SamplerDescriptorSetLayout(device, 0, VK_SHADER_STAGE_FRAGMENT_BIT);
         materialDescriptorLayout = new DescriptorSetLayout.DynUniformDescriptorSetLayout(device,0, VK_SHADER_STAGE_FRAGMENT_BIT);
         descriptorSetLayouts = new DescriptorSetLayout[]{uniformDescriptorSetLayout,uniformDescriptorSetLayout ,textureDescriptorSetLayout,materialDescriptorLayout};
 
         List<DescriptorPool.DescriptorTypeCount> descriptorTypeCounts = new ArrayList<>();
-        descriptorTypeCounts.add(new DescriptorPool.DescriptorTypeCount(swapChain.getNumImages() + 1, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER));
-        descriptorTypeCounts.add(new DescriptorPool.DescriptorTypeCount(/*Properties.getInstance().getMaxMaterials()*/10, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER));
+        descriptorTypeCounts.add(new DescriptorPool.DescriptorTypeCount(numFrames + 1, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER));
         descriptorTypeCounts.add(new DescriptorPool.DescriptorTypeCount(1, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC));
         descriptorPool = new DescriptorPool(device, descriptorTypeCounts);
+        texturePools = new ArrayList<>();
+        materialCapacity = INITIAL_MATERIALS;
         descriptorSetMap = new HashMap<>();
         textureSampler = new TextureSampler(device, 1);
         projMatrixUniform = new Buffer(device, 64, VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT);
         projMatrixDescriptorSet = new DescriptorSet.UniformDescriptorSet(descriptorPool, uniformDescriptorSetLayout, projMatrixUniform, 0);
         
-        viewMatricesDescriptorSet = new DescriptorSet.UniformDescriptorSet[numImages];
-        viewMatricesBuffer = new Buffer[numImages];
-        materialBuffer = new Buffer(device, (long) materialSize * /*Properties.getInstance().getMaxMaterials()*/10, VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT);
+        viewMatricesDescriptorSet = new DescriptorSet.UniformDescriptorSet[numFrames];
+        viewMatricesBuffer = new Buffer[numFrames];
+        materialBuffer = new Buffer(device, (long) materialSize * materialCapacity, VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT);
         materialDescriptorSet = new DescriptorSet.DynUniformDescriptorSet(descriptorPool,materialDescriptorLayout,materialBuffer,0,materialSize);
-        for (int i = 0; i < numImages; i++) {
-            log.debug(String.valueOf(i));
+        for (int i = 0; i < numFrames; i++) {
             viewMatricesBuffer[i] = new Buffer(device,64, VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT);
             viewMatricesDescriptorSet[i] = new DescriptorSet.UniformDescriptorSet(descriptorPool,uniformDescriptorSetLayout,viewMatricesBuffer[i],0);
         }
@@ -149,8 +216,7 @@ public class ForwardRenderActivity {
 
     private void createFrameBuffers() {
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            VkExtent2D swapChainExtent = swapChain.getCreateInfo().imageExtent();
-            ImageView[] imageViews = swapChain.getImageViews();
+            ImageView[] imageViews = target.getImageViews();
             int numImages = imageViews.length;
 
             LongBuffer pAttachments = stack.mallocLong(2);
@@ -158,27 +224,126 @@ public class ForwardRenderActivity {
             for (int i = 0; i < numImages; i++) {
                 pAttachments.put(0, imageViews[i].getImgView());
                 pAttachments.put(1, depthAttachments[i].getImageView().getImgView());
-                frameBuffers[i] = new FrameBuffer(device, swapChainExtent.width(), swapChainExtent.height(),
+                frameBuffers[i] = new FrameBuffer(device, target.getWidth(), target.getHeight(),
                         pAttachments, renderPass.getRenderPass());
             }
         }
     }
 
-    public void recordCommandBuffer(List<Model> vulkanModelList) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            VkExtent2D swapChainExtent = swapChain.getCreateInfo().imageExtent();
-            int width = swapChainExtent.width();
-            int height = swapChainExtent.height();
-            int idx = swapChain.getCurrentFrame();
+    /**
+     * Copies every frame into the readback buffers of {@code capture} after the render pass, null stops capturing.
+     */
+    public void setCapture(FrameCapture capture) {
+        this.capture = capture;
+    }
 
-            Fence fence = fences[idx];
-            CommandBuffer commandBuffer = commandBuffers[idx];
-            FrameBuffer frameBuffer = frameBuffers[idx];
+    public void setDrawMode(DrawMode drawMode) {
+        if(drawMode == DrawMode.INDIRECT && !device.isDrawIndirectFirstInstance())
+            throw new IllegalStateException("Indirect drawing requires the drawIndirectFirstInstance feature");
+        if(drawMode != DrawMode.PER_ENTITY && instancedPipeline == null){
+            instancedShaderProgram = new ShaderProgram(device,new ShaderProgram.ShaderModuleData[]{new ShaderProgram.ShaderModuleData(VK_SHADER_STAGE_VERTEX_BIT,INSTANCED_VERTEX_SHADER + ".spv"),
+                    new ShaderProgram.ShaderModuleData(VK_SHADER_STAGE_FRAGMENT_BIT,FRAGMENT_SHADER + ".spv")});
+            Pipeline.PipeLineCreateInfo createInfo = new Pipeline.PipeLineCreateInfo(renderPass.getRenderPass(), instancedShaderProgram, 1, true, 64, new VertexBufferStruct(true),
+                    descriptorSetLayouts, true);
+            instancedPipeline = new Pipeline(pipelineCache, createInfo);
+            createInfo.close();
+        }
+        if(drawMode == DrawMode.INDIRECT && indirectDrawBuffer == null){
+            indirectDrawBuffer = new IndirectDrawBuffer(device, framesInFlight);
+            scene.getLock().lock();
+            try {
+                indirectDrawBuffer.registerModels(registeredModels, scene);
+                scene.addListener(indirectDrawBuffer);
+            } finally {
+                scene.getLock().unlock();
+            }
+        }
+        this.drawMode = drawMode;
+    }
 
-            fence.fenceWait();
-            fence.reset();
+    public DrawMode getDrawMode() {
+        return drawMode;
+    }
+
+    public RenderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sets the number of threads recording the draws. With more than one thread every thread records a part of the sorted draws into its own
+     * secondary command buffer, which are executed in order from the primary one.
+     */
+    public void setRecordThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("At least one record thread is required");
+        if (threads == workers.length || threads == 1 && workers.length == 0) return;
+        device.waitIdle();
+        closeWorkers();
+        if (threads == 1) return;
+        workers = new RecordWorker[threads];
+        for (int i = 0; i < threads; i++) workers[i] = new RecordWorker(device, queueFamilyIndex, framesInFlight);
+        threadRecordNanos = new long[threads];
+        recordExecutor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "RenderRecord");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getRecordThreads() {
+        return Math.max(workers.length, 1);
+    }
+
+    private void closeWorkers() {
+        if (recordExecutor != null) recordExecutor.shutdown();
+        recordExecutor = null;
+        Arrays.stream(workers).forEach(RecordWorker::close);
+        workers = new RecordWorker[0];
+    }
+
+    /**
+     * Reads everything the frame needs from the scene: culls, sorts the draws, writes the instance data and copies the model matrices. The
+     * command buffer of the frame is begun and the indirect buffer updates are recorded into it. This is the only part of a frame which has
+     * to hold the scene lock, {@link #recordCommandBuffer(FrameScheduler.Frame)} only reads what was prepared here. {@link FrameScheduler#begin()}
+     * must have returned the frame, so the GPU no longer reads its resources.
+     */
+    public void prepareFrame(List<Model> vulkanModelList, FrameScheduler.Frame frame) {
+        frameStart = System.nanoTime();
+        stats.reset();
+        int idx = frame.getIndex();
+        if(capture != null) capture.collect(idx);
+
+        Util.copyMatrixToBuffer(viewMatricesBuffer[idx],scene.getCamera().getViewMatrix());
+        Buffer.flush(device, viewMatricesBuffer[idx], projMatrixUniform, materialBuffer);
+        culler.update(scene.getProjection().getProjectionMatrix(), scene.getCamera().getViewMatrix());
+        switch (drawMode) {
+            case INSTANCED -> prepareEntitiesInstanced(vulkanModelList,instanceBuffers[idx]);
+            case INDIRECT -> prepareEntitiesIndirect();
+            default -> prepareEntities(vulkanModelList);
+        }
+
+        CommandBuffer commandBuffer = frame.getCommandBuffer();
+        commandBuffer.reset();
+        commandBuffer.beginRec();
+        if(drawMode == DrawMode.INDIRECT){
+            indirectDrawBuffer.recordUpdates(commandBuffer.getCmdBuf());
+            // a tick adding entities may replace the instance buffer while the draws are recorded
+            if(!indirectDrawBuffer.isEmpty()) indirectInstanceBuffer = indirectDrawBuffer.getInstanceBuffer();
+        }
+    }
+
+    /**
+     * Records the draws prepared by {@link #prepareFrame(List, FrameScheduler.Frame)} into the command buffer of the frame, drawing to the
+     * acquired image of the render target. Does not touch the scene, so the simulation may run meanwhile.
+     */
+    public void recordCommandBuffer(FrameScheduler.Frame frame) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            int width = target.getWidth();
+            int height = target.getHeight();
+            int idx = frame.getIndex();
+
+            CommandBuffer commandBuffer = frame.getCommandBuffer();
+            FrameBuffer frameBuffer = frameBuffers[target.getImageIndex()];
 
-            commandBuffer.reset();
             VkClearValue.Buffer clearValues = VkClearValue.calloc(2, stack);
             clearValues.apply(0, v -> v.color().float32(0, 0.5f).float32(1, 0.7f).float32(2, 0.9f).float32(3, 1));
             clearValues.apply(1, v -> v.depthStencil().depth(1.0f));
@@ -186,108 +351,344 @@ public class ForwardRenderActivity {
             VkRenderPassBeginInfo renderPassBeginInfo = VkRenderPassBeginInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO).renderPass(renderPass.getRenderPass()).pClearValues(clearValues).
                     renderArea(a -> a.extent().set(width, height)).framebuffer(frameBuffer.getFrameBuffer());
 
-            commandBuffer.beginRec();
             VkCommandBuffer cmdHandle = commandBuffer.getCmdBuf();
-            vkCmdBeginRenderPass(cmdHandle, renderPassBeginInfo, VK_SUBPASS_CONTENTS_INLINE);
+            if (workers.length == 0) {
+                vkCmdBeginRenderPass(cmdHandle, renderPassBeginInfo, VK_SUBPASS_CONTENTS_INLINE);
+                setViewport(cmdHandle, width, height);
+                inlineWorker.stats.reset();
+                record(inlineWorker, cmdHandle, idx, 0, renderQueue.size());
+                stats.add(inlineWorker.stats);
+            } else {
+                vkCmdBeginRenderPass(cmdHandle, renderPassBeginInfo, VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS);
+                recordParallel(cmdHandle, idx, frameBuffer, width, height);
+            }
+            clearItems();
+
+            vkCmdEndRenderPass(cmdHandle);
+            if(capture != null) capture.recordCopy(cmdHandle, target, idx);
+            commandBuffer.endRec();
+        }
+        stats.recordTime(System.nanoTime() - frameStart);
+    }
+
+    /**
+     * Splits the sorted draws into one contiguous range per worker, records the ranges into secondary command buffers on the worker threads
+     * and executes them in range order, so the draw order is the same as with a single thread.
+     */
+    private void recordParallel(VkCommandBuffer primary, int idx, FrameBuffer frameBuffer, int width, int height) {
+        int count = renderQueue.size();
+        int perWorker = (count + workers.length - 1) / workers.length;
+        List<Callable<Void>> tasks = new ArrayList<>(workers.length);
+        for (int w = 0; w < workers.length; w++) {
+            RecordWorker worker = workers[w];
+            int from = Math.min(w * perWorker, count), to = Math.min(from + perWorker, count);
+            int thread = w;
+            tasks.add(() -> {
+                long start = System.nanoTime();
+                worker.stats.reset();
+                CommandBuffer secondary = worker.getCommandBuffer(idx);
+                secondary.reset();
+                secondary.beginRec(renderPass.getRenderPass(), 0, frameBuffer.getFrameBuffer());
+                setViewport(secondary.getCmdBuf(), width, height);
+                record(worker, secondary.getCmdBuf(), idx, from, to);
+                secondary.endRec();
+                threadRecordNanos[thread] = System.nanoTime() - start;
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : recordExecutor.invokeAll(tasks)) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while recording", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not record draws", e.getCause());
+        }
 
-            vkCmdBindPipeline(cmdHandle, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeLine.getPipeline());
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            PointerBuffer secondaries = stack.mallocPointer(workers.length);
+            for (RecordWorker worker : workers) {
+                secondaries.put(worker.getCommandBuffer(idx).getCmdBuf());
+                stats.add(worker.stats);
+            }
+            vkCmdExecuteCommands(primary, secondaries.flip());
+        }
+        stats.threadRecordTimes(threadRecordNanos);
+    }
 
+    private static void setViewport(VkCommandBuffer cmdHandle, int width, int height) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
             VkViewport.Buffer viewport = VkViewport.calloc(1, stack).x(0).y(height).height(-height).width(width).minDepth(0.0f).maxDepth(1.0f);
             vkCmdSetViewport(cmdHandle, 0, viewport);
 
             VkRect2D.Buffer scissor = VkRect2D.calloc(1, stack).extent(it -> it.width(width).height(height)).offset(it -> it.x(0).y(0));
             vkCmdSetScissor(cmdHandle, 0, scissor);
+        }
+    }
 
-            LongBuffer descriptorSet = stack.mallocLong(4).put(0,projMatrixDescriptorSet.getHandle()).put(1,viewMatricesDescriptorSet[idx].getHandle()).
-                    put(3,materialDescriptorLayout.getDescriptorLayout());
-            Util.copyMatrixToBuffer(viewMatricesBuffer[idx],scene.getCamera().getViewMatrix());
+    /**
+     * Records the sorted draws {@code from} (inclusive) to {@code to} (exclusive). Only reads state prepared for the frame, so several workers
+     * may record at the same time.
+     */
+    private void record(RecordWorker worker, VkCommandBuffer cmdHandle, int idx, int from, int to) {
+        CommandRecorder recorder = worker.recorder;
+        recorder.begin(cmdHandle);
+        recorder.bindPipeline(drawMode == DrawMode.PER_ENTITY ? pipeLine : instancedPipeline);
+        recorder.bindDescriptorSet(0, projMatrixDescriptorSet.getHandle());
+        recorder.bindDescriptorSet(1, viewMatricesDescriptorSet[idx].getHandle());
+        switch (drawMode) {
+            case INSTANCED -> recordEntitiesInstanced(worker, instanceBuffers[idx], from, to);
+            case INDIRECT -> recordEntitiesIndirect(worker, from, to);
+            default -> recordEntities(worker, from, to);
+        }
+        worker.stats.commands(recorder.getEmitted(), recorder.getElided());
+    }
 
-            recordEntities(stack,cmdHandle,descriptorSet,vulkanModelList);
+    private void bindMaterial(CommandRecorder recorder, Model.Material material) {
+        recorder.bindDescriptorSet(2, descriptorSetMap.get(material.texture().getFileName()).getHandle());
+        recorder.bindDescriptorSet(3, materialDescriptorSet.getHandle(), materialOffsets.get(material));
+    }
 
-            vkCmdEndRenderPass(cmdHandle);
-            commandBuffer.endRec();
+    private void prepareEntities(List<Model> models){
+        Matrix4f view = scene.getCamera().getViewMatrix();
+        for (Model vulkanModel : models) {
+            List<Entity> entities = scene.get(vulkanModel.getModelId());
+            if (entities == null || entities.isEmpty()) continue;
+            int visibleCount = cull(entities, vulkanModel);
+            int[] visible = sceneUpdater.getVisible();
+            for (Model.Material material : vulkanModel.getMaterials()) {
+                boolean transparent = material.isTransparent();
+                for (Model.Mesh mesh : material.meshes()) {
+                    long state = meshStates.get(mesh);
+                    for (int i = 0; i < visibleCount; i++) {
+                        Entity entity = entities.get(visible[i]);
+                        float depth = viewDepth(view, entity);
+                        int item = addItem(material, mesh, entity, 0, 1);
+                        renderQueue.add(transparent ? RenderQueue.transparentKey(state, depth) : RenderQueue.opaqueKey(state, depth), item);
+                    }
+                }
+            }
         }
+        renderQueue.sort();
     }
 
-    private void recordEntities(MemoryStack stack,VkCommandBuffer buffer,LongBuffer lp,List<Model> models){
-        LongBuffer offsets = stack.mallocLong(1);
-        offsets.put(0, 0L);
-        LongBuffer vertexBuffer = stack.mallocLong(1);
-        IntBuffer dynDescOffset = stack.callocInt(1);
-        int i = 0;
+    private void recordEntities(RecordWorker worker, int from, int to){
+        CommandRecorder recorder = worker.recorder;
+        for (int i = from; i < to; i++) {
+            int item = renderQueue.value(i);
+            Model.Mesh mesh = itemMeshes[item];
+            bindMaterial(recorder, itemMaterials[item]);
+            recorder.bindVertexBuffer(VertexBufferStruct.VERTEX_BINDING, mesh.verticesBuffer().getBuffer(), 0);
+            recorder.bindIndexBuffer(mesh.indicesBuffer().getBuffer(), 0, mesh.indexType());
+            recorder.pushMatrix(worker.modelMatrix.set(itemMatrices, item * 16));
+            recorder.drawIndexed(mesh.numIndices(), 1, mesh.firstIndex(), mesh.vertexOffset(), 0);
+            worker.stats.draw(1);
+        }
+    }
+
+    private void prepareEntitiesInstanced(List<Model> models,InstanceBuffer instanceBuffer){
+        int numInstances = 0;
+        for (Model vulkanModel : models) {
+            List<Entity> entities = scene.get(vulkanModel.getModelId());
+            if (entities != null) numInstances += entities.size();
+        }
+        instanceBuffer.begin(numInstances);
+
+        Matrix4f view = scene.getCamera().getViewMatrix();
         for (Model vulkanModel : models) {
-            String modelId = vulkanModel.getModelId();
-            List<Entity> entities = scene.get(modelId);
-            if (entities.isEmpty()) {
-                i += vulkanModel.getMaterials().size();
-                continue;
+            List<Entity> entities = scene.get(vulkanModel.getModelId());
+            if (entities == null || entities.isEmpty()) continue;
+            int visibleCount = cull(entities, vulkanModel);
+            if (visibleCount == 0) continue;
+            int[] visible = sceneUpdater.getVisible();
+            int firstInstance = instanceBuffer.put(entities, visible, visibleCount, sceneUpdater);
+            float minDepth = Float.MAX_VALUE;
+            float maxDepth = 0;
+            for (int i = 0; i < visibleCount; i++) {
+                float depth = viewDepth(view, entities.get(visible[i]));
+                minDepth = Math.min(minDepth, depth);
+                maxDepth = Math.max(maxDepth, depth);
             }
             for (Model.Material material : vulkanModel.getMaterials()) {
-                if (material.meshes().isEmpty()){
-                    i++;
-                    continue;
+                boolean transparent = material.isTransparent();
+                for (Model.Mesh mesh : material.meshes()) {
+                    long state = meshStates.get(mesh);
+                    int item = addItem(material, mesh, null, firstInstance, visibleCount);
+                    renderQueue.add(transparent ? RenderQueue.transparentKey(state, maxDepth) : RenderQueue.opaqueKey(state, minDepth), item);
                 }
-                dynDescOffset.put(0,i * materialSize);
-                TextureDescriptorSet textureDescriptorSet = descriptorSetMap.get(material.texture().getFileName());
-                lp.put(1, textureDescriptorSet.getHandle());
+            }
+        }
+        instanceBuffer.end();
+        renderQueue.sort();
+    }
 
-                for (Model.Mesh mesh : material.meshes()) {
-                    vertexBuffer.put(0, mesh.verticesBuffer().getBuffer());
-                    vkCmdBindVertexBuffers(buffer, 0, vertexBuffer, offsets);
-                    vkCmdBindIndexBuffer(buffer, mesh.indicesBuffer().getBuffer(), 0, VK_INDEX_TYPE_UINT32);
+    private void recordEntitiesInstanced(RecordWorker worker, InstanceBuffer instanceBuffer, int from, int to){
+        CommandRecorder recorder = worker.recorder;
+        recorder.bindVertexBuffer(VertexBufferStruct.INSTANCE_BINDING, instanceBuffer.getBuffer(), 0);
+        for (int i = from; i < to; i++) {
+            int item = renderQueue.value(i);
+            Model.Mesh mesh = itemMeshes[item];
+            bindMaterial(recorder, itemMaterials[item]);
+            recorder.bindVertexBuffer(VertexBufferStruct.VERTEX_BINDING, mesh.verticesBuffer().getBuffer(), 0);
+            recorder.bindIndexBuffer(mesh.indicesBuffer().getBuffer(), 0, mesh.indexType());
+            recorder.drawIndexed(mesh.numIndices(), itemInstanceCounts[item], mesh.firstIndex(), mesh.vertexOffset(), itemFirstInstances[item]);
+            worker.stats.draw(itemInstanceCounts[item]);
+        }
+    }
 
-                    for (Entity entity : entities) {
-                        vkCmdBindDescriptorSets(buffer, VK_PIPELINE_BIND_POINT_GRAPHICS,
-                                pipeLine.getPipelineLayout(), 0, lp, null);
+    private int cull(List<Entity> entities, Model model) {
+        int visibleCount = sceneUpdater.cull(entities, model.getBounds(), culler.getPlanes());
+        stats.culled(visibleCount, entities.size() - visibleCount);
+        return visibleCount;
+    }
 
-                        Util.setMAtrixAsPushConstant(pipeLine, buffer, entity.getModelMatrix());
-                        vkCmdDrawIndexed(buffer, mesh.numIndices(), 1, 0, 0, 0);
-                    }
-                }
+    private int addItem(Model.Material material, Model.Mesh mesh, Entity entity, int firstInstance, int instanceCount) {
+        if (itemCount == itemMeshes.length) {
+            int capacity = itemCount * 2;
+            itemMaterials = Arrays.copyOf(itemMaterials, capacity);
+            itemMeshes = Arrays.copyOf(itemMeshes, capacity);
+            itemMatrices = Arrays.copyOf(itemMatrices, capacity * 16);
+            itemFirstInstances = Arrays.copyOf(itemFirstInstances, capacity);
+            itemInstanceCounts = Arrays.copyOf(itemInstanceCounts, capacity);
+        }
+        itemMaterials[itemCount] = material;
+        itemMeshes[itemCount] = mesh;
+        // the matrix is copied, recording runs without the scene lock while the simulation may move the entity
+        if (entity != null) entity.getModelMatrix(itemMatrix).get(itemMatrices, itemCount * 16);
+        itemFirstInstances[itemCount] = firstInstance;
+        itemInstanceCounts[itemCount] = instanceCount;
+        return itemCount++;
+    }
+
+    private void clearItems() {
+        Arrays.fill(itemMaterials, 0, itemCount, null);
+        Arrays.fill(itemMeshes, 0, itemCount, null);
+        itemCount = 0;
+        renderQueue.clear();
+    }
+
+    private static float viewDepth(Matrix4f view, Entity entity) {
+        return -(view.m02() * entity.getX() + view.m12() * entity.getY() + view.m22() * entity.getZ() + view.m32());
+    }
+
+    /**
+     * Queues the batch indices, opaque batches first. The queue is not sorted, the batches already are in state order.
+     */
+    private void prepareEntitiesIndirect(){
+        if(indirectDrawBuffer.isEmpty()) return;
+        List<IndirectDrawBuffer.Batch> batches = indirectDrawBuffer.getBatches();
+        for (int pass = 0; pass < 2; pass++) {
+            boolean transparent = pass == 1;
+            for (int i = 0; i < batches.size(); i++) {
+                if (batches.get(i).getMaterial().isTransparent() == transparent) renderQueue.add(0, i);
             }
         }
     }
 
+    private void recordEntitiesIndirect(RecordWorker worker, int from, int to){
+        if(from == to) return;
+        CommandRecorder recorder = worker.recorder;
+        recorder.bindVertexBuffer(VertexBufferStruct.INSTANCE_BINDING, indirectInstanceBuffer, 0);
+        List<IndirectDrawBuffer.Batch> batches = indirectDrawBuffer.getBatches();
+        for (int i = from; i < to; i++) {
+            IndirectDrawBuffer.Batch batch = batches.get(renderQueue.value(i));
+            bindMaterial(recorder, batch.getMaterial());
+            recorder.bindVertexBuffer(VertexBufferStruct.VERTEX_BINDING, batch.getMesh().verticesBuffer().getBuffer(), 0);
+            recorder.bindIndexBuffer(batch.getMesh().indicesBuffer().getBuffer(), 0, batch.getMesh().indexType());
+            indirectDrawBuffer.recordBatch(recorder, batch, device.isMultiDrawIndirect());
+            worker.stats.draw(batch.getDrawCount());
+        }
+    }
+
+    /**
+     * Has to be called by the render thread between frames. Nothing which the frames in flight read is overwritten, so there is no need to
+     * wait for the device unless the material buffer has to grow. The scene lock must not be held, it is taken only while the entities of
+     * the models are collected.
+     */
     public void registerModels(List<Model> models) {
-        device.waitIdle();
-        for (Model model : models) {
-            for (int i = 0; i < model.getMaterials().size(); i++) {
-                updateTextureDescriptorSet(model.getMaterials().get(i).texture());
-                updateMaterialBuffer(materialBuffer,model.getMaterials().get(i),materialSize * i);
+        List<Model> newModels = models.stream().filter(m -> !registeredModels.contains(m)).toList();
+        registeredModels.addAll(newModels);
+        if(indirectDrawBuffer != null) {
+            scene.getLock().lock();
+            try {
+                indirectDrawBuffer.registerModels(newModels, scene);
+            } finally {
+                scene.getLock().unlock();
+            }
+        }
+        // every material keeps its slot for the session, room for all of them is made before the first offset is handed out
+        ensureMaterialCapacity(materialOffsets.size() + newModels.stream().mapToInt(m -> m.getMaterials().size()).sum());
+        for (Model model : newModels) {
+            for (Model.Material material : model.getMaterials()) {
+                if(materialOffsets.containsKey(material)) continue;
+                int offset = materialSize * materialOffsets.size();
+                materialOffsets.put(material, offset);
+                updateTextureDescriptorSet(material.texture());
+                updateMaterialBuffer(materialBuffer,material,offset);
+                int textureId = textureIds.get(material.texture().getFileName());
+                for (Model.Mesh mesh : material.meshes()) {
+                    meshStates.put(mesh, RenderQueue.state(0, textureId, meshStates.size()));
+                }
             }
         }
     }
 
+    /**
+     * Has to be called after the {@link de.survivalworkers.core.engine.graphics.rendering.MeshArena} was compacted, since the indirect
+     * commands store the first index and vertex offset of every mesh.
+     */
+    public void meshesMoved() {
+        if(indirectDrawBuffer == null) return;
+        // the indirect buffer is a scene listener, ticks adding entities change it as well
+        scene.getLock().lock();
+        try {
+            indirectDrawBuffer.meshesMoved();
+        } finally {
+            scene.getLock().unlock();
+        }
+    }
+
     private void updateMaterialBuffer(Buffer materialBuffer, Model.Material material, int i) {
-        long memory = materialBuffer.map();
-        ByteBuffer buffer = MemoryUtil.memByteBuffer(memory, (int) materialBuffer.getRequestedSize());
-        material.diffuseColor().get(i,buffer);
-        materialBuffer.unMap();
+        if(i < 0 || i + materialSize > materialBuffer.getRequestedSize())
+            throw new IndexOutOfBoundsException("Material offset " + i + " is outside of the material buffer of " + materialBuffer.getRequestedSize() + " bytes");
+        material.diffuseColor().getToAddress(materialBuffer.map() + i);
+        materialBuffer.markDirty(i, 16);
+    }
+
+    /**
+     * Grows the material buffer to hold at least {@code materials} materials, keeping the ones already written. The old buffer may still be
+     * read by the frames in flight, growing is rare enough to wait for the device instead of retiring it later.
+     */
+    private void ensureMaterialCapacity(int materials) {
+        if(materials <= materialCapacity) return;
+        int capacity = Math.max(materials, materialCapacity * 2);
+        device.waitIdle();
+        Buffer buffer = new Buffer(device, (long) materialSize * capacity, VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT);
+        MemoryUtil.memCopy(materialBuffer.map(), buffer.map(), materialBuffer.getRequestedSize());
+        buffer.markDirty(0, materialBuffer.getRequestedSize());
+        descriptorPool.freeDescriptors(materialDescriptorSet.getHandle());
+        materialBuffer.close();
+        materialBuffer = buffer;
+        materialDescriptorSet = new DescriptorSet.DynUniformDescriptorSet(descriptorPool,materialDescriptorLayout,materialBuffer,0,materialSize);
+        materialCapacity = capacity;
     }
 
-    public void resize(SwapChain swapChain) {
+    public void resize(RenderTarget target) {
         Util.copyMatrixToBuffer(projMatrixUniform, scene.getProjection().getProjectionMatrix());
-        this.swapChain = swapChain;
+        this.target = target;
         Arrays.stream(frameBuffers).forEach(FrameBuffer::close);
         Arrays.stream(depthAttachments).forEach(Attachment::close);
         createDepthImages();
         createFrameBuffers();
     }
 
-    public void submit(VkQueue queue) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            int idx = swapChain.getCurrentFrame();
-            CommandBuffer commandBuffer = commandBuffers[idx];
-            Fence currentFence = fences[idx];
-            SwapChain.SyncSemaphores syncSemaphores = swapChain.getSyncSemaphoresList()[idx];
-            VkSubmitInfo submitInfo = VkSubmitInfo.calloc(stack)
-                    .sType$Default()
-                    .pCommandBuffers(stack.pointers(commandBuffer.getCmdBuf()))
-                    .pSignalSemaphores(stack.longs(syncSemaphores.imgAcquisitionSemaphore().getHandle()))
-                    .pWaitSemaphores(stack.longs(syncSemaphores.renderCompleteSemaphore().getHandle()))
-                    .pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT));
-            vkQueueSubmit(queue, submitInfo, currentFence.getHandle());
-        }
+    public enum DrawMode {
+        /** One draw per entity and mesh, the model matrix is passed as push constant. */
+        PER_ENTITY,
+        /** One draw per mesh for all entities of a model, the model matrices are read from a per frame {@link InstanceBuffer}. */
+        INSTANCED,
+        /** Draws are read from a persistent {@link IndirectDrawBuffer} which is only updated where the scene changed. */
+        INDIRECT
     }
 
     private void updateTextureDescriptorSet(Texture texture) {
@@ -295,8 +696,15 @@ public class ForwardRenderActivity {
         TextureDescriptorSet textureDescriptorSet = descriptorSetMap.get(textureFileName);
         if (textureDescriptorSet == null) {
             log.debug(texture.getFileName());
-            textureDescriptorSet = new TextureDescriptorSet(descriptorPool, textureDescriptorSetLayout, texture, textureSampler, 0);
+            if(textureSetsLeft == 0){
+                // pools can not grow, a new one is added for as many textures as there is room for materials
+                texturePools.add(new DescriptorPool(device, List.of(new DescriptorPool.DescriptorTypeCount(materialCapacity, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER))));
+                textureSetsLeft = materialCapacity;
+            }
+            textureDescriptorSet = new TextureDescriptorSet(texturePools.get(texturePools.size() - 1), textureDescriptorSetLayout, texture, textureSampler, 0);
+            textureSetsLeft--;
             descriptorSetMap.put(textureFileName, textureDescriptorSet);
+            textureIds.put(textureFileName, textureIds.size());
         }
     }
 }
@@ -0,0 +1,45 @@
+package de.survivalworkers.core.engine.graphics;
+
+import de.survivalworkers.core.engine.graphics.rendering.CommandBuffer;
+import de.survivalworkers.core.engine.graphics.rendering.CommandPool;
+import de.survivalworkers.core.engine.graphics.rendering.CommandRecorder;
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import org.joml.Matrix4f;
+
+/**
+ * Everything one thread needs to record draws: a {@link CommandRecorder}, its own counters and scratch matrix and, for worker threads, an own
+ * command pool with one secondary command buffer per frame, since a pool must never be used by two threads at once.
+ */
+class RecordWorker {
+    final CommandRecorder recorder;
+    final RenderStats stats;
+    final Matrix4f modelMatrix;
+    private final CommandPool pool;
+    private final CommandBuffer[] commandBuffers;
+
+    /**
+     * Creates a worker which records into the primary command buffer of the render thread.
+     */
+    RecordWorker() {
+        this(null, 0, 0);
+    }
+
+    RecordWorker(LogicalDevice device, int queueFamilyIndex, int frames) {
+        recorder = new CommandRecorder();
+        stats = new RenderStats();
+        modelMatrix = new Matrix4f();
+        pool = device != null ? new CommandPool(device, queueFamilyIndex) : null;
+        commandBuffers = new CommandBuffer[frames];
+        for (int i = 0; i < frames; i++) commandBuffers[i] = new CommandBuffer(pool, false, false);
+    }
+
+    CommandBuffer getCommandBuffer(int frame) {
+        return commandBuffers[frame];
+    }
+
+    void close() {
+        recorder.close();
+        for (CommandBuffer commandBuffer : commandBuffers) commandBuffer.close();
+        if (pool != null) pool.close();
+    }
+}
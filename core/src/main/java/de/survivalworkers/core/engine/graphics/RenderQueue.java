@@ -0,0 +1,146 @@
+package de.survivalworkers.core.engine.graphics;
+
+import java.util.Arrays;
+
+/**
+ * Collects draws as 64 bit sort keys with an int payload (usually an index into the draw list of the frame) and sorts them with a LSD radix sort.
+ * All arrays are reused between frames, so after the first frames no allocation happens anymore.
+ * <p>
+ * Key layout, compared as unsigned value:
+ * <pre>
+ * opaque:      0 | pipeline(8) | texture(16) | mesh(16) | depth(23)
+ * transparent: 1 | inverted depth(23) | pipeline(8) | texture(16) | mesh(16)
+ * </pre>
+ * so opaque draws come first, grouped by state and front to back within a group, followed by the transparent draws back to front.
+ */
+public class RenderQueue {
+    private static final long TRANSPARENT_BIT = 1L << 63;
+    private static final int DEPTH_BITS = 23;
+    private static final int DEPTH_MASK = (1 << DEPTH_BITS) - 1;
+    private static final int PASSES = 8;
+
+    private final int[][] counts;
+    private long[] keys;
+    private int[] values;
+    private long[] tmpKeys;
+    private int[] tmpValues;
+    private int size;
+
+    public RenderQueue(int capacity) {
+        counts = new int[PASSES][256];
+        keys = new long[capacity];
+        values = new int[capacity];
+        tmpKeys = new long[capacity];
+        tmpValues = new int[capacity];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(long key, int value) {
+        if (size == keys.length) grow();
+        keys[size] = key;
+        values[size] = value;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, keys.length * 2);
+        long[] newKeys = new long[capacity];
+        int[] newValues = new int[capacity];
+        System.arraycopy(keys, 0, newKeys, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        keys = newKeys;
+        values = newValues;
+        tmpKeys = new long[capacity];
+        tmpValues = new int[capacity];
+    }
+
+    public void sort() {
+        radixSort(keys, values, tmpKeys, tmpValues, size, counts);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long key(int i) {
+        return keys[i];
+    }
+
+    public int value(int i) {
+        return values[i];
+    }
+
+    /**
+     * @param state state bits built with {@link #state(int, int, int)}
+     * @param depth view space distance, negative values are clamped to 0
+     */
+    public static long opaqueKey(long state, float depth) {
+        return state << DEPTH_BITS | quantizeDepth(depth);
+    }
+
+    public static long transparentKey(long state, float depth) {
+        return TRANSPARENT_BIT | (long) (DEPTH_MASK - quantizeDepth(depth)) << 40 | state;
+    }
+
+    public static long state(int pipeline, int texture, int mesh) {
+        return (long) (pipeline & 0xFF) << 32 | (long) (texture & 0xFFFF) << 16 | mesh & 0xFFFF;
+    }
+
+    /**
+     * The bits of a positive float are ordered like the float itself, so dropping the lowest mantissa bits gives a monotonic 23 bit depth.
+     */
+    static int quantizeDepth(float depth) {
+        if (!(depth > 0)) return 0;
+        return Float.floatToRawIntBits(depth) >>> (31 - DEPTH_BITS);
+    }
+
+    /**
+     * Sorts the first {@code n} keys as unsigned values and moves the values along. Byte passes in which all keys are equal are skipped.
+     * The result is always in {@code keys} and {@code values}.
+     */
+    static void radixSort(long[] keys, int[] values, long[] tmpKeys, int[] tmpValues, int n, int[][] counts) {
+        for (int[] count : counts) Arrays.fill(count, 0);
+        for (int i = 0; i < n; i++) {
+            long key = keys[i];
+            for (int pass = 0; pass < PASSES; pass++) counts[pass][(int) (key >>> (pass * 8)) & 0xFF]++;
+        }
+
+        long[] srcKeys = keys;
+        int[] srcValues = values;
+        long[] dstKeys = tmpKeys;
+        int[] dstValues = tmpValues;
+        for (int pass = 0; pass < PASSES; pass++) {
+            int[] count = counts[pass];
+            int shift = pass * 8;
+            if (n == 0 || count[(int) (srcKeys[0] >>> shift) & 0xFF] == n) continue;
+
+            int sum = 0;
+            for (int b = 0; b < 256; b++) {
+                int c = count[b];
+                count[b] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < n; i++) {
+                long key = srcKeys[i];
+                int pos = count[(int) (key >>> shift) & 0xFF]++;
+                dstKeys[pos] = key;
+                dstValues[pos] = srcValues[i];
+            }
+
+            long[] k = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = k;
+            int[] v = srcValues;
+            srcValues = dstValues;
+            dstValues = v;
+        }
+
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, n);
+            System.arraycopy(srcValues, 0, values, 0, n);
+        }
+    }
+}
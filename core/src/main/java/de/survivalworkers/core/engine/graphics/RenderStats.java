@@ -0,0 +1,74 @@
+package de.survivalworkers.core.engine.graphics;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Counters of the last recorded frame.
+ */
+@Getter
+public class RenderStats {
+    private int drawCalls;
+    private int instances;
+    private long recordNanos;
+    private int emittedCommands;
+    private int elidedCommands;
+    private int visibleEntities;
+    private int culledEntities;
+    private static final long[] NO_THREADS = new long[0];
+
+    private long[] threadRecordNanos = NO_THREADS;
+
+    void reset() {
+        drawCalls = 0;
+        instances = 0;
+        recordNanos = 0;
+        emittedCommands = 0;
+        elidedCommands = 0;
+        visibleEntities = 0;
+        culledEntities = 0;
+        threadRecordNanos = NO_THREADS;
+    }
+
+    void draw(int instances) {
+        drawCalls++;
+        this.instances += instances;
+    }
+
+    void commands(int emitted, int elided) {
+        emittedCommands += emitted;
+        elidedCommands += elided;
+    }
+
+    void culled(int visible, int culled) {
+        visibleEntities += visible;
+        culledEntities += culled;
+    }
+
+    /**
+     * Adds the draws and commands recorded by a worker thread.
+     */
+    void add(RenderStats worker) {
+        drawCalls += worker.drawCalls;
+        instances += worker.instances;
+        emittedCommands += worker.emittedCommands;
+        elidedCommands += worker.elidedCommands;
+    }
+
+    /**
+     * Recording time of every worker thread, only set when recording with secondary command buffers.
+     */
+    void threadRecordTimes(long[] nanos) {
+        threadRecordNanos = nanos;
+    }
+
+    void recordTime(long nanos) {
+        recordNanos = nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "draws=" + drawCalls + " instances=" + instances + " commands=" + emittedCommands + " elided=" + elidedCommands + " visible=" + visibleEntities + " culled=" + culledEntities + " record=" + recordNanos / 1000 + "us" + (threadRecordNanos.length > 0 ? " threads=" + Arrays.toString(Arrays.stream(threadRecordNanos).map(n -> n / 1000).toArray()) : "");
+    }
+}
@@ -5,11 +5,7 @@ import de.survivalworkers.core.engine.graphics.rendering.Buffer;
 import de.survivalworkers.core.vk.device.PhysicalDevice;
 import org.joml.Matrix4f;
 import org.lwjgl.system.MemoryStack;
-import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.VkCommandBuffer;
-import org.lwjgl.vulkan.VkMemoryType;
-import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
-import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
 
 import java.nio.ByteBuffer;
 import java.util.List;
@@ -22,22 +18,7 @@ public class Util {
     }
 
     public static int memoryType(PhysicalDevice physDevice, int typeBits, int reqsMask) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            VkPhysicalDeviceMemoryProperties pProperties = VkPhysicalDeviceMemoryProperties.malloc(stack);
-            vkGetPhysicalDeviceMemoryProperties(physDevice.getHandle(), pProperties);
-            int res = -1;
-            VkMemoryType.Buffer memoryTypes = pProperties.memoryTypes();
-            for (int i = 0; i < VK_MAX_MEMORY_TYPES; i++) {
-                if ((typeBits & 1) == 1 && (memoryTypes.get(i).propertyFlags() & reqsMask) == reqsMask) {
-                    res = i;
-                    break;
-                }
-                typeBits >>= 1;
-            }
-            if (res < 0) throw new RuntimeException("Could not get memoryType");
-
-            return res;
-        }
+        return physDevice.getCapabilities().memoryType(typeBits, reqsMask);
     }
 
     public static float[] toArrayFloat(List<Float> list){
@@ -60,11 +41,12 @@ public class Util {
         copyMatrixToBuffer(projMatrixUniform,projectionMatrix,0);
     }
 
+    /**
+     * Writes the matrix into the persistently mapped buffer and marks it dirty, it still has to be flushed if the memory is not coherent.
+     */
     private static void copyMatrixToBuffer(Buffer projMatrixUniform, Matrix4f projectionMatrix, int i) {
-        long mappedMem = projMatrixUniform.map();
-        ByteBuffer bp = MemoryUtil.memByteBuffer(mappedMem, (int) projMatrixUniform.getRequestedSize());
-        projectionMatrix.get(i,bp);
-        projMatrixUniform.unMap();
+        projectionMatrix.getToAddress(projMatrixUniform.map() + i);
+        projMatrixUniform.markDirty(i, 64);
     }
 
     public static void setMAtrixAsPushConstant(Pipeline pipeLine, VkCommandBuffer cmdHandle, Matrix4f modelMatrix) {
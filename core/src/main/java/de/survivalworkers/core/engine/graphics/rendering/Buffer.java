@@ -3,11 +3,10 @@ package de.survivalworkers.core.engine.graphics.rendering;
 import de.survivalworkers.core.engine.graphics.Util;
 import de.survivalworkers.core.vk.util.VkUtil;
 import de.survivalworkers.core.vk.device.LogicalDevice;
-import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.VkBufferCreateInfo;
-import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkMappedMemoryRange;
 import org.lwjgl.vulkan.VkMemoryRequirements;
 
 import java.nio.LongBuffer;
@@ -15,19 +14,22 @@ import java.nio.LongBuffer;
 import static org.lwjgl.vulkan.VK10.*;
 
 public class Buffer {
-    private final long allocationSize;
+    private final MemoryAllocator.Allocation allocation;
     private final long buffer;
     private final LogicalDevice device;
-    private final long memory;
-    private final PointerBuffer pb;
     private final long requestedSize;
 
+    private final boolean coherent;
+
     private long mappedMemory;
+    private long dirtyStart;
+    private long dirtyEnd;
 
     public Buffer(LogicalDevice device, long size, int usage, int reqMask){
         this.device = device;
         this.requestedSize = size;
         mappedMemory = MemoryUtil.NULL;
+        dirtyStart = Long.MAX_VALUE;
         try(MemoryStack stack = MemoryStack.stackPush()) {
             VkBufferCreateInfo createInfo = VkBufferCreateInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO).size(size).usage(usage).sharingMode(VK_SHARING_MODE_EXCLUSIVE);
             LongBuffer lp = stack.mallocLong(1);
@@ -36,21 +38,18 @@ public class Buffer {
             VkMemoryRequirements memoryRequirements = VkMemoryRequirements.malloc(stack);
             vkGetBufferMemoryRequirements(device.getHandle(), buffer, memoryRequirements);
 
-            VkMemoryAllocateInfo allocateInfo = VkMemoryAllocateInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO).allocationSize(memoryRequirements.size()).
-                    memoryTypeIndex(Util.memoryType(device.getPhysicalDevice(), memoryRequirements.memoryTypeBits(), reqMask));
-            VkUtil.check(vkAllocateMemory(device.getHandle(), allocateInfo,null,lp),"Could not allocate Memory");
-            allocationSize = allocateInfo.allocationSize();
-            memory = lp.get(0);
-            pb = MemoryUtil.memAllocPointer(1);
+            allocation = device.getMemoryAllocator().allocate(Util.memoryType(device.getPhysicalDevice(), memoryRequirements.memoryTypeBits(), reqMask),
+                    memoryRequirements.size(), memoryRequirements.alignment(), true);
 
-            VkUtil.check(vkBindBufferMemory(device.getHandle(), buffer,memory,0),"Could not bind Buffer Memory");
+            VkUtil.check(vkBindBufferMemory(device.getHandle(), buffer, allocation.getMemory(), allocation.getOffset()),"Could not bind Buffer Memory");
+            coherent = (device.getPhysicalDevice().getCapabilities().getMemoryTypeFlags(allocation.getMemoryType()) &
+                    VK_MEMORY_PROPERTY_HOST_COHERENT_BIT) != 0;
         }
     }
 
     public void close() {
-        MemoryUtil.memFree(pb);
         vkDestroyBuffer(device.getHandle(), buffer,null);
-        vkFreeMemory(device.getHandle(), memory,null);
+        allocation.free();
     }
 
     public long getBuffer() {
@@ -61,18 +60,91 @@ public class Buffer {
         return requestedSize;
     }
 
+    public MemoryAllocator.Allocation getAllocation() {
+        return allocation;
+    }
+
+    /**
+     * Whether host writes are visible to the device without {@link #flush()}.
+     */
+    public boolean isCoherent() {
+        return coherent;
+    }
+
+    /**
+     * The memory block of the buffer stays mapped by the {@link MemoryAllocator} until it is released, so the address can be kept and written
+     * every frame without any driver call. {@link #unMap()} only gives up the address. Writes to non coherent memory have to be reported with
+     * {@link #markDirty(long, long)} and flushed before the device reads them.
+     */
     public long map(){
-        if(mappedMemory == MemoryUtil.NULL) {
-            VkUtil.check(vkMapMemory(device.getHandle(), memory, 0, allocationSize, 0, pb), "could not Map Buffer");
-            mappedMemory = pb.get(0);
-        }
+        if(mappedMemory == MemoryUtil.NULL) mappedMemory = allocation.map();
         return mappedMemory;
     }
 
     public void unMap(){
-        if(mappedMemory != MemoryUtil.NULL){
-            vkUnmapMemory(device.getHandle(), memory);
-            mappedMemory = MemoryUtil.NULL;
+        mappedMemory = MemoryUtil.NULL;
+    }
+
+    /**
+     * Records that the host wrote {@code size} bytes at {@code offset}, does nothing for coherent memory.
+     */
+    public void markDirty(long offset, long size){
+        if(coherent) return;
+        dirtyStart = Math.min(dirtyStart, offset);
+        dirtyEnd = Math.max(dirtyEnd, offset + size);
+    }
+
+    public boolean isDirty(){
+        return dirtyStart < dirtyEnd;
+    }
+
+    public void flush(){
+        flush(device, this);
+    }
+
+    /**
+     * Makes device writes visible to the host, has to be called after the device wrote the buffer and before it is read through {@link #map()}.
+     * Does nothing for coherent memory.
+     */
+    public void invalidate(){
+        if(coherent) return;
+        long atom = Math.max(1, device.getPhysicalDevice().getCapabilities().getNonCoherentAtomSize());
+        try(MemoryStack stack = MemoryStack.stackPush()) {
+            long start = allocation.getOffset() / atom * atom;
+            long end = (allocation.getOffset() + requestedSize + atom - 1) / atom * atom;
+            long size = allocation.isDedicated() && end >= allocation.getSize() ? VK_WHOLE_SIZE : end - start;
+            VkMappedMemoryRange.Buffer range = VkMappedMemoryRange.calloc(1, stack).sType(VK_STRUCTURE_TYPE_MAPPED_MEMORY_RANGE).
+                    memory(allocation.getMemory()).offset(start).size(size);
+            VkUtil.check(vkInvalidateMappedMemoryRanges(device.getHandle(), range), "Could not invalidate mapped memory");
+        }
+    }
+
+    /**
+     * Flushes the dirty ranges of all {@code buffers} with one {@code vkFlushMappedMemoryRanges} call and makes them clean. Buffers which are
+     * coherent or clean are skipped, so with coherent memory this never calls the driver.
+     */
+    public static void flush(LogicalDevice device, Buffer... buffers){
+        int count = 0;
+        for (Buffer buffer : buffers) {
+            if(buffer.isDirty()) count++;
+        }
+        if(count == 0) return;
+        long atom = Math.max(1, device.getPhysicalDevice().getCapabilities().getNonCoherentAtomSize());
+        try(MemoryStack stack = MemoryStack.stackPush()) {
+            VkMappedMemoryRange.Buffer ranges = VkMappedMemoryRange.calloc(count, stack);
+            for (Buffer buffer : buffers) {
+                if(!buffer.isDirty()) continue;
+                MemoryAllocator.Allocation allocation = buffer.allocation;
+                // sub-allocations are aligned to at least 256 bytes, the largest atom size the spec allows, so the rounded range stays inside
+                long start = (allocation.getOffset() + buffer.dirtyStart) / atom * atom;
+                long end = (allocation.getOffset() + buffer.dirtyEnd + atom - 1) / atom * atom;
+                long size = allocation.isDedicated() && end >= allocation.getSize() ? VK_WHOLE_SIZE : end - start;
+                ranges.get().sType(VK_STRUCTURE_TYPE_MAPPED_MEMORY_RANGE).memory(allocation.getMemory()).offset(start).size(size);
+                buffer.dirtyStart = Long.MAX_VALUE;
+                buffer.dirtyEnd = 0;
+            }
+            ranges.flip();
+            VkUtil.check(vkFlushMappedMemoryRanges(device.getHandle(), ranges), "Could not flush mapped memory");
         }
     }
 }
@@ -0,0 +1,21 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A frame read back by {@link FrameCapture}. {@code pixels} holds tightly packed rows of 4 byte pixels starting at the top left and is only
+ * valid while the consumer runs, it has to be copied to be kept.
+ *
+ * @param frameNumber counts the captured frames, starting at 0
+ * @param format the Vulkan format of the image the pixels were copied from
+ */
+public record CapturedFrame(long frameNumber, int width, int height, int format, ByteBuffer pixels) {
+    /**
+     * Whether the pixels are stored as blue, green, red, alpha, like the usual swap chain formats, instead of red, green, blue, alpha.
+     */
+    public boolean isBgra() {
+        return format == VK_FORMAT_B8G8R8A8_SRGB || format == VK_FORMAT_B8G8R8A8_UNORM;
+    }
+}
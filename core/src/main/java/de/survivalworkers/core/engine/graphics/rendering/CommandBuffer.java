@@ -6,7 +6,10 @@ import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.VkCommandBuffer;
 import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
 import org.lwjgl.vulkan.VkCommandBufferBeginInfo;
+import org.lwjgl.vulkan.VkCommandBufferInheritanceInfo;
 import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkQueue;
+import org.lwjgl.vulkan.VkSubmitInfo;
 
 import static org.lwjgl.vulkan.VK10.*;
 
@@ -37,6 +40,19 @@ public class CommandBuffer {
         }
     }
 
+    /**
+     * Begins a secondary command buffer which is executed inside the given subpass of a render pass.
+     */
+    public void beginRec(long renderPass, int subPass, long frameBuffer){
+        try(MemoryStack stack = MemoryStack.stackPush()) {
+            VkCommandBufferInheritanceInfo inheritanceInfo = VkCommandBufferInheritanceInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_INFO).renderPass(renderPass).
+                    subpass(subPass).framebuffer(frameBuffer);
+            VkCommandBufferBeginInfo cmdBufInfo = VkCommandBufferBeginInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO).
+                    flags(VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT | (submit ? VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT : 0)).pInheritanceInfo(inheritanceInfo);
+            VkUtil.check(vkBeginCommandBuffer(cmdBuf,cmdBufInfo),"Could not begin CMD Buf");
+        }
+    }
+
     public void close() {
         vkFreeCommandBuffers(pool.getDevice().getHandle(),pool.getCommandPool(),cmdBuf);
     }
@@ -45,6 +61,19 @@ public class CommandBuffer {
         VkUtil.check(vkEndCommandBuffer(cmdBuf),"Failed Ending buf");
     }
 
+    /**
+     * Submits the recorded commands and blocks until the device has executed them.
+     */
+    public void submitAndWait(VkQueue queue){
+        Fence fence = new Fence(pool.getDevice(), false);
+        try(MemoryStack stack = MemoryStack.stackPush()) {
+            VkSubmitInfo submitInfo = VkSubmitInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_SUBMIT_INFO).pCommandBuffers(stack.pointers(cmdBuf));
+            VkUtil.check(vkQueueSubmit(queue, submitInfo, fence.getHandle()),"Could not submit CMD Buf");
+        }
+        fence.fenceWait();
+        fence.close();
+    }
+
     public VkCommandBuffer getCmdBuf() {
         return cmdBuf;
     }
@@ -12,9 +12,11 @@ import static org.lwjgl.vulkan.VK10.*;
 public class CommandPool {
     private final LogicalDevice device;
     private final long commandPool;
+    private final int queueFamilyIndex;
 
     public CommandPool(LogicalDevice device, int queueFamilyI){
         this.device = device;
+        this.queueFamilyIndex = queueFamilyI;
         try(MemoryStack stack = MemoryStack.stackPush()) {
             VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO).flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT).queueFamilyIndex(queueFamilyI);
             LongBuffer lp = stack.mallocLong(1);
@@ -34,4 +36,8 @@ public class CommandPool {
     public long getCommandPool() {
         return commandPool;
     }
+
+    public int getQueueFamilyIndex() {
+        return queueFamilyIndex;
+    }
 }
@@ -0,0 +1,229 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.engine.graphics.pipeline.Pipeline;
+import lombok.Getter;
+import org.joml.Matrix4f;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Records into a {@link CommandBuffer} while remembering the bound pipeline, descriptor sets, vertex and index buffers and push constants.
+ * Binds which would not change anything are dropped, the remaining descriptor set and vertex buffer binds are deferred to the next draw
+ * and merged into as few calls as possible.
+ */
+public class CommandRecorder {
+    private static final int MAX_SETS = 8;
+    private static final int MAX_BINDINGS = 4;
+    private static final int MAX_PUSH_CONSTANTS = 128;
+
+    private final long[] sets;
+    private final int[] dynamicOffsets;
+    private final boolean[] dynamic;
+    private final long[] vertexBuffers;
+    private final long[] vertexOffsets;
+    private final LongBuffer setBuffer;
+    private final IntBuffer offsetBuffer;
+    private final LongBuffer vertexBuffer;
+    private final LongBuffer vertexOffsetBuffer;
+    private final ByteBuffer pushConstants;
+    private final ByteBuffer pushScratch;
+
+    private VkCommandBuffer cmd;
+    private long pipeline;
+    private long pipelineLayout;
+    private int dirtySetsMin;
+    private int dirtySetsMax;
+    private int dirtyBindingsMin;
+    private int dirtyBindingsMax;
+    private long indexBuffer;
+    private long indexOffset;
+    private int indexType;
+    private int pushSize;
+    @Getter
+    private int emitted;
+    @Getter
+    private int elided;
+
+    public CommandRecorder() {
+        sets = new long[MAX_SETS];
+        dynamicOffsets = new int[MAX_SETS];
+        dynamic = new boolean[MAX_SETS];
+        vertexBuffers = new long[MAX_BINDINGS];
+        vertexOffsets = new long[MAX_BINDINGS];
+        setBuffer = MemoryUtil.memAllocLong(MAX_SETS);
+        offsetBuffer = MemoryUtil.memAllocInt(MAX_SETS);
+        vertexBuffer = MemoryUtil.memAllocLong(MAX_BINDINGS);
+        vertexOffsetBuffer = MemoryUtil.memAllocLong(MAX_BINDINGS);
+        pushConstants = MemoryUtil.memAlloc(MAX_PUSH_CONSTANTS);
+        pushScratch = MemoryUtil.memAlloc(MAX_PUSH_CONSTANTS);
+    }
+
+    /**
+     * Forgets all bound state and resets the counters. Has to be called after {@link CommandBuffer#beginRec()}.
+     */
+    public void begin(VkCommandBuffer cmd) {
+        this.cmd = cmd;
+        pipeline = VK_NULL_HANDLE;
+        pipelineLayout = VK_NULL_HANDLE;
+        for (int i = 0; i < MAX_SETS; i++) {
+            sets[i] = VK_NULL_HANDLE;
+            dynamic[i] = false;
+        }
+        for (int i = 0; i < MAX_BINDINGS; i++) vertexBuffers[i] = VK_NULL_HANDLE;
+        dirtySetsMin = MAX_SETS;
+        dirtySetsMax = -1;
+        dirtyBindingsMin = MAX_BINDINGS;
+        dirtyBindingsMax = -1;
+        indexBuffer = VK_NULL_HANDLE;
+        pushSize = 0;
+        emitted = 0;
+        elided = 0;
+    }
+
+    public void bindPipeline(Pipeline pipeline) {
+        if (this.pipeline == pipeline.getPipeline()) {
+            elided++;
+            return;
+        }
+        vkCmdBindPipeline(cmd, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline.getPipeline());
+        emitted++;
+        this.pipeline = pipeline.getPipeline();
+        if (pipelineLayout != pipeline.getPipelineLayout()) {
+            pipelineLayout = pipeline.getPipelineLayout();
+            for (int i = 0; i < MAX_SETS; i++) {
+                if (sets[i] != VK_NULL_HANDLE) markSet(i);
+            }
+            pushSize = 0;
+        }
+    }
+
+    public void bindDescriptorSet(int slot, long set) {
+        if (sets[slot] == set && !dynamic[slot]) {
+            elided++;
+            return;
+        }
+        sets[slot] = set;
+        dynamic[slot] = false;
+        markSet(slot);
+    }
+
+    public void bindDescriptorSet(int slot, long set, int dynamicOffset) {
+        if (sets[slot] == set && dynamic[slot] && dynamicOffsets[slot] == dynamicOffset) {
+            elided++;
+            return;
+        }
+        sets[slot] = set;
+        dynamic[slot] = true;
+        dynamicOffsets[slot] = dynamicOffset;
+        markSet(slot);
+    }
+
+    private void markSet(int slot) {
+        dirtySetsMin = Math.min(dirtySetsMin, slot);
+        dirtySetsMax = Math.max(dirtySetsMax, slot);
+    }
+
+    public void bindVertexBuffer(int binding, long buffer, long offset) {
+        if (vertexBuffers[binding] == buffer && vertexOffsets[binding] == offset) {
+            elided++;
+            return;
+        }
+        vertexBuffers[binding] = buffer;
+        vertexOffsets[binding] = offset;
+        dirtyBindingsMin = Math.min(dirtyBindingsMin, binding);
+        dirtyBindingsMax = Math.max(dirtyBindingsMax, binding);
+    }
+
+    public void bindIndexBuffer(long buffer, long offset, int type) {
+        if (indexBuffer == buffer && indexOffset == offset && indexType == type) {
+            elided++;
+            return;
+        }
+        vkCmdBindIndexBuffer(cmd, buffer, offset, type);
+        emitted++;
+        indexBuffer = buffer;
+        indexOffset = offset;
+        indexType = type;
+    }
+
+    /**
+     * Pushes the matrix as vertex stage push constant at offset 0 unless the same matrix is already pushed.
+     */
+    public void pushMatrix(Matrix4f matrix) {
+        matrix.get(0, pushScratch);
+        pushScratch.limit(64);
+        pushConstants(VK_SHADER_STAGE_VERTEX_BIT, pushScratch);
+        pushScratch.clear();
+    }
+
+    public void pushConstants(int stages, ByteBuffer data) {
+        int size = data.remaining();
+        if (pushSize == size && pushConstants.limit(size).equals(data)) {
+            elided++;
+            return;
+        }
+        vkCmdPushConstants(cmd, pipelineLayout, stages, 0, data);
+        emitted++;
+        pushConstants.clear();
+        pushConstants.put(data.duplicate()).flip();
+        pushSize = size;
+    }
+
+    public void drawIndexed(int indexCount, int instanceCount, int firstIndex, int vertexOffset, int firstInstance) {
+        flush();
+        vkCmdDrawIndexed(cmd, indexCount, instanceCount, firstIndex, vertexOffset, firstInstance);
+        emitted++;
+    }
+
+    public void drawIndexedIndirect(long buffer, long offset, int drawCount, int stride) {
+        flush();
+        vkCmdDrawIndexedIndirect(cmd, buffer, offset, drawCount, stride);
+        emitted++;
+    }
+
+    private void flush() {
+        if (dirtySetsMax >= 0) {
+            setBuffer.clear();
+            offsetBuffer.clear();
+            for (int i = dirtySetsMin; i <= dirtySetsMax; i++) {
+                setBuffer.put(sets[i]);
+                if (dynamic[i]) offsetBuffer.put(dynamicOffsets[i]);
+            }
+            setBuffer.flip();
+            offsetBuffer.flip();
+            vkCmdBindDescriptorSets(cmd, VK_PIPELINE_BIND_POINT_GRAPHICS, pipelineLayout, dirtySetsMin, setBuffer, offsetBuffer);
+            emitted++;
+            dirtySetsMin = MAX_SETS;
+            dirtySetsMax = -1;
+        }
+        if (dirtyBindingsMax >= 0) {
+            vertexBuffer.clear();
+            vertexOffsetBuffer.clear();
+            for (int i = dirtyBindingsMin; i <= dirtyBindingsMax; i++) {
+                vertexBuffer.put(vertexBuffers[i]);
+                vertexOffsetBuffer.put(vertexOffsets[i]);
+            }
+            vertexBuffer.flip();
+            vertexOffsetBuffer.flip();
+            vkCmdBindVertexBuffers(cmd, dirtyBindingsMin, vertexBuffer, vertexOffsetBuffer);
+            emitted++;
+            dirtyBindingsMin = MAX_BINDINGS;
+            dirtyBindingsMax = -1;
+        }
+    }
+
+    public void close() {
+        MemoryUtil.memFree(setBuffer);
+        MemoryUtil.memFree(offsetBuffer);
+        MemoryUtil.memFree(vertexBuffer);
+        MemoryUtil.memFree(vertexOffsetBuffer);
+        MemoryUtil.memFree(pushConstants);
+        MemoryUtil.memFree(pushScratch);
+    }
+}
@@ -32,6 +32,10 @@ public class Fence {
         vkWaitForFences(device.getHandle(), handle, true, Long.MAX_VALUE);
     }
 
+    public boolean isSignaled(){
+        return vkGetFenceStatus(device.getHandle(), handle) == VK_SUCCESS;
+    }
+
     public long getHandle() {
         return handle;
     }
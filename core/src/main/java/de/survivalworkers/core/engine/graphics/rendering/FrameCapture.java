@@ -0,0 +1,150 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.vk.device.DeviceCapabilities;
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkBufferImageCopy;
+import org.lwjgl.vulkan.VkBufferMemoryBarrier;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkImageMemoryBarrier;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Consumer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Reads rendered frames back without stalling. Every frame in flight owns a host visible readback buffer, the copy of the color image is
+ * recorded into the frame's command buffer after the render pass and handed to the consumer when the frame comes around again, at which point
+ * {@link FrameScheduler#begin()} already waited for its fence. The pixels therefore arrive {@link FrameScheduler#getFramesInFlight()} frames
+ * late, but neither the CPU nor the GPU waits for them.
+ */
+public class FrameCapture {
+    private static final int PIXEL_SIZE = 4;
+
+    private final LogicalDevice device;
+    private final Consumer<CapturedFrame> consumer;
+    private final Slot[] slots;
+    private final int memoryFlags;
+    private long frameNumber;
+
+    /**
+     * @param consumer receives the frames on the render thread, it should only copy the pixels and do the slow work elsewhere
+     */
+    public FrameCapture(LogicalDevice device, int framesInFlight, Consumer<CapturedFrame> consumer) {
+        this.device = device;
+        this.consumer = consumer;
+        slots = new Slot[framesInFlight];
+        for (int i = 0; i < framesInFlight; i++) slots[i] = new Slot();
+        memoryFlags = readbackMemoryFlags(device.getPhysicalDevice().getCapabilities());
+    }
+
+    /**
+     * Hands the capture recorded the last time the frame was used to the consumer. The GPU must be done with the frame.
+     */
+    public void collect(int frameIndex) {
+        collect(slots[frameIndex]);
+    }
+
+    private void collect(Slot slot) {
+        if (!slot.pending) return;
+        slot.pending = false;
+        slot.buffer.invalidate();
+        long size = (long) slot.width * slot.height * PIXEL_SIZE;
+        consumer.accept(new CapturedFrame(slot.frameNumber, slot.width, slot.height, slot.format, MemoryUtil.memByteBuffer(slot.buffer.map(), (int) size)));
+    }
+
+    /**
+     * Hands all pending captures to the consumer in the order they were rendered, e.g. before capturing stops. The device must be idle.
+     */
+    public void collectAll() {
+        Arrays.stream(slots).filter(slot -> slot.pending).sorted(Comparator.comparingLong(slot -> slot.frameNumber)).forEach(this::collect);
+    }
+
+    /**
+     * Records the copy of the current image of {@code target} into the readback buffer of the frame. Has to be recorded after the render pass
+     * ended, the image is left in the render pass' final layout.
+     */
+    public void recordCopy(VkCommandBuffer cmd, RenderTarget target, int frameIndex) {
+        if (!target.isReadable()) throw new IllegalStateException("The render target does not support reading back its images");
+        Slot slot = slots[frameIndex];
+        if (slot.pending) throw new IllegalStateException("The last capture of frame " + frameIndex + " was not collected");
+        int width = target.getWidth();
+        int height = target.getHeight();
+        long size = (long) width * height * PIXEL_SIZE;
+        if (slot.buffer == null || slot.buffer.getRequestedSize() < size) {
+            if (slot.buffer != null) slot.buffer.close();
+            slot.buffer = new Buffer(device, size, VK_BUFFER_USAGE_TRANSFER_DST_BIT, memoryFlags);
+        }
+        long image = target.getImage(target.getImageIndex());
+        int finalLayout = target.getFinalLayout();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkImageMemoryBarrier.Buffer toTransfer = VkImageMemoryBarrier.calloc(1, stack).sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER).
+                    srcAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT).dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT).
+                    oldLayout(finalLayout).newLayout(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL).
+                    srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED).dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED).image(image).
+                    subresourceRange(it -> it.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).baseMipLevel(0).levelCount(1).baseArrayLayer(0).layerCount(1));
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, toTransfer);
+
+            VkBufferImageCopy.Buffer region = VkBufferImageCopy.calloc(1, stack).bufferOffset(0).bufferRowLength(0).bufferImageHeight(0).
+                    imageSubresource(it -> it.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).mipLevel(0).baseArrayLayer(0).layerCount(1)).
+                    imageOffset(it -> it.x(0).y(0).z(0)).imageExtent(it -> it.width(width).height(height).depth(1));
+            vkCmdCopyImageToBuffer(cmd, image, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, slot.buffer.getBuffer(), region);
+
+            VkBufferMemoryBarrier.Buffer toHost = VkBufferMemoryBarrier.calloc(1, stack).sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER).
+                    srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT).dstAccessMask(VK_ACCESS_HOST_READ_BIT).
+                    srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED).dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED).
+                    buffer(slot.buffer.getBuffer()).offset(0).size(VK_WHOLE_SIZE);
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0, null, toHost, null);
+
+            if (finalLayout != VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL) {
+                // the presentation engine waits on a semaphore, so only the layout has to be restored
+                VkImageMemoryBarrier.Buffer back = VkImageMemoryBarrier.calloc(1, stack).sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER).
+                        srcAccessMask(VK_ACCESS_TRANSFER_READ_BIT).dstAccessMask(0).
+                        oldLayout(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL).newLayout(finalLayout).
+                        srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED).dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED).image(image).
+                        subresourceRange(it -> it.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).baseMipLevel(0).levelCount(1).baseArrayLayer(0).layerCount(1));
+                vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, 0, null, null, back);
+            }
+        }
+        slot.pending = true;
+        slot.frameNumber = frameNumber++;
+        slot.width = width;
+        slot.height = height;
+        slot.format = target.getImageFormat();
+    }
+
+    /**
+     * The device must be idle, pending captures are dropped.
+     */
+    public void close() {
+        for (Slot slot : slots) {
+            if (slot.buffer != null) slot.buffer.close();
+            slot.buffer = null;
+            slot.pending = false;
+        }
+    }
+
+    /**
+     * Cached memory makes reading the pixels on the CPU much faster than the write combined memory uploads use, it is usually not coherent
+     * and has to be invalidated.
+     */
+    private static int readbackMemoryFlags(DeviceCapabilities capabilities) {
+        int cached = VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_CACHED_BIT;
+        for (int i = 0; i < capabilities.getMemoryTypeCount(); i++) {
+            if ((capabilities.getMemoryTypeFlags(i) & cached) == cached) return cached;
+        }
+        return VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT;
+    }
+
+    private static final class Slot {
+        private Buffer buffer;
+        private boolean pending;
+        private long frameNumber;
+        private int width;
+        private int height;
+        private int format;
+    }
+}
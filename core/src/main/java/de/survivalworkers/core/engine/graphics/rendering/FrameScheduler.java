@@ -0,0 +1,154 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import de.survivalworkers.core.vk.util.VkUtil;
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkQueue;
+import org.lwjgl.vulkan.VkSubmitInfo;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Cycles through a fixed number of frames in flight, independent of the number of swap chain images. Every frame owns the fence, acquire
+ * semaphore and primary command buffer of one submission, so the CPU records frame {@code n + 1} while the GPU renders frame {@code n} but
+ * never gets further ahead than {@link #getFramesInFlight()} frames. Resources written by the CPU every frame (uniforms, instance data) are
+ * kept once per frame and indexed with {@link Frame#getIndex()}.
+ * <p>
+ * The semaphores which the presentation waits on are kept once per swap chain image instead: the fence of a frame does not tell when the
+ * presentation engine consumed the wait, but an image is only acquired again after its previous presentation is done.
+ */
+public class FrameScheduler {
+    public static final int DEFAULT_FRAMES_IN_FLIGHT = 2;
+
+    private final LogicalDevice device;
+    private final Frame[] frames;
+    private Semaphore[] renderFinished;
+    private int current;
+    private int maxFramesAhead;
+
+    public FrameScheduler(LogicalDevice device, CommandPool commandPool) {
+        this(device, commandPool, DEFAULT_FRAMES_IN_FLIGHT);
+    }
+
+    public FrameScheduler(LogicalDevice device, CommandPool commandPool, int framesInFlight) {
+        if (framesInFlight < 1) throw new IllegalArgumentException("At least one frame in flight is required: " + framesInFlight);
+        this.device = device;
+        frames = new Frame[framesInFlight];
+        for (int i = 0; i < framesInFlight; i++) frames[i] = new Frame(i, device, commandPool);
+        current = framesInFlight - 1;
+        maxFramesAhead = framesInFlight;
+        renderFinished = new Semaphore[0];
+    }
+
+    /**
+     * Creates one render finished semaphore per swap chain image. Has to be called after the swap chain was created or recreated, while the
+     * device is idle.
+     */
+    public void setImageCount(int imageCount) {
+        if (imageCount == renderFinished.length) return;
+        for (Semaphore semaphore : renderFinished) semaphore.close();
+        renderFinished = new Semaphore[imageCount];
+        for (int i = 0; i < imageCount; i++) renderFinished[i] = new Semaphore(device);
+    }
+
+    /**
+     * The semaphore signaled by the submission which rendered into swap chain image {@code imageIndex}, for the presentation to wait on.
+     */
+    public Semaphore getRenderFinished(int imageIndex) {
+        return renderFinished[imageIndex];
+    }
+
+    /**
+     * Moves on to the next frame and waits until the GPU finished the last submission of it, after that all resources of the frame may be
+     * rewritten. With fewer frames ahead than in flight it also waits for the more recent frames, see {@link #setMaxFramesAhead(int)}.
+     */
+    public Frame begin() {
+        current = (current + 1) % frames.length;
+        for (int behind = maxFramesAhead; behind <= frames.length; behind++) frames[Math.floorMod(current - behind, frames.length)].fence.fenceWait();
+        return frames[current];
+    }
+
+    /**
+     * Limits how many submitted frames the GPU may still be working on when the CPU starts the next one. 1 makes the CPU wait for the previous
+     * frame before it records the next one, which trades throughput for the lowest latency.
+     */
+    public void setMaxFramesAhead(int maxFramesAhead) {
+        if (maxFramesAhead < 1 || maxFramesAhead > frames.length) throw new IllegalArgumentException("Frames ahead must be between 1 and " +
+                frames.length + ": " + maxFramesAhead);
+        this.maxFramesAhead = maxFramesAhead;
+    }
+
+    public int getMaxFramesAhead() {
+        return maxFramesAhead;
+    }
+
+    /**
+     * Submits the command buffer of a frame which is presented. It waits for the swap chain image to be acquired and signals
+     * {@link #getRenderFinished(int)} of the image for the presentation.
+     */
+    public void submit(VkQueue queue, Frame frame, int imageIndex) {
+        submit(queue, frame, renderFinished[imageIndex]);
+    }
+
+    /**
+     * Submits the command buffer of a frame which is not presented, e.g. for an {@link OffscreenTarget}, without any semaphores.
+     */
+    public void submit(VkQueue queue, Frame frame) {
+        submit(queue, frame, null);
+    }
+
+    private void submit(VkQueue queue, Frame frame, Semaphore presentWait) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkSubmitInfo submitInfo = VkSubmitInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_SUBMIT_INFO).
+                    pCommandBuffers(stack.pointers(frame.commandBuffer.getCmdBuf()));
+            if (presentWait != null) {
+                submitInfo.waitSemaphoreCount(1).pWaitSemaphores(stack.longs(frame.imageAcquired.getHandle())).
+                        pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)).
+                        pSignalSemaphores(stack.longs(presentWait.getHandle()));
+            }
+            frame.fence.reset();
+            VkUtil.check(vkQueueSubmit(queue, submitInfo, frame.fence.getHandle()), "Could not submit frame");
+        }
+    }
+
+    public Frame getCurrent() {
+        return frames[current];
+    }
+
+    public int getFramesInFlight() {
+        return frames.length;
+    }
+
+    public void close() {
+        device.waitIdle();
+        for (Frame frame : frames) frame.close();
+        for (Semaphore semaphore : renderFinished) semaphore.close();
+    }
+
+    public static final class Frame {
+        /**
+         * Position of the frame in the ring, between 0 and {@link #getFramesInFlight()}.
+         */
+        @Getter
+        private final int index;
+        private final Fence fence;
+        @Getter
+        private final Semaphore imageAcquired;
+        @Getter
+        private final CommandBuffer commandBuffer;
+
+        private Frame(int index, LogicalDevice device, CommandPool commandPool) {
+            this.index = index;
+            fence = new Fence(device, true);
+            imageAcquired = new Semaphore(device);
+            commandBuffer = new CommandBuffer(commandPool, true, true);
+        }
+
+        private void close() {
+            commandBuffer.close();
+            imageAcquired.close();
+            fence.close();
+        }
+    }
+}
@@ -5,7 +5,6 @@ import de.survivalworkers.core.vk.util.VkUtil;
 import de.survivalworkers.core.vk.device.LogicalDevice;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.VkImageCreateInfo;
-import org.lwjgl.vulkan.VkMemoryAllocateInfo;
 import org.lwjgl.vulkan.VkMemoryRequirements;
 
 import java.nio.LongBuffer;
@@ -17,7 +16,7 @@ public class Image {
     private final int format;
     private final int mipLvl;
     private final long image;
-    private final long memory;
+    private final MemoryAllocator.Allocation allocation;
 
     public Image(LogicalDevice device, ImageData data){
         this.device = device;
@@ -35,18 +34,15 @@ public class Image {
             VkMemoryRequirements memReq = VkMemoryRequirements.calloc(stack);
             vkGetImageMemoryRequirements(device.getHandle(),image,memReq);
 
-            VkMemoryAllocateInfo memAlloc = VkMemoryAllocateInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO).allocationSize(memReq.size()).
-                    memoryTypeIndex(Util.memoryType(device.getPhysicalDevice(),memReq.memoryTypeBits(),0));
-
-            VkUtil.check(vkAllocateMemory(device.getHandle(),memAlloc,null,lp),"Could not Allocate Memory");
-            memory = lp.get(0);
-            VkUtil.check(vkBindImageMemory(device.getHandle(),image,memory,0),"Could not bind memory");
+            allocation = device.getMemoryAllocator().allocate(Util.memoryType(device.getPhysicalDevice(),memReq.memoryTypeBits(),0),memReq.size(),
+                    memReq.alignment(),false);
+            VkUtil.check(vkBindImageMemory(device.getHandle(),image,allocation.getMemory(),allocation.getOffset()),"Could not bind memory");
         }
     }
 
     public void close() {
         vkDestroyImage(device.getHandle(),image,null);
-        vkFreeMemory(device.getHandle(),memory,null);
+        allocation.free();
     }
 
     public int getFormat() {
@@ -62,7 +58,11 @@ public class Image {
     }
 
     public long getMemory() {
-        return memory;
+        return allocation.getMemory();
+    }
+
+    public long getMemoryOffset() {
+        return allocation.getOffset();
     }
 
     public static class ImageData{
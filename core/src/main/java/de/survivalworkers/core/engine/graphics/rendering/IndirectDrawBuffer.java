@@ -0,0 +1,348 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.engine.graphics.scene.Entity;
+import de.survivalworkers.core.engine.graphics.scene.Scene;
+import de.survivalworkers.core.engine.graphics.scene.SceneListener;
+import de.survivalworkers.core.engine.graphics.vertex.Model;
+import de.survivalworkers.core.engine.graphics.vertex.VertexBufferStruct;
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkMemoryBarrier;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Persistent device local {@code VkDrawIndexedIndirectCommand} buffer with one command per mesh and a matching buffer of per instance
+ * model matrices. Every model owns a contiguous range of instances which all commands of its meshes point to via firstInstance, so adding,
+ * removing or moving an entity only touches its instance slot and the instanceCount of the commands of its model. Changed slots are
+ * written with {@code vkCmdUpdateBuffer} before the render pass, so recording cost depends on the number of changes, not on the scene size.
+ */
+public class IndirectDrawBuffer implements SceneListener {
+    public static final int COMMAND_SIZE = 20;
+    private static final int COMMAND_INTS = COMMAND_SIZE / 4;
+    private static final int MAX_UPDATE_SIZE = 65536;
+    private static final int MIN_RANGE = 16;
+
+    private final LogicalDevice device;
+    private final int retireFrames;
+    private final Map<String, ModelRange> ranges;
+    private final List<Retired> retired;
+    private final BitSet dirtyCommands;
+    private final BitSet dirtyInstances;
+    private final ByteBuffer scratch;
+    @Getter
+    private final List<Batch> batches;
+
+    private Buffer commandBuffer;
+    private Buffer instanceBuffer;
+    private int[] commands;
+    private Model.Mesh[] commandMeshes;
+    private int numCommands;
+    private Entity[] instances;
+    private int instanceTop;
+    private int instanceCapacity;
+
+    /**
+     * @param framesInFlight number of frames the GPU may still read from a buffer after it has been replaced
+     */
+    public IndirectDrawBuffer(LogicalDevice device, int framesInFlight) {
+        this.device = device;
+        this.retireFrames = framesInFlight + 1;
+        ranges = new HashMap<>();
+        retired = new ArrayList<>();
+        dirtyCommands = new BitSet();
+        dirtyInstances = new BitSet();
+        batches = new ArrayList<>();
+        scratch = MemoryUtil.memAlloc(MAX_UPDATE_SIZE);
+        commands = new int[0];
+        commandMeshes = new Model.Mesh[0];
+        instances = new Entity[0];
+    }
+
+    /**
+     * Lays out the commands of all models that are not yet known, grouped by material, and collects their entities from the scene.
+     */
+    public void registerModels(List<Model> models, Scene scene) {
+        int needed = numCommands;
+        for (Model model : models) {
+            if (ranges.containsKey(model.getModelId())) continue;
+            for (Model.Material material : model.getMaterials()) needed += material.meshes().size();
+        }
+        if (needed * COMMAND_INTS > commands.length) {
+            commands = Arrays.copyOf(commands, needed * COMMAND_INTS);
+            commandMeshes = Arrays.copyOf(commandMeshes, needed);
+            retire(commandBuffer);
+            commandBuffer = new Buffer(device, (long) needed * COMMAND_SIZE, VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                    VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+            dirtyCommands.set(0, numCommands);
+        }
+
+        for (Model model : models) {
+            if (ranges.containsKey(model.getModelId())) continue;
+            ModelRange range = new ModelRange();
+            range.firstCommand = numCommands;
+            for (Model.Material material : model.getMaterials()) {
+                for (Model.Mesh mesh : material.meshes()) {
+                    commandMeshes[numCommands] = mesh;
+                    int c = numCommands++ * COMMAND_INTS;
+                    commands[c] = mesh.numIndices();
+                    commands[c + 2] = mesh.firstIndex();
+                    commands[c + 3] = mesh.vertexOffset();
+                    addToBatch(material, mesh, c / COMMAND_INTS);
+                }
+            }
+            range.numCommands = numCommands - range.firstCommand;
+            ranges.put(model.getModelId(), range);
+
+            List<Entity> entities = scene.get(model.getModelId());
+            if (entities != null) entities.forEach(this::entityAdded);
+            writeRangeCommands(range);
+        }
+    }
+
+    /**
+     * Rewrites the first index and vertex offset of all commands, after the meshes were moved inside their arena.
+     */
+    public void meshesMoved() {
+        for (int i = 0; i < numCommands; i++) {
+            commands[i * COMMAND_INTS + 2] = commandMeshes[i].firstIndex();
+            commands[i * COMMAND_INTS + 3] = commandMeshes[i].vertexOffset();
+        }
+        dirtyCommands.set(0, numCommands);
+    }
+
+    private void addToBatch(Model.Material material, Model.Mesh mesh, int command) {
+        if (!batches.isEmpty()) {
+            Batch last = batches.get(batches.size() - 1);
+            if (last.material == material && last.mesh.verticesBuffer() == mesh.verticesBuffer() && last.mesh.indicesBuffer() == mesh.indicesBuffer() &&
+                    last.firstCommand + last.drawCount == command) {
+                last.drawCount++;
+                return;
+            }
+        }
+        batches.add(new Batch(material, mesh, command, 1));
+    }
+
+    @Override
+    public void entityAdded(Entity entity) {
+        ModelRange range = ranges.get(entity.getModelId());
+        if (range == null || range.slots.containsKey(entity)) return;
+        if (range.count == range.capacity) grow(range);
+        int slot = range.start + range.count;
+        range.slots.put(entity, range.count);
+        instances[slot] = entity;
+        range.count++;
+        dirtyInstances.set(slot);
+        writeRangeCommands(range);
+    }
+
+    @Override
+    public void entityRemoved(Entity entity) {
+        ModelRange range = ranges.get(entity.getModelId());
+        if (range == null) return;
+        Integer index = range.slots.remove(entity);
+        if (index == null) return;
+        int last = range.count - 1;
+        if (index != last) {
+            Entity moved = instances[range.start + last];
+            instances[range.start + index] = moved;
+            range.slots.put(moved, index);
+            dirtyInstances.set(range.start + index);
+        }
+        instances[range.start + last] = null;
+        range.count--;
+        writeRangeCommands(range);
+    }
+
+    @Override
+    public void entityUpdated(Entity entity) {
+        ModelRange range = ranges.get(entity.getModelId());
+        if (range == null) return;
+        Integer index = range.slots.get(entity);
+        if (index != null) dirtyInstances.set(range.start + index);
+    }
+
+    @Override
+    public void entitiesCleared() {
+        for (ModelRange range : ranges.values()) {
+            Arrays.fill(instances, range.start, range.start + range.count, null);
+            range.slots.clear();
+            range.count = 0;
+            writeRangeCommands(range);
+        }
+    }
+
+    private void grow(ModelRange range) {
+        int capacity = Math.max(MIN_RANGE, range.capacity * 2);
+        if (instanceTop + capacity > instanceCapacity) {
+            repack(range, capacity);
+            return;
+        }
+        System.arraycopy(instances, range.start, instances, instanceTop, range.count);
+        Arrays.fill(instances, range.start, range.start + range.count, null);
+        range.start = instanceTop;
+        range.capacity = capacity;
+        instanceTop += capacity;
+        dirtyInstances.set(range.start, range.start + range.count);
+        writeRangeCommands(range);
+    }
+
+    /**
+     * Packs all ranges tightly into a new, larger instance buffer. Only happens when the buffer runs out of space.
+     */
+    private void repack(ModelRange growing, int growingCapacity) {
+        int total = 0;
+        for (ModelRange range : ranges.values()) total += range == growing ? growingCapacity : Math.max(MIN_RANGE, range.count);
+        int capacity = Math.max(total * 2, instanceCapacity);
+        Entity[] packed = new Entity[capacity];
+        int top = 0;
+        for (ModelRange range : ranges.values()) {
+            System.arraycopy(instances, range.start, packed, top, range.count);
+            range.start = top;
+            range.capacity = range == growing ? growingCapacity : Math.max(MIN_RANGE, range.count);
+            top += range.capacity;
+            writeRangeCommands(range);
+        }
+        instances = packed;
+        instanceTop = top;
+        instanceCapacity = capacity;
+        retire(instanceBuffer);
+        instanceBuffer = new Buffer(device, (long) capacity * VertexBufferStruct.INSTANCE_STRIDE, VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+        dirtyInstances.clear();
+        for (ModelRange range : ranges.values()) dirtyInstances.set(range.start, range.start + range.count);
+    }
+
+    private void writeRangeCommands(ModelRange range) {
+        for (int i = range.firstCommand; i < range.firstCommand + range.numCommands; i++) {
+            commands[i * COMMAND_INTS + 1] = range.count;
+            commands[i * COMMAND_INTS + 4] = range.start;
+        }
+        dirtyCommands.set(range.firstCommand, range.firstCommand + range.numCommands);
+    }
+
+    private void retire(Buffer buffer) {
+        if (buffer != null) retired.add(new Retired(buffer, retireFrames));
+    }
+
+    /**
+     * Writes all changed slots into the GPU buffers. Has to be recorded outside a render pass, before the draws of the frame.
+     */
+    public void recordUpdates(VkCommandBuffer cmd) {
+        for (Iterator<Retired> it = retired.iterator(); it.hasNext(); ) {
+            Retired r = it.next();
+            if (--r.frames <= 0) {
+                r.buffer.close();
+                it.remove();
+            }
+        }
+        if (dirtyCommands.isEmpty() && dirtyInstances.isEmpty()) return;
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.calloc(1, stack).sType$Default();
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_VERTEX_INPUT_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, barrier, null, null);
+
+            for (int i = dirtyCommands.nextSetBit(0); i >= 0 && i < numCommands; ) {
+                int end = dirtyCommands.nextClearBit(i);
+                end = Math.min(Math.min(end, numCommands), i + MAX_UPDATE_SIZE / COMMAND_SIZE);
+                scratch.clear();
+                scratch.asIntBuffer().put(commands, i * COMMAND_INTS, (end - i) * COMMAND_INTS);
+                scratch.limit((end - i) * COMMAND_SIZE);
+                vkCmdUpdateBuffer(cmd, commandBuffer.getBuffer(), (long) i * COMMAND_SIZE, scratch);
+                i = dirtyCommands.nextSetBit(end);
+            }
+            dirtyCommands.clear();
+
+            for (int i = dirtyInstances.nextSetBit(0); i >= 0; ) {
+                int end = Math.min(dirtyInstances.nextClearBit(i), i + MAX_UPDATE_SIZE / VertexBufferStruct.INSTANCE_STRIDE);
+                scratch.clear();
+                for (int j = i; j < end; j++) {
+                    if (instances[j] != null) instances[j].getModelMatrix((j - i) * VertexBufferStruct.INSTANCE_STRIDE, scratch);
+                }
+                scratch.limit((end - i) * VertexBufferStruct.INSTANCE_STRIDE);
+                vkCmdUpdateBuffer(cmd, instanceBuffer.getBuffer(), (long) i * VertexBufferStruct.INSTANCE_STRIDE, scratch);
+                i = dirtyInstances.nextSetBit(end);
+            }
+            dirtyInstances.clear();
+
+            barrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT).dstAccessMask(VK_ACCESS_INDIRECT_COMMAND_READ_BIT | VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT);
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_VERTEX_INPUT_BIT, 0, barrier, null, null);
+        }
+    }
+
+    /**
+     * Records the draws of one batch. Without the multiDrawIndirect feature the commands are issued one by one.
+     */
+    public void recordBatch(CommandRecorder recorder, Batch batch, boolean multiDraw) {
+        if (multiDraw) {
+            recorder.drawIndexedIndirect(commandBuffer.getBuffer(), (long) batch.firstCommand * COMMAND_SIZE, batch.drawCount, COMMAND_SIZE);
+        } else {
+            for (int i = 0; i < batch.drawCount; i++) {
+                recorder.drawIndexedIndirect(commandBuffer.getBuffer(), (long) (batch.firstCommand + i) * COMMAND_SIZE, 1, COMMAND_SIZE);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return instanceBuffer == null || commandBuffer == null;
+    }
+
+    public long getInstanceBuffer() {
+        return instanceBuffer.getBuffer();
+    }
+
+    public void close() {
+        retired.forEach(r -> r.buffer.close());
+        retired.clear();
+        if (commandBuffer != null) commandBuffer.close();
+        if (instanceBuffer != null) instanceBuffer.close();
+        MemoryUtil.memFree(scratch);
+    }
+
+    public static class Batch {
+        @Getter
+        private final Model.Material material;
+        @Getter
+        private final Model.Mesh mesh;
+        @Getter
+        private final int firstCommand;
+        @Getter
+        private int drawCount;
+
+        private Batch(Model.Material material, Model.Mesh mesh, int firstCommand, int drawCount) {
+            this.material = material;
+            this.mesh = mesh;
+            this.firstCommand = firstCommand;
+            this.drawCount = drawCount;
+        }
+    }
+
+    private static class ModelRange {
+        private final Map<Entity, Integer> slots;
+        private int firstCommand;
+        private int numCommands;
+        private int start;
+        private int capacity;
+        private int count;
+
+        private ModelRange() {
+            slots = new HashMap<>();
+        }
+    }
+
+    private static class Retired {
+        private final Buffer buffer;
+        private int frames;
+
+        private Retired(Buffer buffer, int frames) {
+            this.buffer = buffer;
+            this.frames = frames;
+        }
+    }
+}
@@ -73,6 +73,13 @@ public class Instance implements Closeable {
     VkInstance handle;
 
     public Instance(String name) {
+        this(name, true);
+    }
+
+    /**
+     * @param surface whether the instance presents to a GLFW window, without GLFW is not needed
+     */
+    public Instance(String name, boolean surface) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             ByteBuffer pName = stack.ASCII(name);
             VkApplicationInfo appInfo = VkApplicationInfo.malloc(stack)
@@ -84,7 +91,7 @@ public class Instance implements Closeable {
                     .engineVersion(0)
                     .apiVersion(VK_API_VERSION_1_0);
 
-            PointerBuffer glfwExtensions = glfwGetRequiredInstanceExtensions();
+            PointerBuffer glfwExtensions = surface ? glfwGetRequiredInstanceExtensions() : stack.mallocPointer(0);
             if ( glfwExtensions != null : "Failed to get GLFW instance extensions";
 
             PointerBuffer requiredExtensions;
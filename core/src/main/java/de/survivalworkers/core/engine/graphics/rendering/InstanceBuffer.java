@@ -0,0 +1,99 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.engine.graphics.scene.Entity;
+import de.survivalworkers.core.engine.graphics.scene.SceneUpdater;
+import de.survivalworkers.core.engine.graphics.vertex.VertexBufferStruct;
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Host visible vertex buffer holding one model matrix per instance. It is filled once per frame and bound to
+ * {@link VertexBufferStruct#INSTANCE_BINDING}, the offset into it is passed as firstInstance of the draw.
+ */
+public class InstanceBuffer {
+    private static final int MIN_CAPACITY = 64;
+
+    private final LogicalDevice device;
+    private Buffer buffer;
+    private int capacity;
+    private int count;
+    private ByteBuffer mapped;
+
+    public InstanceBuffer(LogicalDevice device, int capacity) {
+        this.device = device;
+        allocate(Math.max(capacity, MIN_CAPACITY));
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        buffer = new Buffer(device, (long) capacity * VertexBufferStruct.INSTANCE_STRIDE, VK_BUFFER_USAGE_VERTEX_BUFFER_BIT,
+                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+    }
+
+    /**
+     * Starts a new frame. Must only be called once the GPU finished the frame which last used this buffer, because it may
+     * be recreated to hold {@code instances} matrices.
+     */
+    public void begin(int instances) {
+        if (instances > capacity) {
+            buffer.close();
+            allocate(Math.max(instances, capacity * 2));
+        }
+        count = 0;
+        mapped = MemoryUtil.memByteBuffer(buffer.map(), (int) buffer.getRequestedSize());
+    }
+
+    /**
+     * Appends the model matrices of all entities.
+     *
+     * @return the index of the first written instance
+     */
+    public int put(List<Entity> entities) {
+        int first = count;
+        pack(entities, mapped, first);
+        count += entities.size();
+        return first;
+    }
+
+    /**
+     * Appends the model matrices of the entities at the given indices, written in parallel by the updater.
+     *
+     * @return the index of the first written instance
+     */
+    public int put(List<Entity> entities, int[] indices, int numIndices, SceneUpdater updater) {
+        int first = count;
+        updater.writeMatrices(entities, indices, numIndices, mapped, first * VertexBufferStruct.INSTANCE_STRIDE);
+        count += numIndices;
+        return first;
+    }
+
+    public void end() {
+        buffer.unMap();
+        mapped = null;
+    }
+
+    public static void pack(List<Entity> entities, ByteBuffer dst, int firstInstance) {
+        int offset = firstInstance * VertexBufferStruct.INSTANCE_STRIDE;
+        for (int i = 0; i < entities.size(); i++) {
+            entities.get(i).getModelMatrix(offset, dst);
+            offset += VertexBufferStruct.INSTANCE_STRIDE;
+        }
+    }
+
+    public void close() {
+        buffer.close();
+    }
+
+    public long getBuffer() {
+        return buffer.getBuffer();
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
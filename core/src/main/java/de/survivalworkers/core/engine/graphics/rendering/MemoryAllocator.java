@@ -0,0 +1,286 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Sub-allocates device memory. Memory is reserved in large blocks per memory type and handed out as aligned ranges by a buddy allocator
+ * inside each block, so creating a buffer or image no longer costs a {@code vkAllocateMemory} call and stays far below the allocation limit
+ * of the device. Linear resources (buffers) and optimal resources (images) never share a block, which keeps them apart by more than the
+ * buffer image granularity. Requests larger than a block get a dedicated allocation.
+ */
+@Slf4j
+public class MemoryAllocator {
+    public static final long DEFAULT_BLOCK_SIZE = 64L << 20;
+    public static final long MIN_ALLOCATION = 256;
+
+    private final MemoryBackend backend;
+    @Getter
+    private final long blockSize;
+    private final int maxOrder;
+    private final List<List<Block>> pools;
+
+    public MemoryAllocator(MemoryBackend backend) {
+        this(backend, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize the size of the blocks reserved from the device, a power of two and at least {@link #MIN_ALLOCATION}
+     */
+    public MemoryAllocator(MemoryBackend backend, long blockSize) {
+        if (Long.bitCount(blockSize) != 1 || blockSize < MIN_ALLOCATION) throw new IllegalArgumentException("Block size must be a power of two >= " +
+                MIN_ALLOCATION + ": " + blockSize);
+        this.backend = backend;
+        this.blockSize = blockSize;
+        maxOrder = Long.numberOfTrailingZeros(blockSize / MIN_ALLOCATION);
+        pools = new ArrayList<>();
+    }
+
+    /**
+     * @param linear whether the memory is for a buffer or a linear image, as opposed to an optimal tiled image
+     */
+    public synchronized Allocation allocate(int memoryType, long size, long alignment, boolean linear) {
+        if (size <= 0) throw new IllegalArgumentException("Size must be positive: " + size);
+        if (alignment <= 0 || Long.bitCount(alignment) != 1) throw new IllegalArgumentException("Alignment must be a power of two: " + alignment);
+        long rounded = Math.max(MIN_ALLOCATION, Math.max(alignment, Long.highestOneBit(size - 1) << 1));
+        if (rounded > blockSize) {
+            List<Block> pool = pool(memoryType, linear);
+            Block block = new Block(pool, memoryType, backend.allocate(memoryType, size), size, -1);
+            pool.add(block);
+            block.used = size;
+            block.allocations = 1;
+            return new Allocation(this, block, 0, size, -1);
+        }
+
+        int order = Long.numberOfTrailingZeros(rounded / MIN_ALLOCATION);
+        List<Block> pool = pool(memoryType, linear);
+        for (Block block : pool) {
+            long offset = block.allocate(order);
+            if (offset >= 0) return new Allocation(this, block, offset, size, order);
+        }
+        Block block = new Block(pool, memoryType, backend.allocate(memoryType, blockSize), blockSize, maxOrder);
+        pool.add(block);
+        return new Allocation(this, block, block.allocate(order), size, order);
+    }
+
+    public synchronized void free(Allocation allocation) {
+        if (allocation.freed) throw new IllegalStateException("Allocation was already freed");
+        allocation.freed = true;
+        Block block = allocation.block;
+        if (block.released) return;
+        List<Block> pool = block.pool;
+        if (allocation.order < 0) {
+            pool.remove(block);
+            block.close();
+            return;
+        }
+        block.free(allocation.offset, allocation.order);
+        if (block.allocations == 0) {
+            for (Block other : pool) {
+                if (other != block && other.allocations == 0) {
+                    pool.remove(block);
+                    block.close();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the host address of the allocation. The block is mapped as a whole the first time one of its allocations is mapped and stays
+     * mapped until it is released, since Vulkan allows only one mapping per memory object.
+     */
+    public synchronized long map(Allocation allocation) {
+        Block block = allocation.block;
+        if (block.mapped == 0) block.mapped = backend.map(block.memory, block.size);
+        return block.mapped + allocation.offset;
+    }
+
+    /**
+     * @return one entry per memory heap
+     */
+    public synchronized List<HeapStats> getStats() {
+        long[] reserved = new long[backend.heapCount()], used = new long[reserved.length], free = new long[reserved.length], largest =
+                new long[reserved.length];
+        int[] allocations = new int[reserved.length], blocks = new int[reserved.length];
+        for (List<Block> pool : pools) {
+            if (pool == null) continue;
+            for (Block block : pool) {
+                int heap = backend.heapIndex(block.memoryType);
+                reserved[heap] += block.size;
+                used[heap] += block.used;
+                allocations[heap] += block.allocations;
+                blocks[heap]++;
+                if (block.maxOrder >= 0) {
+                    free[heap] += block.size - block.used;
+                    largest[heap] = Math.max(largest[heap], block.largestFree());
+                }
+            }
+        }
+        List<HeapStats> stats = new ArrayList<>(reserved.length);
+        for (int i = 0; i < reserved.length; i++) {
+            float fragmentation = free[i] == 0 ? 0 : 1 - (float) largest[i] / free[i];
+            stats.add(new HeapStats(i, reserved[i], used[i], allocations[i], blocks[i], fragmentation));
+        }
+        return stats;
+    }
+
+    /**
+     * Releases all blocks, allocations which were not freed become invalid and freeing them does nothing.
+     */
+    public synchronized void close() {
+        int leaked = 0;
+        for (List<Block> pool : pools) {
+            if (pool == null) continue;
+            for (Block block : pool) {
+                leaked += block.allocations;
+                block.close();
+            }
+            pool.clear();
+        }
+        if (leaked > 0) log.warn("{} device memory allocations were not freed", leaked);
+    }
+
+    private List<Block> pool(int memoryType, boolean linear) {
+        int index = memoryType * 2 + (linear ? 0 : 1);
+        while (pools.size() <= index) pools.add(null);
+        List<Block> pool = pools.get(index);
+        if (pool == null) {
+            pool = new ArrayList<>();
+            pools.set(index, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * One memory object of the device. Free ranges are kept in one bit set per order, bit {@code i} of order {@code k} stands for the range at
+     * {@code i * (MIN_ALLOCATION << k)}.
+     */
+    private final class Block {
+        final List<Block> pool;
+        final int memoryType;
+        final long memory;
+        final long size;
+        final int maxOrder;
+        final BitSet[] free;
+        final int[] freeCount;
+        long mapped;
+        long used;
+        int allocations;
+        boolean released;
+
+        Block(List<Block> pool, int memoryType, long memory, long size, int maxOrder) {
+            this.pool = pool;
+            this.memoryType = memoryType;
+            this.memory = memory;
+            this.size = size;
+            this.maxOrder = maxOrder;
+            free = new BitSet[maxOrder + 1];
+            freeCount = new int[maxOrder + 1];
+            for (int i = 0; i <= maxOrder; i++) free[i] = new BitSet();
+            if (maxOrder >= 0) {
+                free[maxOrder].set(0);
+                freeCount[maxOrder] = 1;
+            }
+        }
+
+        long allocate(int order) {
+            int k = order;
+            while (k <= maxOrder && freeCount[k] == 0) k++;
+            if (k > maxOrder) return -1;
+            int index = free[k].nextSetBit(0);
+            free[k].clear(index);
+            freeCount[k]--;
+            while (k > order) {
+                k--;
+                index <<= 1;
+                free[k].set(index + 1);
+                freeCount[k]++;
+            }
+            used += MIN_ALLOCATION << order;
+            allocations++;
+            return (long) index * (MIN_ALLOCATION << order);
+        }
+
+        void free(long offset, int order) {
+            used -= MIN_ALLOCATION << order;
+            allocations--;
+            int index = (int) (offset / (MIN_ALLOCATION << order));
+            while (order < maxOrder && free[order].get(index ^ 1)) {
+                free[order].clear(index ^ 1);
+                freeCount[order]--;
+                index >>= 1;
+                order++;
+            }
+            free[order].set(index);
+            freeCount[order]++;
+        }
+
+        long largestFree() {
+            for (int k = maxOrder; k >= 0; k--) {
+                if (freeCount[k] > 0) return MIN_ALLOCATION << k;
+            }
+            return 0;
+        }
+
+        void close() {
+            if (mapped != 0) backend.unmap(memory);
+            mapped = 0;
+            backend.free(memory);
+            released = true;
+        }
+    }
+
+    /**
+     * A range of device memory, bind resources with {@link #getMemory()} and {@link #getOffset()}.
+     */
+    public static final class Allocation {
+        private final MemoryAllocator allocator;
+        private final Block block;
+        @Getter
+        private final long offset;
+        @Getter
+        private final long size;
+        private final int order;
+        private boolean freed;
+
+        private Allocation(MemoryAllocator allocator, Block block, long offset, long size, int order) {
+            this.allocator = allocator;
+            this.block = block;
+            this.offset = offset;
+            this.size = size;
+            this.order = order;
+        }
+
+        public long getMemory() {
+            return block.memory;
+        }
+
+        public int getMemoryType() {
+            return block.memoryType;
+        }
+
+        public boolean isDedicated() {
+            return order < 0;
+        }
+
+        public long map() {
+            return allocator.map(this);
+        }
+
+        public void free() {
+            allocator.free(this);
+        }
+    }
+
+    /**
+     * Usage of one memory heap. {@code fragmentation} is {@code 1 - largest free range / free bytes} over the sub-allocated blocks, 0 means all
+     * free memory is usable for a single allocation.
+     */
+    public record HeapStats(int heap, long reservedBytes, long usedBytes, int allocations, int blocks, float fragmentation) {
+    }
+}
@@ -0,0 +1,25 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+/**
+ * The device memory calls used by {@link MemoryAllocator}, so the allocator can run against a fake device in tests.
+ */
+public interface MemoryBackend {
+    /**
+     * @return the handle of the new memory
+     * @throws RuntimeException if the memory could not be allocated
+     */
+    long allocate(int memoryType, long size);
+
+    void free(long memory);
+
+    /**
+     * Maps the whole memory and returns the host address of it.
+     */
+    long map(long memory, long size);
+
+    void unmap(long memory);
+
+    int heapIndex(int memoryType);
+
+    int heapCount();
+}
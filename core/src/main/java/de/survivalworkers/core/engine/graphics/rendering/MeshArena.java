@@ -0,0 +1,292 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.engine.graphics.vertex.VertexBufferStruct;
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCopy;
+import org.lwjgl.vulkan.VkQueue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Packs the vertices and indices of all meshes into a few large device local buffers. Every mesh gets a {@link Range} with its first index
+ * and vertex offset inside one page, so meshes of different models are drawn without rebinding buffers. Meshes with 16 bit indices live in
+ * pages of their own, since the index type is bound with the index buffer. Freed ranges are reused once the frames in flight which may still
+ * draw them are done, see {@link #update()}, and {@link #compact(CommandPool, VkQueue)} moves all live ranges into one tightly packed page per
+ * index type.
+ */
+@Slf4j
+public class MeshArena {
+    public static final int DEFAULT_PAGE_VERTICES = 1 << 20;
+    public static final int DEFAULT_PAGE_INDICES = 3 << 20;
+    public static final int INDEX_SIZE = 4;
+    public static final int SHORT_INDEX_SIZE = 2;
+
+    private final LogicalDevice device;
+    private final int framesInFlight;
+    private final int pageVertices;
+    private final int pageIndices;
+    private final List<Page> pages;
+    private final Set<Range> ranges;
+    private final List<Retired> retired;
+
+    public MeshArena(LogicalDevice device, int framesInFlight) {
+        this(device, framesInFlight, DEFAULT_PAGE_VERTICES, DEFAULT_PAGE_INDICES);
+    }
+
+    /**
+     * @param framesInFlight number of frames which may still draw a freed range
+     * @param pageVertices   number of vertices of a page, larger meshes get a page of their own
+     * @param pageIndices    number of indices of a page
+     */
+    public MeshArena(LogicalDevice device, int framesInFlight, int pageVertices, int pageIndices) {
+        this.device = device;
+        this.framesInFlight = framesInFlight;
+        this.pageVertices = pageVertices;
+        this.pageIndices = pageIndices;
+        pages = new ArrayList<>();
+        ranges = new LinkedHashSet<>();
+        retired = new ArrayList<>();
+    }
+
+    /**
+     * Reserves space for one mesh with 32 bit indices, the data has to be copied to {@link Range#getVertexByteOffset()} and
+     * {@link Range#getIndexByteOffset()}.
+     */
+    public Range allocate(int vertexCount, int indexCount) {
+        return allocate(vertexCount, indexCount, false);
+    }
+
+    /**
+     * @param shortIndices whether the mesh has 16 bit indices
+     */
+    public synchronized Range allocate(int vertexCount, int indexCount, boolean shortIndices) {
+        int indexSize = shortIndices ? SHORT_INDEX_SIZE : INDEX_SIZE;
+        for (Page page : pages) {
+            if (page.indexSize != indexSize) continue;
+            Range range = page.allocate(vertexCount, indexCount);
+            if (range != null) return range;
+        }
+        Page page = new Page(Math.max(pageVertices, vertexCount), Math.max(pageIndices, indexCount), indexSize);
+        pages.add(page);
+        return page.allocate(vertexCount, indexCount);
+    }
+
+    /**
+     * The range is given back to its page only after {@link #update()} was called for every frame in flight, the frames recorded until now
+     * may still draw it.
+     */
+    synchronized void free(Range range) {
+        if (!ranges.remove(range)) return;
+        retired.add(new Retired(range, framesInFlight));
+    }
+
+    /**
+     * Has to be called by the render thread once per frame, after {@link FrameScheduler#begin()} returned. Releases the ranges which no frame
+     * in flight can draw anymore.
+     */
+    public synchronized void update() {
+        for (Iterator<Retired> it = retired.iterator(); it.hasNext(); ) {
+            Retired r = it.next();
+            if (--r.frames > 0) continue;
+            Page page = r.range.page;
+            page.vertices.free(r.range.firstVertex, r.range.vertexCount);
+            page.indices.free(r.range.firstIndex, r.range.indexCount);
+            it.remove();
+        }
+    }
+
+    /**
+     * Whether {@link #compact(CommandPool, VkQueue)} would free any memory or reduce the number of pages.
+     */
+    public synchronized boolean isFragmented() {
+        boolean shortPage = false, intPage = false;
+        for (Page page : pages) {
+            if (!page.vertices.isPacked() || !page.indices.isPacked()) return true;
+            if (page.indexSize == SHORT_INDEX_SIZE ? shortPage : intPage) return true;
+            if (page.indexSize == SHORT_INDEX_SIZE) shortPage = true;
+            else intPage = true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies all live ranges into one new page per index type and releases the old pages. Waits until the device is idle, since frames in flight may still
+     * read from the old pages, so it is meant for level changes and unloading. Has to be called by the render thread between frames, nothing
+     * may be recorded against the old pages meanwhile. The first index and vertex offset of every range change, draws which stored them
+     * (indirect commands) have to be rebuilt. Uploads queued but not yet submitted land in the new place, since
+     * {@link UploadService#copyVertices(StagingRing.Region, Range)} looks the range up at submit time.
+     */
+    public synchronized void compact(CommandPool commandPool, VkQueue queue) {
+        if (!isFragmented()) return;
+        int[] liveVertices = new int[2], liveIndices = new int[2];
+        for (Range range : ranges) {
+            int type = range.page.indexSize == SHORT_INDEX_SIZE ? 1 : 0;
+            liveVertices[type] += range.vertexCount;
+            liveIndices[type] += range.indexCount;
+        }
+        Page[] targets = new Page[2];
+        for (int type = 0; type < 2; type++) {
+            if (liveVertices[type] > 0 || liveIndices[type] > 0) targets[type] = new Page(Math.max(pageVertices, liveVertices[type]),
+                    Math.max(pageIndices, liveIndices[type]), type == 1 ? SHORT_INDEX_SIZE : INDEX_SIZE);
+        }
+        List<Page> old = new ArrayList<>(pages);
+
+        CommandBuffer cmd = new CommandBuffer(commandPool, true, true);
+        cmd.beginRec();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkBufferCopy.Buffer region = VkBufferCopy.calloc(1, stack);
+            for (Range range : ranges) {
+                Page source = range.page;
+                Page target = targets[source.indexSize == SHORT_INDEX_SIZE ? 1 : 0];
+                int firstVertex = target.vertices.allocate(range.vertexCount);
+                int firstIndex = target.indices.allocate(range.indexCount);
+                if (range.vertexCount > 0) {
+                    region.srcOffset(range.getVertexByteOffset()).dstOffset((long) firstVertex * VertexBufferStruct.VERTEX_SIZE).
+                            size((long) range.vertexCount * VertexBufferStruct.VERTEX_SIZE);
+                    vkCmdCopyBuffer(cmd.getCmdBuf(), source.vertexBuffer.getBuffer(), target.vertexBuffer.getBuffer(), region);
+                }
+                if (range.indexCount > 0) {
+                    region.srcOffset(range.getIndexByteOffset()).dstOffset((long) firstIndex * source.indexSize).size((long) range.indexCount * source.indexSize);
+                    vkCmdCopyBuffer(cmd.getCmdBuf(), source.indexBuffer.getBuffer(), target.indexBuffer.getBuffer(), region);
+                }
+                range.page = target;
+                range.firstVertex = firstVertex;
+                range.firstIndex = firstIndex;
+            }
+        }
+        cmd.endRec();
+        device.waitIdle();
+        cmd.submitAndWait(queue);
+        cmd.close();
+        // the device is idle and the retired ranges were all in the old pages
+        retired.clear();
+
+        old.forEach(Page::close);
+        pages.clear();
+        for (Page target : targets) {
+            if (target != null) pages.add(target);
+        }
+        log.debug("Compacted {} meshes from {} pages into {}", ranges.size(), old.size(), pages.size());
+    }
+
+    public synchronized int getPageCount() {
+        return pages.size();
+    }
+
+    public synchronized void close() {
+        pages.forEach(Page::close);
+        pages.clear();
+        ranges.clear();
+        retired.clear();
+    }
+
+    private static class Retired {
+        private final Range range;
+        private int frames;
+
+        private Retired(Range range, int frames) {
+            this.range = range;
+            this.frames = frames;
+        }
+    }
+
+    /**
+     * The place of one mesh in the arena. Vertices start at {@link #getFirstVertex()}, which is the vertexOffset of an indexed draw, and the
+     * indices at {@link #getFirstIndex()}, which is its firstIndex.
+     */
+    public final class Range {
+        private Page page;
+        @Getter
+        private int firstVertex;
+        @Getter
+        private final int vertexCount;
+        @Getter
+        private int firstIndex;
+        @Getter
+        private final int indexCount;
+
+        private Range(Page page, int firstVertex, int vertexCount, int firstIndex, int indexCount) {
+            this.page = page;
+            this.firstVertex = firstVertex;
+            this.vertexCount = vertexCount;
+            this.firstIndex = firstIndex;
+            this.indexCount = indexCount;
+        }
+
+        public Buffer getVertexBuffer() {
+            return page.vertexBuffer;
+        }
+
+        public Buffer getIndexBuffer() {
+            return page.indexBuffer;
+        }
+
+        public long getVertexByteOffset() {
+            return (long) firstVertex * VertexBufferStruct.VERTEX_SIZE;
+        }
+
+        public long getIndexByteOffset() {
+            return (long) firstIndex * page.indexSize;
+        }
+
+        public int getIndexSize() {
+            return page.indexSize;
+        }
+
+        /**
+         * {@code VK_INDEX_TYPE_UINT16} or {@code VK_INDEX_TYPE_UINT32}, to bind the index buffer with.
+         */
+        public int getIndexType() {
+            return page.indexSize == SHORT_INDEX_SIZE ? VK_INDEX_TYPE_UINT16 : VK_INDEX_TYPE_UINT32;
+        }
+
+        public void free() {
+            MeshArena.this.free(this);
+        }
+    }
+
+    private final class Page {
+        final Buffer vertexBuffer;
+        final Buffer indexBuffer;
+        final RangeAllocator vertices;
+        final RangeAllocator indices;
+        final int indexSize;
+
+        Page(int vertexCapacity, int indexCapacity, int indexSize) {
+            this.indexSize = indexSize;
+            vertexBuffer = new Buffer(device, (long) vertexCapacity * VertexBufferStruct.VERTEX_SIZE, VK_BUFFER_USAGE_VERTEX_BUFFER_BIT |
+                    VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+            indexBuffer = new Buffer(device, (long) indexCapacity * indexSize, VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT |
+                    VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+            vertices = new RangeAllocator(vertexCapacity);
+            indices = new RangeAllocator(indexCapacity);
+        }
+
+        Range allocate(int vertexCount, int indexCount) {
+            int firstVertex = vertices.allocate(vertexCount);
+            if (firstVertex < 0) return null;
+            int firstIndex = indices.allocate(indexCount);
+            if (firstIndex < 0) {
+                vertices.free(firstVertex, vertexCount);
+                return null;
+            }
+            Range range = new Range(this, firstVertex, vertexCount, firstIndex, indexCount);
+            ranges.add(range);
+            return range;
+        }
+
+        void close() {
+            vertexBuffer.close();
+            indexBuffer.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkBufferImageCopy;
+import org.lwjgl.vulkan.VkMemoryBarrier;
+import org.lwjgl.vulkan.VkQueue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Renders into offscreen color attachments instead of swap chain images, so no window, surface or display is needed. The images are used
+ * round robin, one per frame in flight, and left in {@code TRANSFER_SRC_OPTIMAL} so they can be read back.
+ */
+public class OffscreenTarget implements RenderTarget {
+    public static final int DEFAULT_FORMAT = VK_FORMAT_R8G8B8A8_SRGB;
+    private static final int PIXEL_SIZE = 4;
+
+    @Getter
+    private final LogicalDevice logicalDevice;
+    @Getter
+    private final int imageFormat;
+    private final int imageCount;
+    @Getter
+    private int width;
+    @Getter
+    private int height;
+    @Getter
+    private int imageIndex;
+    private Attachment[] attachments;
+    @Getter
+    private ImageView[] imageViews;
+    private Buffer readbackBuffer;
+
+    /**
+     * @param imageCount number of images, at least the number of frames in flight
+     */
+    public OffscreenTarget(LogicalDevice logicalDevice, int width, int height, int imageFormat, int imageCount) {
+        this.logicalDevice = logicalDevice;
+        this.imageFormat = imageFormat;
+        this.imageCount = imageCount;
+        resize(width, height);
+    }
+
+    public OffscreenTarget(LogicalDevice logicalDevice, int width, int height, int imageCount) {
+        this(logicalDevice, width, height, DEFAULT_FORMAT, imageCount);
+    }
+
+    @Override
+    public int getFinalLayout() {
+        return VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL;
+    }
+
+    @Override
+    public boolean isPresentable() {
+        return false;
+    }
+
+    @Override
+    public long getImage(int index) {
+        return attachments[index].getImage().getImage();
+    }
+
+    @Override
+    public boolean isReadable() {
+        return true;
+    }
+
+    @Override
+    public boolean acquireNextImage(Semaphore signal) {
+        imageIndex = (imageIndex + 1) % imageCount;
+        return false;
+    }
+
+    @Override
+    public boolean presentImage(VkQueue queue, Semaphore wait) {
+        return false;
+    }
+
+    /**
+     * Recreates the images, the device must not use them anymore.
+     */
+    @Override
+    public void resize(int width, int height) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        closeImages();
+        this.width = width;
+        this.height = height;
+        attachments = new Attachment[imageCount];
+        imageViews = new ImageView[imageCount];
+        for (int i = 0; i < imageCount; i++) {
+            attachments[i] = new Attachment(logicalDevice, width, height, imageFormat, VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT | VK_IMAGE_USAGE_TRANSFER_SRC_BIT);
+            imageViews[i] = attachments[i].getImageView();
+        }
+        imageIndex = imageCount - 1;
+    }
+
+    /**
+     * Copies the pixels of the image rendered last into {@code dst}, tightly packed rows of 4 byte pixels starting at the top left. Blocks
+     * until the device is idle, so it is meant for tests and single captures.
+     */
+    public void readPixels(CommandPool commandPool, VkQueue queue, ByteBuffer dst) {
+        long size = (long) width * height * PIXEL_SIZE;
+        if (dst.remaining() < size) throw new IllegalArgumentException("Buffer too small for " + width + "x" + height + " pixels");
+        if (readbackBuffer == null || readbackBuffer.getRequestedSize() < size) {
+            if (readbackBuffer != null) readbackBuffer.close();
+            readbackBuffer = new Buffer(logicalDevice, size, VK_BUFFER_USAGE_TRANSFER_DST_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT |
+                    VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+        }
+        logicalDevice.waitIdle();
+        CommandBuffer cmd = new CommandBuffer(commandPool, true, true);
+        cmd.beginRec();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.calloc(1, stack).sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER).
+                    srcAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT).dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT);
+            vkCmdPipelineBarrier(cmd.getCmdBuf(), VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, barrier, null, null);
+            VkBufferImageCopy.Buffer region = VkBufferImageCopy.calloc(1, stack).bufferOffset(0).bufferRowLength(0).bufferImageHeight(0).
+                    imageSubresource(it -> it.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).mipLevel(0).baseArrayLayer(0).layerCount(1)).
+                    imageOffset(it -> it.x(0).y(0).z(0)).imageExtent(it -> it.width(width).height(height).depth(1));
+            vkCmdCopyImageToBuffer(cmd.getCmdBuf(), getImage(imageIndex), VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL,
+                    readbackBuffer.getBuffer(), region);
+        }
+        cmd.endRec();
+        cmd.submitAndWait(queue);
+        cmd.close();
+        MemoryUtil.memCopy(readbackBuffer.map(), MemoryUtil.memAddress(dst), size);
+    }
+
+    private void closeImages() {
+        if (attachments != null) Arrays.stream(attachments).forEach(Attachment::close);
+        attachments = null;
+        imageViews = null;
+    }
+
+    @Override
+    public void close() {
+        closeImages();
+        if (readbackBuffer != null) readbackBuffer.close();
+        readbackBuffer = null;
+    }
+}
@@ -0,0 +1,53 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.vk.device.DeviceCapabilities;
+import lombok.Getter;
+
+import static org.lwjgl.vulkan.KHRSurface.*;
+
+/**
+ * How finished frames are shown. If the device does not support a mode the next one of its fallbacks is used, {@link #FIFO} is always
+ * supported.
+ */
+public enum PresentMode {
+    /** Vsync, but a newer frame replaces the queued one, so rendering never blocks and the shown frame is the latest. Needs a spare image. */
+    MAILBOX(VK_PRESENT_MODE_MAILBOX_KHR, 3),
+    /** Vsync, frames are queued and the CPU blocks once the queue is full. Highest latency, no tearing. */
+    FIFO(VK_PRESENT_MODE_FIFO_KHR, 3),
+    /** Like {@link #FIFO}, but a late frame is shown immediately and may tear instead of waiting for the next vertical blank. */
+    FIFO_RELAXED(VK_PRESENT_MODE_FIFO_RELAXED_KHR, 3),
+    /** No vsync, frames are shown as soon as they are done and tear. Lowest latency. */
+    IMMEDIATE(VK_PRESENT_MODE_IMMEDIATE_KHR, 2);
+
+    @Getter
+    private final int vkPresentMode;
+    /**
+     * The number of swap chain images the mode needs to not stall the renderer.
+     */
+    @Getter
+    private final int imageCount;
+
+    PresentMode(int vkPresentMode, int imageCount) {
+        this.vkPresentMode = vkPresentMode;
+        this.imageCount = imageCount;
+    }
+
+    /**
+     * @return this mode if the device supports it, otherwise the closest supported one
+     */
+    public PresentMode select(DeviceCapabilities capabilities) {
+        for (PresentMode mode : fallbacks()) {
+            if (capabilities.supportsPresentMode(mode.vkPresentMode)) return mode;
+        }
+        return FIFO;
+    }
+
+    private PresentMode[] fallbacks() {
+        return switch (this) {
+            case MAILBOX -> new PresentMode[]{MAILBOX, IMMEDIATE, FIFO};
+            case IMMEDIATE -> new PresentMode[]{IMMEDIATE, MAILBOX, FIFO};
+            case FIFO_RELAXED -> new PresentMode[]{FIFO_RELAXED, FIFO};
+            case FIFO -> new PresentMode[]{FIFO};
+        };
+    }
+}
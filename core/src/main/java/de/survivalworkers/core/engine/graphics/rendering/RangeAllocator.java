@@ -0,0 +1,66 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * First fit allocator for element ranges of a fixed capacity, neighbouring free ranges are merged when a range is freed.
+ */
+class RangeAllocator {
+    private final TreeMap<Integer, Integer> free;
+    private final int capacity;
+    private int used;
+
+    RangeAllocator(int capacity) {
+        this.capacity = capacity;
+        free = new TreeMap<>();
+        if (capacity > 0) free.put(0, capacity);
+    }
+
+    /**
+     * @return the first element of the range or -1 if there is no free range which is large enough
+     */
+    int allocate(int size) {
+        if (size == 0) return 0;
+        for (Map.Entry<Integer, Integer> entry : free.entrySet()) {
+            int offset = entry.getKey(), length = entry.getValue();
+            if (length < size) continue;
+            free.remove(offset);
+            if (length > size) free.put(offset + size, length - size);
+            used += size;
+            return offset;
+        }
+        return -1;
+    }
+
+    void free(int offset, int size) {
+        if (size == 0) return;
+        used -= size;
+        Map.Entry<Integer, Integer> next = free.ceilingEntry(offset);
+        if (next != null && next.getKey() == offset + size) {
+            free.remove(next.getKey());
+            size += next.getValue();
+        }
+        Map.Entry<Integer, Integer> previous = free.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            offset = previous.getKey();
+            size += previous.getValue();
+        }
+        free.put(offset, size);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getUsed() {
+        return used;
+    }
+
+    /**
+     * @return whether all used elements form one range at the start
+     */
+    boolean isPacked() {
+        return used == capacity || free.size() == 1 && free.firstKey() == used;
+    }
+}
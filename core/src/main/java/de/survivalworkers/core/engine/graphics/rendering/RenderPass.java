@@ -10,21 +10,21 @@ import java.nio.LongBuffer;
 import static org.lwjgl.vulkan.VK10.*;
 
 public class RenderPass implements Closeable {
-    private final SwapChain swapChain;
+    private final RenderTarget target;
     private final long renderPass;
 
-    public RenderPass(SwapChain swapChain,int depthFormat){
-        this.swapChain = swapChain;
+    public RenderPass(RenderTarget target,int depthFormat){
+        this.target = target;
 
         try (MemoryStack stack = MemoryStack.stackPush()) {
             VkAttachmentDescription.Buffer attachments = VkAttachmentDescription.calloc(2, stack);
             attachments.get(0)
-                    .format(swapChain.getSurfaceFormat().imageFormat())
+                    .format(target.getImageFormat())
                     .samples(VK_SAMPLE_COUNT_1_BIT)
                     .loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR)
                     .storeOp(VK_ATTACHMENT_STORE_OP_STORE)
                     .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
-                    .finalLayout(KHRSwapchain.VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+                    .finalLayout(target.getFinalLayout());
 
             attachments.get(1).format(depthFormat).samples(VK_SAMPLE_COUNT_1_BIT).loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR).storeOp(VK_ATTACHMENT_STORE_OP_DONT_CARE).initialLayout(VK_IMAGE_LAYOUT_UNDEFINED).
                     finalLayout(VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL);
@@ -43,14 +43,14 @@ public class RenderPass implements Closeable {
             VkRenderPassCreateInfo renderPassInfo = VkRenderPassCreateInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_RENDER_PASS_CREATE_INFO).pAttachments(attachments).pSubpasses(subPass).pDependencies(subpassDependencies);
 
             LongBuffer lp = stack.mallocLong(1);
-            VkUtil.check(vkCreateRenderPass(swapChain.getLogicalDevice().getHandle(), renderPassInfo, null, lp),
+            VkUtil.check(vkCreateRenderPass(target.getLogicalDevice().getHandle(), renderPassInfo, null, lp),
                     "Failed to create render pass");
             renderPass = lp.get(0);
         }
     }
 
     public void close() {
-        vkDestroyRenderPass(swapChain.getLogicalDevice().getHandle(), renderPass,null);
+        vkDestroyRenderPass(target.getLogicalDevice().getHandle(), renderPass,null);
     }
 
     public long getRenderPass() {
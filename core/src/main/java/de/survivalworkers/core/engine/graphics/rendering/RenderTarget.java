@@ -0,0 +1,59 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import org.lwjgl.vulkan.VkQueue;
+
+/**
+ * The color images a frame is rendered into, either the images of a {@link SwapChain} or offscreen images of an {@link OffscreenTarget}.
+ */
+public interface RenderTarget {
+    LogicalDevice getLogicalDevice();
+
+    int getImageFormat();
+
+    int getWidth();
+
+    int getHeight();
+
+    ImageView[] getImageViews();
+
+    /**
+     * The image handle behind {@code getImageViews()[index]}.
+     */
+    long getImage(int index);
+
+    /**
+     * Whether the images can be copied out with {@code vkCmdCopyImageToBuffer}, see {@link FrameCapture}.
+     */
+    boolean isReadable();
+
+    /**
+     * Index of the image acquired last, which is the one rendered to next.
+     */
+    int getImageIndex();
+
+    /**
+     * The layout the render pass leaves the color image in.
+     */
+    int getFinalLayout();
+
+    /**
+     * Whether {@link #acquireNextImage(Semaphore)} signals its semaphore and {@link #presentImage(VkQueue, Semaphore)} waits for its one. If
+     * not, the frame is submitted without them.
+     */
+    boolean isPresentable();
+
+    /**
+     * @return whether the target is out of date and has to be resized
+     */
+    boolean acquireNextImage(Semaphore signal);
+
+    /**
+     * @return whether the target is out of date and has to be resized
+     */
+    boolean presentImage(VkQueue queue, Semaphore wait);
+
+    void resize(int width, int height);
+
+    void close();
+}
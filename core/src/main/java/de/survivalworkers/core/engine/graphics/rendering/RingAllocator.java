@@ -0,0 +1,67 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import java.util.TreeSet;
+
+/**
+ * Bump allocator over a ring of bytes. Positions are counted in total bytes ever allocated, the offset in the ring is the position modulo the
+ * capacity. Allocations are pending until they are committed to a batch, {@link #mark()} is the position up to which everything has been
+ * committed, and once the batch of a mark has finished {@link #release(long)} gives the bytes before it back.
+ */
+class RingAllocator {
+    private final long capacity;
+    private final TreeSet<Long> pending;
+    private long head;
+    private long tail;
+
+    RingAllocator(long capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        pending = new TreeSet<>();
+    }
+
+    /**
+     * @param alignment a power of two
+     * @return the position of the allocation or -1 if the ring is too full
+     */
+    long allocate(long size, long alignment) {
+        if (size > capacity) return -1;
+        long offset = head % capacity;
+        long aligned = (offset + alignment - 1) & -alignment;
+        long start = aligned + size > capacity ? head + capacity - offset : head + aligned - offset;
+        if (start + size - tail > capacity) return -1;
+        head = start + size;
+        pending.add(start);
+        return start;
+    }
+
+    void commit(long position) {
+        pending.remove(position);
+    }
+
+    /**
+     * Drops an allocation which will never be committed. Its bytes are given back together with the next batch released after it.
+     */
+    void discard(long position) {
+        pending.remove(position);
+    }
+
+    long mark() {
+        return pending.isEmpty() ? head : pending.first();
+    }
+
+    void release(long mark) {
+        tail = Math.max(tail, mark);
+    }
+
+    long offset(long position) {
+        return position % capacity;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    long getUsed() {
+        return head - tail;
+    }
+}
@@ -0,0 +1,125 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import lombok.Getter;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A persistently mapped, host visible staging buffer of fixed size which is used as a ring. Upload code writes into regions handed out by a
+ * bump allocator, the regions are reused once the batch which copied them has finished, so streaming never allocates or maps memory.
+ */
+public class StagingRing {
+    private final Buffer buffer;
+    private final long address;
+    private final RingAllocator allocator;
+
+    public StagingRing(LogicalDevice device, long capacity) {
+        buffer = new Buffer(device, capacity, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+        address = buffer.map();
+        allocator = new RingAllocator(capacity);
+    }
+
+    /**
+     * @return the region or null if the ring has no room for it until running copies finish
+     */
+    public synchronized Region allocate(long size, long alignment) {
+        long position = allocator.allocate(size, alignment);
+        if (position < 0) return null;
+        long offset = allocator.offset(position);
+        return new Region(this, buffer, position, offset, address + offset, size);
+    }
+
+    /**
+     * Marks the region as part of the next batch.
+     */
+    synchronized void commit(Region region) {
+        allocator.commit(region.position);
+    }
+
+    synchronized void discard(Region region) {
+        allocator.discard(region.position);
+    }
+
+    /**
+     * @return the position up to which all regions are committed, to be passed to {@link #release(long)} once their batch is done
+     */
+    synchronized long mark() {
+        return allocator.mark();
+    }
+
+    synchronized void release(long mark) {
+        allocator.release(mark);
+    }
+
+    public synchronized long getUsed() {
+        return allocator.getUsed();
+    }
+
+    public long getCapacity() {
+        return allocator.getCapacity();
+    }
+
+    public void close() {
+        buffer.close();
+    }
+
+    /**
+     * Host memory to copy from, either part of a {@link StagingRing} or a temporary buffer of its own if the data did not fit.
+     */
+    public static final class Region {
+        private final StagingRing ring;
+        @Getter
+        private final Buffer buffer;
+        private final long position;
+        @Getter
+        private final long offset;
+        @Getter
+        private final long address;
+        @Getter
+        private final long size;
+
+        private Region(StagingRing ring, Buffer buffer, long position, long offset, long address, long size) {
+            this.ring = ring;
+            this.buffer = buffer;
+            this.position = position;
+            this.offset = offset;
+            this.address = address;
+            this.size = size;
+        }
+
+        /**
+         * A region which owns a buffer on its own.
+         */
+        static Region temporary(LogicalDevice device, long size) {
+            Buffer buffer = new Buffer(device, size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+            return new Region(null, buffer, -1, 0, buffer.map(), size);
+        }
+
+        public ByteBuffer getBytes() {
+            return MemoryUtil.memByteBuffer(address, (int) size);
+        }
+
+        void commit() {
+            if (ring != null) ring.commit(this);
+        }
+
+        /**
+         * Drops a region which will not be copied. Temporary buffers are closed, ring regions no longer hold back {@link #mark()}.
+         */
+        void discard() {
+            if (ring != null) ring.discard(this);
+            else buffer.close();
+        }
+
+        /**
+         * Closes the buffer of a temporary region, ring regions are released with their batch.
+         */
+        void done() {
+            if (ring == null) buffer.close();
+        }
+    }
+}
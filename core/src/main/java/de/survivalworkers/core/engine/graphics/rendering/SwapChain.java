@@ -2,6 +2,7 @@ package de.survivalworkers.core.engine.graphics.rendering;
 
 import de.survivalworkers.core.Window;
 import de.survivalworkers.core.vk.util.VkUtil;
+import de.survivalworkers.core.vk.device.DeviceCapabilities;
 import de.survivalworkers.core.vk.device.LogicalDevice;
 import de.survivalworkers.core.vk.device.PhysicalDevice;
 import lombok.Getter;
@@ -14,86 +15,160 @@ import java.io.Closeable;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.lwjgl.vulkan.KHRSurface.VK_COLOR_SPACE_SRGB_NONLINEAR_KHR;
 import static org.lwjgl.vulkan.KHRSwapchain.*;
 import static org.lwjgl.vulkan.VK10.*;
 
 @Slf4j
-public class SwapChain implements Closeable {
+public class SwapChain implements RenderTarget, Closeable {
     private final PhysicalDevice physicalDevice;
     @Getter
     private final LogicalDevice logicalDevice;
+    /**
+     * The number of images requested, the swap chain may have more, see {@link #getImageViews()}.
+     */
     @Getter
-    private final int numImages;
+    private int numImages;
+    /**
+     * The mode actually used, which may differ from the requested one if the device does not support it.
+     */
+    @Getter
+    private PresentMode presentMode;
     @Getter
     private final SurfaceFormat surfaceFormat;
     @Getter
     private ImageView[] imageViews;
+    private long[] images;
+    /**
+     * Whether the surface allows copying from the images, which {@link FrameCapture} needs.
+     */
     @Getter
-    private SyncSemaphores[] syncSemaphoresList;
+    private final boolean readable;
     @Getter
     private VkSwapchainCreateInfoKHR createInfo;
     @Getter
     private long handle;
+    /**
+     * Index of the image acquired last, which is the one rendered to and presented next.
+     */
     @Getter
-    private int currentFrame;
+    private int imageIndex;
 
-    public SwapChain(PhysicalDevice physicalDevice, LogicalDevice logicalDevice, long surface, int width, int height) {
+    /**
+     * @param imageCount the number of images to request, 0 for the number the present mode needs
+     */
+    public SwapChain(PhysicalDevice physicalDevice, LogicalDevice logicalDevice, long surface, int width, int height, PresentMode presentMode,
+                     int imageCount) {
         this.physicalDevice = physicalDevice;
         this.logicalDevice = logicalDevice;
         try (MemoryStack stack = MemoryStack.stackPush()) {
             PhysicalDevice.SwapChainSupportDetails swapChainSupportDetails  = physicalDevice.querySwapChainSupport(stack);
+            DeviceCapabilities capabilities = physicalDevice.getCapabilities();
 
-            numImages = calcNumImages(swapChainSupportDetails.getCapabilities());
-
-            surfaceFormat = selectSurfaceFormat(swapChainSupportDetails.getFormats());
+            surfaceFormat = selectSurfaceFormat(capabilities.getSurfaceFormats());
+            readable = (swapChainSupportDetails.getCapabilities().supportedUsageFlags() & VK_IMAGE_USAGE_TRANSFER_SRC_BIT) != 0;
 
-            createInfo = VkSwapchainCreateInfoKHR.calloc(stack)
+            // kept on the heap, every resize and present mode switch reuses it
+            createInfo = VkSwapchainCreateInfoKHR.calloc()
                     .sType$Default()
                     .surface(surface)
-                    .minImageCount(numImages)
                     .imageFormat(surfaceFormat.imageFormat())
                     .imageColorSpace(surfaceFormat.colorSpace())
                     .imageArrayLayers(1)
-                    .imageUsage(VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT)
+                    .imageUsage(VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT | (readable ? VK_IMAGE_USAGE_TRANSFER_SRC_BIT : 0))
                     .imageSharingMode(VK_SHARING_MODE_EXCLUSIVE)
                     .preTransform(swapChainSupportDetails.getCapabilities().currentTransform())
                     .compositeAlpha(KHRSurface.VK_COMPOSITE_ALPHA_OPAQUE_BIT_KHR)
                     .clipped(true);
-            //for vsync
-            //createInfo.presentMode(KHRSurface.VK_PRESENT_MODE_FIFO_KHR);
-            createInfo.presentMode(KHRSurface.VK_PRESENT_MODE_IMMEDIATE_KHR);
-
-            syncSemaphoresList = new SyncSemaphores[numImages];
-            for (int i = 0; i < numImages; i++) {
-                syncSemaphoresList[i] = new SyncSemaphores(logicalDevice);
-            }
+            setPresentMode(presentMode, imageCount);
 
             resize(width, height);
         }
     }
 
+    /**
+     * Selects the present mode and image count, they are applied by the next {@link #resize(int, int)}.
+     *
+     * @param imageCount the number of images to request, 0 for the number the present mode needs
+     */
+    public void setPresentMode(PresentMode requested, int imageCount) {
+        DeviceCapabilities capabilities = physicalDevice.getCapabilities();
+        presentMode = requested.select(capabilities);
+        if (presentMode != requested) log.info("Present mode {} is not supported, using {}", requested, presentMode);
+        numImages = calcNumImages(capabilities, imageCount > 0 ? imageCount : presentMode.getImageCount());
+        createInfo.presentMode(presentMode.getVkPresentMode()).minImageCount(numImages);
+    }
+
+    @Override
+    public int getImageFormat() {
+        return surfaceFormat.imageFormat();
+    }
+
+    @Override
+    public int getWidth() {
+        return createInfo.imageExtent().width();
+    }
+
+    @Override
+    public int getHeight() {
+        return createInfo.imageExtent().height();
+    }
+
+    @Override
+    public int getFinalLayout() {
+        return VK_IMAGE_LAYOUT_PRESENT_SRC_KHR;
+    }
+
+    @Override
+    public boolean isPresentable() {
+        return true;
+    }
+
+    @Override
+    public long getImage(int index) {
+        return images[index];
+    }
+
+    /**
+     * Recreates the swap chain with the given size and the present mode selected last. The old swap chain is handed to the driver and destroyed
+     * afterwards, so the device has to be idle.
+     */
+    @Override
     public void resize(int width, int height) {
         long start = System.currentTimeMillis();
         try (MemoryStack stack = MemoryStack.stackPush()) {
+            long old = handle;
             createInfo.imageExtent()
                     .set(width, height);
+            createInfo.oldSwapchain(old);
             LongBuffer pSwapchain = stack.mallocLong(1);
             VkUtil.check(vkCreateSwapchainKHR(logicalDevice.getHandle(), createInfo, null, pSwapchain), "Failed to create swap chain");
             handle = pSwapchain.get(0);
+            createInfo.oldSwapchain(VK_NULL_HANDLE);
+            if (old != VK_NULL_HANDLE) {
+                Arrays.stream(imageViews).forEach(ImageView::close);
+                vkDestroySwapchainKHR(logicalDevice.getHandle(), old, null);
+            }
 
             imageViews = createImageViews(stack, logicalDevice, handle, surfaceFormat.imageFormat);
-            currentFrame = 0;
+            imageIndex = 0;
         }
         log.trace("Swapchain resized in {}ms", System.currentTimeMillis() - start);
     }
 
-    public boolean acquireNextImage() {
+    /**
+     * Acquires the next image, {@code signal} is signaled once it may be rendered to.
+     *
+     * @return whether the swap chain is out of date and has to be resized
+     */
+    @Override
+    public boolean acquireNextImage(Semaphore signal) {
         boolean resize = false;
         try (MemoryStack stack = MemoryStack.stackPush()) {
             IntBuffer ip = stack.mallocInt(1);
-            int err = vkAcquireNextImageKHR(logicalDevice.getHandle(), handle, Long.MAX_VALUE, syncSemaphoresList[currentFrame].imgAcquisitionSemaphore().getHandle(), MemoryUtil.NULL, ip);
+            int err = vkAcquireNextImageKHR(logicalDevice.getHandle(), handle, Long.MAX_VALUE, signal.getHandle(), MemoryUtil.NULL, ip);
             if (err == VK_ERROR_OUT_OF_DATE_KHR) {
                 resize = true;
             } else if (err == VK_SUBOPTIMAL_KHR) {
@@ -102,26 +177,25 @@ public class SwapChain implements Closeable {
                 VkUtil.check(err, "Failed to acquire image");
             }
 
-            currentFrame = ip.get(0);
+            imageIndex = ip.get(0);
         }
 
         return resize;
     }
 
-    private int calcNumImages(VkSurfaceCapabilitiesKHR surfaceCapabilities) {
-        int result = Math.max(3, surfaceCapabilities.minImageCount());
-        if (surfaceCapabilities.maxImageCount() != 0) result = Math.min(result, surfaceCapabilities.maxImageCount());
+    private int calcNumImages(DeviceCapabilities capabilities, int requested) {
+        int result = Math.max(requested, capabilities.getMinImageCount());
+        if (capabilities.getMaxImageCount() != 0) result = Math.min(result, capabilities.getMaxImageCount());
         return result;
     }
 
-    private SurfaceFormat selectSurfaceFormat(VkSurfaceFormatKHR.Buffer surfaceFormats) {
+    private SurfaceFormat selectSurfaceFormat(List<SurfaceFormat> surfaceFormats) {
         int format = 0;
         int colorSpace = 0;
-        for (int i = 0; i < surfaceFormats.capacity(); i++) {
-            VkSurfaceFormatKHR surfaceFormat = surfaceFormats.get(i);
-            if (surfaceFormat.format() != VK_FORMAT_B8G8R8A8_SRGB)
+        for (SurfaceFormat surfaceFormat : surfaceFormats) {
+            if (surfaceFormat.imageFormat() != VK_FORMAT_B8G8R8A8_SRGB)
                 continue;
-            format = surfaceFormat.format();
+            format = surfaceFormat.imageFormat();
             colorSpace = surfaceFormat.colorSpace();
             if (colorSpace == VK_COLOR_SPACE_SRGB_NONLINEAR_KHR)
                 break;
@@ -157,23 +231,31 @@ public class SwapChain implements Closeable {
         VkUtil.check(KHRSwapchain.vkGetSwapchainImagesKHR(device.getHandle(), swapChain, ip, swapChainImages), "Could not create Images(1)");
 
         result = new ImageView[numImages];
+        images = new long[numImages];
         ImageView.ImageViewData imageViewData = new ImageView.ImageViewData().format(format).aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
         for (int i = 0; i < numImages; i++) {
-            result[i] = new ImageView(device, swapChainImages.get(i), imageViewData);
+            images[i] = swapChainImages.get(i);
+            result[i] = new ImageView(device, images[i], imageViewData);
         }
 
         return result;
     }
 
-    public boolean presentImage(VkQueue queue) {
+    /**
+     * Presents the acquired image once {@code wait} is signaled.
+     *
+     * @return whether the swap chain is out of date and has to be resized
+     */
+    @Override
+    public boolean presentImage(VkQueue queue, Semaphore wait) {
         boolean resize = false;
         try (MemoryStack stack = MemoryStack.stackPush()) {
             VkPresentInfoKHR present = VkPresentInfoKHR.calloc(stack)
                     .sType$Default()
-                    .pWaitSemaphores(stack.longs(syncSemaphoresList[currentFrame].renderCompleteSemaphore().getHandle()))
+                    .pWaitSemaphores(stack.longs(wait.getHandle()))
                     .swapchainCount(1)
                     .pSwapchains(stack.longs(handle))
-                    .pImageIndices(stack.ints(currentFrame));
+                    .pImageIndices(stack.ints(imageIndex));
 
             int err = vkQueuePresentKHR(queue, present);
             if (err == VK_ERROR_OUT_OF_DATE_KHR) {
@@ -184,28 +266,15 @@ public class SwapChain implements Closeable {
                 VkUtil.check(err, "Failed to present KHR");
             }
         }
-        currentFrame = (currentFrame + 1) % imageViews.length;
         return resize;
     }
 
     public record SurfaceFormat(int imageFormat, int colorSpace) {}
 
-    public record SyncSemaphores(Semaphore imgAcquisitionSemaphore, Semaphore renderCompleteSemaphore) {
-
-        public SyncSemaphores(LogicalDevice device) {
-            this(new Semaphore(device), new Semaphore(device));
-        }
-
-        public void close() {
-            imgAcquisitionSemaphore.close();
-            renderCompleteSemaphore.close();
-        }
-    }
-
+    @Override
     public void close() {
         vkDestroySwapchainKHR(logicalDevice.getHandle(), handle, null);
         createInfo.free();
         Arrays.stream(imageViews).forEach(ImageView::close);
-        Arrays.stream(syncSemaphoresList).forEach(SyncSemaphores::close);
     }
 }
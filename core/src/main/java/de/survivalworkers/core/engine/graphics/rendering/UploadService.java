@@ -0,0 +1,375 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import de.survivalworkers.core.vk.util.VkUtil;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Copies staging data into device local buffers and images without blocking. Copies are collected from any thread and recorded as one batch
+ * by {@link #submit()}. If the device has a dedicated transfer queue family the copies run there and the resources are released to the
+ * graphics family, which acquires them in a second submission that waits on a semaphore. Mip maps are generated on the graphics queue, since
+ * transfer queues cannot blit. The future of a copy completes in {@link #poll()} once the fence of its batch is signaled.
+ * <p>
+ * {@link #submit()} and {@link #poll()} use the graphics queue and have to be called by the thread which submits the frames.
+ */
+@Slf4j
+public class UploadService {
+    private static final int READ_STAGES = VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_VERTEX_INPUT_BIT | VK_PIPELINE_STAGE_VERTEX_SHADER_BIT |
+            VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT;
+    private static final int READ_ACCESS = VK_ACCESS_INDIRECT_COMMAND_READ_BIT | VK_ACCESS_INDEX_READ_BIT | VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT |
+            VK_ACCESS_UNIFORM_READ_BIT | VK_ACCESS_SHADER_READ_BIT;
+
+    public static final long DEFAULT_STAGING_SIZE = 32L << 20;
+    private static final long STAGING_ALIGNMENT = 16;
+
+    @Getter
+    private final LogicalDevice device;
+    private final int transferFamily;
+    private final int graphicsFamily;
+    /**
+     * Whether copies run on a dedicated transfer queue and need an ownership transfer to the graphics family.
+     */
+    @Getter
+    private final boolean dedicatedTransfer;
+    private final CommandPool transferPool;
+    private final CommandPool graphicsPool;
+    private final List<BufferCopy> bufferCopies;
+    private final List<ImageCopy> imageCopies;
+    private final List<Batch> inFlight;
+    private final ArrayDeque<Batch> freeBatches;
+    private final StagingRing staging;
+
+    public UploadService(LogicalDevice device) {
+        this(device, DEFAULT_STAGING_SIZE);
+    }
+
+    /**
+     * @param stagingSize size of the staging ring, data which does not fit into the free part of the ring gets a temporary buffer
+     */
+    public UploadService(LogicalDevice device, long stagingSize) {
+        this.device = device;
+        transferFamily = device.getTransferFamily();
+        graphicsFamily = device.getPhysicalDevice().getCapabilities().getQueueFamilies().getGraphicsFamily();
+        dedicatedTransfer = transferFamily != graphicsFamily;
+        transferPool = new CommandPool(device, transferFamily);
+        graphicsPool = dedicatedTransfer ? new CommandPool(device, graphicsFamily) : transferPool;
+        bufferCopies = new ArrayList<>();
+        imageCopies = new ArrayList<>();
+        inFlight = new ArrayList<>();
+        freeBatches = new ArrayDeque<>();
+        staging = new StagingRing(device, stagingSize);
+        log.debug("Uploads use queue family {}{}", transferFamily, dedicatedTransfer ? " (dedicated transfer)" : "");
+    }
+
+    /**
+     * Reserves {@code size} bytes of staging memory to write the data of one copy into. The region has to be passed to one of the copy
+     * methods or to {@link #discard(StagingRing.Region)} afterwards, until then the ring can not reuse it or anything behind it.
+     */
+    public StagingRing.Region stage(long size) {
+        StagingRing.Region region = staging.allocate(size, STAGING_ALIGNMENT);
+        if (region != null) return region;
+        log.debug("Staging ring full, using a temporary buffer for {} bytes", size);
+        return StagingRing.Region.temporary(device, size);
+    }
+
+    /**
+     * Gives back a staged region which will not be copied, e.g. because creating its destination failed.
+     */
+    public void discard(StagingRing.Region region) {
+        region.discard();
+    }
+
+    /**
+     * Copies the staged data into {@code dst}.
+     */
+    public CompletableFuture<Void> copyBuffer(StagingRing.Region src, Buffer dst, long dstOffset) {
+        return copyBuffer(new BufferCopy(src, dst, dstOffset, null, false, new CompletableFuture<>()));
+    }
+
+    /**
+     * Copies the staged vertices into the vertex buffer of {@code dst}. The buffer and offset are looked up when the copy is submitted, so
+     * {@link MeshArena#compact(CommandPool, VkQueue)} may move the range while the copy waits.
+     */
+    public CompletableFuture<Void> copyVertices(StagingRing.Region src, MeshArena.Range dst) {
+        return copyBuffer(new BufferCopy(src, null, 0, dst, false, new CompletableFuture<>()));
+    }
+
+    /**
+     * Copies the staged indices into the index buffer of {@code dst}, see {@link #copyVertices(StagingRing.Region, MeshArena.Range)}.
+     */
+    public CompletableFuture<Void> copyIndices(StagingRing.Region src, MeshArena.Range dst) {
+        return copyBuffer(new BufferCopy(src, null, 0, dst, true, new CompletableFuture<>()));
+    }
+
+    private synchronized CompletableFuture<Void> copyBuffer(BufferCopy copy) {
+        copy.src.commit();
+        bufferCopies.add(copy);
+        return copy.future;
+    }
+
+    /**
+     * Copies tightly packed, staged pixels into the first mip level of {@code image}, generates the other levels and leaves the image in
+     * {@code SHADER_READ_ONLY_OPTIMAL}. The image needs {@code TRANSFER_SRC} and {@code TRANSFER_DST} usage.
+     */
+    public synchronized CompletableFuture<Void> copyImage(StagingRing.Region src, Image image, int width, int height) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        src.commit();
+        imageCopies.add(new ImageCopy(src, image, width, height, future));
+        return future;
+    }
+
+    /**
+     * Submits all copies collected since the last call and completes the futures of finished batches.
+     */
+    public void update() {
+        submit();
+        poll();
+    }
+
+    public synchronized void submit() {
+        if (bufferCopies.isEmpty() && imageCopies.isEmpty()) return;
+        Batch batch = freeBatches.isEmpty() ? new Batch() : freeBatches.poll();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            batch.transferCmd.beginRec();
+            VkCommandBuffer transfer = batch.transferCmd.getCmdBuf();
+            recordCopies(stack, transfer);
+            VkCommandBuffer graphics = transfer;
+            if (dedicatedTransfer) {
+                recordOwnershipTransfer(stack, transfer, true);
+                batch.transferCmd.endRec();
+                batch.graphicsCmd.beginRec();
+                graphics = batch.graphicsCmd.getCmdBuf();
+                recordOwnershipTransfer(stack, graphics, false);
+            }
+            recordGraphics(stack, graphics);
+            if (dedicatedTransfer) {
+                batch.graphicsCmd.endRec();
+                VkSubmitInfo transferSubmit = VkSubmitInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_SUBMIT_INFO).pCommandBuffers(stack.pointers(transfer)).
+                        pSignalSemaphores(stack.longs(batch.semaphore.getHandle()));
+                VkUtil.check(vkQueueSubmit(device.getTransferQueue(), transferSubmit, VK_NULL_HANDLE), "Could not submit uploads");
+                VkSubmitInfo graphicsSubmit = VkSubmitInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_SUBMIT_INFO).pCommandBuffers(stack.pointers(graphics)).
+                        waitSemaphoreCount(1).pWaitSemaphores(stack.longs(batch.semaphore.getHandle())).
+                        pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_ALL_COMMANDS_BIT));
+                VkUtil.check(vkQueueSubmit(device.getGraphicsQueue(), graphicsSubmit, batch.fence.getHandle()), "Could not submit upload acquire");
+            } else {
+                batch.transferCmd.endRec();
+                VkSubmitInfo submit = VkSubmitInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_SUBMIT_INFO).pCommandBuffers(stack.pointers(transfer));
+                VkUtil.check(vkQueueSubmit(device.getGraphicsQueue(), submit, batch.fence.getHandle()), "Could not submit uploads");
+            }
+        }
+        bufferCopies.forEach(c -> {
+            batch.futures.add(c.future);
+            batch.regions.add(c.src);
+        });
+        imageCopies.forEach(c -> {
+            batch.futures.add(c.future);
+            batch.regions.add(c.src);
+        });
+        batch.stagingMark = staging.mark();
+        bufferCopies.clear();
+        imageCopies.clear();
+        inFlight.add(batch);
+    }
+
+    /**
+     * Completes the futures of all batches the device has finished and gives their staging memory back, never waits. Batches are retired in
+     * submission order, since the staging ring can only be released from its tail.
+     */
+    public void poll() {
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        synchronized (this) {
+            while (!inFlight.isEmpty() && inFlight.get(0).fence.isSignaled()) {
+                Batch batch = inFlight.remove(0);
+                batch.fence.reset();
+                staging.release(batch.stagingMark);
+                batch.regions.forEach(StagingRing.Region::done);
+                batch.regions.clear();
+                done.addAll(batch.futures);
+                batch.futures.clear();
+                freeBatches.add(batch);
+            }
+        }
+        done.forEach(future -> future.complete(null));
+    }
+
+    private void recordCopies(MemoryStack stack, VkCommandBuffer cmd) {
+        if (!imageCopies.isEmpty()) {
+            VkImageMemoryBarrier.Buffer barriers = VkImageMemoryBarrier.calloc(imageCopies.size(), stack);
+            for (int i = 0; i < imageCopies.size(); i++) {
+                Image image = imageCopies.get(i).image;
+                imageBarrier(barriers.get(i), image, 0, image.getMipLevel(), VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, 0,
+                        VK_ACCESS_TRANSFER_WRITE_BIT);
+            }
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, barriers);
+        }
+
+        VkBufferCopy.Buffer region = VkBufferCopy.calloc(1, stack);
+        for (BufferCopy copy : bufferCopies) {
+            region.srcOffset(copy.src.getOffset()).dstOffset(copy.dstOffset()).size(copy.src.getSize());
+            vkCmdCopyBuffer(cmd, copy.src.getBuffer().getBuffer(), copy.dst().getBuffer(), region);
+        }
+        VkBufferImageCopy.Buffer imageRegion = VkBufferImageCopy.calloc(1, stack);
+        for (ImageCopy copy : imageCopies) {
+            imageRegion.bufferOffset(copy.src.getOffset()).bufferRowLength(0).bufferImageHeight(0).imageSubresource(it -> it.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).
+                    mipLevel(0).baseArrayLayer(0).layerCount(1)).imageOffset(it -> it.set(0, 0, 0)).imageExtent(it -> it.set(copy.width, copy.height, 1));
+            vkCmdCopyBufferToImage(cmd, copy.src.getBuffer().getBuffer(), copy.image.getImage(), VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, imageRegion);
+        }
+    }
+
+    /**
+     * Records the release (on the transfer queue) or the acquire (on the graphics queue) half of the queue family ownership transfer of all
+     * destinations. Images stay in {@code TRANSFER_DST_OPTIMAL}, their final transition happens on the graphics queue.
+     */
+    private void recordOwnershipTransfer(MemoryStack stack, VkCommandBuffer cmd, boolean release) {
+        VkBufferMemoryBarrier.Buffer bufferBarriers = bufferCopies.isEmpty() ? null : VkBufferMemoryBarrier.calloc(bufferCopies.size(), stack);
+        for (int i = 0; i < bufferCopies.size(); i++) {
+            BufferCopy copy = bufferCopies.get(i);
+            bufferBarriers.get(i).sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER).srcAccessMask(release ? VK_ACCESS_TRANSFER_WRITE_BIT : 0).
+                    dstAccessMask(release ? 0 : READ_ACCESS).srcQueueFamilyIndex(transferFamily).dstQueueFamilyIndex(graphicsFamily).
+                    buffer(copy.dst().getBuffer()).offset(copy.dstOffset()).size(copy.src.getSize());
+        }
+        VkImageMemoryBarrier.Buffer imageBarriers = imageCopies.isEmpty() ? null : VkImageMemoryBarrier.calloc(imageCopies.size(), stack);
+        for (int i = 0; i < imageCopies.size(); i++) {
+            Image image = imageCopies.get(i).image;
+            imageBarrier(imageBarriers.get(i), image, 0, image.getMipLevel(), VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                    release ? VK_ACCESS_TRANSFER_WRITE_BIT : 0, release ? 0 : VK_ACCESS_TRANSFER_READ_BIT | VK_ACCESS_TRANSFER_WRITE_BIT).
+                    srcQueueFamilyIndex(transferFamily).dstQueueFamilyIndex(graphicsFamily);
+        }
+        if (release) {
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, 0, null, bufferBarriers, imageBarriers);
+        } else {
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, READ_STAGES | VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, bufferBarriers, imageBarriers);
+        }
+    }
+
+    /**
+     * Makes the copied data visible to the draws: buffers need a memory barrier unless the ownership transfer already did that, images get
+     * their mip maps and the final layout.
+     */
+    private void recordGraphics(MemoryStack stack, VkCommandBuffer cmd) {
+        if (!dedicatedTransfer && !bufferCopies.isEmpty()) {
+            VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.calloc(1, stack).sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER).srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT).
+                    dstAccessMask(READ_ACCESS);
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, READ_STAGES, 0, barrier, null, null);
+        }
+        VkImageMemoryBarrier.Buffer barrier = VkImageMemoryBarrier.calloc(1, stack);
+        VkImageBlit.Buffer blit = VkImageBlit.calloc(1, stack);
+        for (ImageCopy copy : imageCopies) {
+            Image image = copy.image;
+            int width = copy.width, height = copy.height;
+            for (int level = 1; level < image.getMipLevel(); level++) {
+                imageBarrier(barrier.get(0), image, level - 1, 1, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL,
+                        VK_ACCESS_TRANSFER_WRITE_BIT, VK_ACCESS_TRANSFER_READ_BIT);
+                vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, barrier);
+
+                int src = level - 1, dst = level, srcWidth = width, srcHeight = height;
+                width = Math.max(1, width / 2);
+                height = Math.max(1, height / 2);
+                int dstWidth = width, dstHeight = height;
+                blit.srcOffsets(0, VkOffset3D.calloc(stack)).srcOffsets(1, VkOffset3D.calloc(stack).set(srcWidth, srcHeight, 1)).
+                        srcSubresource(it -> it.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).mipLevel(src).baseArrayLayer(0).layerCount(1)).
+                        dstOffsets(0, VkOffset3D.calloc(stack)).dstOffsets(1, VkOffset3D.calloc(stack).set(dstWidth, dstHeight, 1)).
+                        dstSubresource(it -> it.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).mipLevel(dst).baseArrayLayer(0).layerCount(1));
+                vkCmdBlitImage(cmd, image.getImage(), VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, image.getImage(), VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, blit,
+                        VK_FILTER_LINEAR);
+
+                imageBarrier(barrier.get(0), image, level - 1, 1, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL,
+                        VK_ACCESS_TRANSFER_READ_BIT, VK_ACCESS_SHADER_READ_BIT);
+                vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, 0, null, null, barrier);
+            }
+            imageBarrier(barrier.get(0), image, image.getMipLevel() - 1, 1, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL,
+                    VK_ACCESS_TRANSFER_WRITE_BIT, VK_ACCESS_SHADER_READ_BIT);
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, 0, null, null, barrier);
+        }
+    }
+
+    private static VkImageMemoryBarrier imageBarrier(VkImageMemoryBarrier barrier, Image image, int baseLevel, int levels, int oldLayout, int newLayout,
+                                                     int srcAccess, int dstAccess) {
+        return barrier.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER).oldLayout(oldLayout).newLayout(newLayout).srcAccessMask(srcAccess).
+                dstAccessMask(dstAccess).srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED).dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED).image(image.getImage()).
+                subresourceRange(it -> it.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).baseMipLevel(baseLevel).levelCount(levels).baseArrayLayer(0).layerCount(1));
+    }
+
+    /**
+     * Waits for all submitted batches, completes their futures and releases the command pools. Copies which were never submitted are
+     * cancelled.
+     */
+    public void close() {
+        synchronized (this) {
+            inFlight.forEach(batch -> batch.fence.fenceWait());
+        }
+        poll();
+        synchronized (this) {
+            bufferCopies.forEach(c -> {
+                c.future.cancel(false);
+                c.src.done();
+            });
+            imageCopies.forEach(c -> {
+                c.future.cancel(false);
+                c.src.done();
+            });
+            bufferCopies.clear();
+            imageCopies.clear();
+            freeBatches.forEach(Batch::close);
+            freeBatches.clear();
+            if (dedicatedTransfer) graphicsPool.close();
+            transferPool.close();
+            staging.close();
+        }
+    }
+
+    /**
+     * A copy into a fixed buffer, or into a mesh range whose buffer is resolved when the copy is recorded.
+     */
+    private record BufferCopy(StagingRing.Region src, Buffer buffer, long offset, MeshArena.Range range, boolean indices,
+                              CompletableFuture<Void> future) {
+        Buffer dst() {
+            if (range == null) return buffer;
+            return indices ? range.getIndexBuffer() : range.getVertexBuffer();
+        }
+
+        long dstOffset() {
+            if (range == null) return offset;
+            return indices ? range.getIndexByteOffset() : range.getVertexByteOffset();
+        }
+    }
+
+    private record ImageCopy(StagingRing.Region src, Image image, int width, int height, CompletableFuture<Void> future) {
+    }
+
+    private final class Batch {
+        final CommandBuffer transferCmd;
+        final CommandBuffer graphicsCmd;
+        final Semaphore semaphore;
+        final Fence fence;
+        final List<CompletableFuture<Void>> futures;
+        final List<StagingRing.Region> regions;
+        long stagingMark;
+
+        Batch() {
+            transferCmd = new CommandBuffer(transferPool, true, true);
+            graphicsCmd = dedicatedTransfer ? new CommandBuffer(graphicsPool, true, true) : null;
+            semaphore = dedicatedTransfer ? new Semaphore(device) : null;
+            fence = new Fence(device, false);
+            futures = new ArrayList<>();
+            regions = new ArrayList<>();
+        }
+
+        void close() {
+            transferCmd.close();
+            if (graphicsCmd != null) graphicsCmd.close();
+            if (semaphore != null) semaphore.close();
+            fence.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import de.survivalworkers.core.vk.device.DeviceCapabilities;
+import de.survivalworkers.core.vk.device.LogicalDevice;
+import de.survivalworkers.core.vk.util.VkUtil;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+public class VulkanMemoryBackend implements MemoryBackend {
+    private final LogicalDevice device;
+    private final DeviceCapabilities capabilities;
+
+    public VulkanMemoryBackend(LogicalDevice device) {
+        this.device = device;
+        capabilities = device.getPhysicalDevice().getCapabilities();
+    }
+
+    @Override
+    public long allocate(int memoryType, long size) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkMemoryAllocateInfo allocateInfo = VkMemoryAllocateInfo.calloc(stack).sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO).allocationSize(size).
+                    memoryTypeIndex(memoryType);
+            LongBuffer lp = stack.mallocLong(1);
+            VkUtil.check(vkAllocateMemory(device.getHandle(), allocateInfo, null, lp), "Could not allocate Memory");
+            return lp.get(0);
+        }
+    }
+
+    @Override
+    public void free(long memory) {
+        vkFreeMemory(device.getHandle(), memory, null);
+    }
+
+    @Override
+    public long map(long memory, long size) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            PointerBuffer pb = stack.mallocPointer(1);
+            VkUtil.check(vkMapMemory(device.getHandle(), memory, 0, size, 0, pb), "could not Map Memory");
+            return pb.get(0);
+        }
+    }
+
+    @Override
+    public void unmap(long memory) {
+        vkUnmapMemory(device.getHandle(), memory);
+    }
+
+    @Override
+    public int heapIndex(int memoryType) {
+        return capabilities.getMemoryTypeHeap(memoryType);
+    }
+
+    @Override
+    public int heapCount() {
+        return capabilities.getHeapCount();
+    }
+}
@@ -2,24 +2,72 @@ package de.survivalworkers.core.engine.graphics.scene;
 
 import org.joml.Matrix4f;
 import org.joml.Quaternionf;
+import org.joml.Quaternionfc;
 import org.joml.Vector3f;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Handle to the transform of an entity in a {@link TransformStore}. Entities which are not part of a scene keep their transform in a few
+ * fields of their own, adding them to a {@link Scene} moves it into the store of the scene.
+ */
 public class Entity {
     private String id;
     private String modelId;
-    private Matrix4f modelMatrix;
-    private Vector3f position;
-    private Quaternionf rotation;
-    private float scale;
+    /**
+     * The store holding the transform, null while the entity is detached.
+     */
+    TransformStore store;
+    int slot;
+    Octree.Item octreeItem;
+    private float x, y, z;
+    private float qx, qy, qz, qw = 1;
+    private float scale = 1;
 
     public Entity(String id, String modelId, Vector3f position) {
         this.id = id;
         this.modelId = modelId;
-        this.position = position;
-        scale = 1;
-        rotation = new Quaternionf();
-        modelMatrix = new Matrix4f();
-        updateModelMatrix();
+        slot = -1;
+        x = position.x;
+        y = position.y;
+        z = position.z;
+    }
+
+    /**
+     * Moves the transform into another store and frees the old slot.
+     */
+    void moveTo(TransformStore target) {
+        if (target == store) return;
+        int newSlot = target.allocate(this);
+        if (store == null) {
+            target.set(newSlot, x, y, z, qx, qy, qz, qw, scale);
+        } else {
+            float[] p = store.positions, r = store.rotations;
+            target.set(newSlot, p[slot * 3], p[slot * 3 + 1], p[slot * 3 + 2], r[slot * 4], r[slot * 4 + 1], r[slot * 4 + 2], r[slot * 4 + 3],
+                    store.scales[slot]);
+            store.free(slot);
+        }
+        store = target;
+        slot = newSlot;
+    }
+
+    /**
+     * Copies the transform out of the store into the entity and frees the slot.
+     */
+    void detach() {
+        if (store == null) return;
+        float[] p = store.positions, r = store.rotations;
+        x = p[slot * 3];
+        y = p[slot * 3 + 1];
+        z = p[slot * 3 + 2];
+        qx = r[slot * 4];
+        qy = r[slot * 4 + 1];
+        qz = r[slot * 4 + 2];
+        qw = r[slot * 4 + 3];
+        scale = store.scales[slot];
+        store.free(slot);
+        store = null;
+        slot = -1;
     }
 
     public String getId() {
@@ -30,35 +78,68 @@ public class Entity {
         return modelId;
     }
 
-    public Matrix4f getModelMatrix() {
-        return modelMatrix;
+    public Matrix4f getModelMatrix(Matrix4f dest) {
+        if (store == null) return dest.translationRotateScale(x, y, z, qx, qy, qz, qw, scale, scale, scale);
+        return store.getMatrix(slot, dest);
+    }
+
+    /**
+     * Writes the model matrix to {@code dst} at the absolute byte {@code offset}.
+     */
+    public void getModelMatrix(int offset, ByteBuffer dst) {
+        if (store == null) getModelMatrix(new Matrix4f()).get(offset, dst);
+        else store.getMatrix(slot, offset, dst);
     }
 
-    public Vector3f getPosition() {
-        return position;
+    public float getX() {
+        return store == null ? x : store.positions[slot * 3];
     }
 
-    public Quaternionf getRotation() {
-        return rotation;
+    public float getY() {
+        return store == null ? y : store.positions[slot * 3 + 1];
+    }
+
+    public float getZ() {
+        return store == null ? z : store.positions[slot * 3 + 2];
+    }
+
+    public Vector3f getPosition(Vector3f dest) {
+        return dest.set(getX(), getY(), getZ());
+    }
+
+    public Quaternionf getRotation(Quaternionf dest) {
+        if (store == null) return dest.set(qx, qy, qz, qw);
+        float[] r = store.rotations;
+        return dest.set(r[slot * 4], r[slot * 4 + 1], r[slot * 4 + 2], r[slot * 4 + 3]);
     }
 
     public float getScale() {
-        return scale;
+        return store == null ? scale : store.scales[slot];
     }
 
     public final void setPosition(float x, float y, float z) {
-        position.x = x;
-        position.y = y;
-        position.z = z;
-        updateModelMatrix();
+        if (store != null) {
+            store.setPosition(slot, x, y, z);
+            return;
+        }
+        this.x = x;
+        this.y = y;
+        this.z = z;
     }
 
-    public void setScale(float scale) {
-        this.scale = scale;
-        updateModelMatrix();
+    public void setRotation(Quaternionfc rotation) {
+        if (store != null) {
+            store.setRotation(slot, rotation.x(), rotation.y(), rotation.z(), rotation.w());
+            return;
+        }
+        qx = rotation.x();
+        qy = rotation.y();
+        qz = rotation.z();
+        qw = rotation.w();
     }
 
-    public void updateModelMatrix() {
-        modelMatrix.translationRotateScale(position, rotation, scale);
+    public void setScale(float scale) {
+        if (store != null) store.setScale(slot, scale);
+        else this.scale = scale;
     }
 }
@@ -0,0 +1,89 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+import de.survivalworkers.core.engine.graphics.vertex.ModelData;
+import org.joml.Matrix4f;
+
+/**
+ * Tests world space bounding spheres against the view frustum. Spheres and planes are kept in packed float arrays
+ * ({@code x, y, z, r} per sphere and {@code a, b, c, d} per plane), the test itself is a static kernel over a range which
+ * {@link SceneUpdater} splits into chunks.
+ */
+public class FrustumCuller {
+    public static final int PLANES = 6;
+
+    private final float[] planes;
+    private final Matrix4f viewProjection;
+
+    public FrustumCuller() {
+        planes = new float[PLANES * 4];
+        viewProjection = new Matrix4f();
+    }
+
+    /**
+     * Extracts the frustum planes for clip space with depth from 0 to 1.
+     */
+    public void update(Matrix4f projection, Matrix4f view) {
+        projection.mul(view, viewProjection);
+        extractPlanes(viewProjection, planes);
+    }
+
+    public static void extractPlanes(Matrix4f m, float[] planes) {
+        setPlane(planes, 0, m.m03() + m.m00(), m.m13() + m.m10(), m.m23() + m.m20(), m.m33() + m.m30());
+        setPlane(planes, 1, m.m03() - m.m00(), m.m13() - m.m10(), m.m23() - m.m20(), m.m33() - m.m30());
+        setPlane(planes, 2, m.m03() + m.m01(), m.m13() + m.m11(), m.m23() + m.m21(), m.m33() + m.m31());
+        setPlane(planes, 3, m.m03() - m.m01(), m.m13() - m.m11(), m.m23() - m.m21(), m.m33() - m.m31());
+        setPlane(planes, 4, m.m02(), m.m12(), m.m22(), m.m32());
+        setPlane(planes, 5, m.m03() - m.m02(), m.m13() - m.m12(), m.m23() - m.m22(), m.m33() - m.m32());
+    }
+
+    private static void setPlane(float[] planes, int i, float a, float b, float c, float d) {
+        float invLength = 1.0f / (float) Math.sqrt(a * a + b * b + c * c);
+        planes[i * 4] = a * invLength;
+        planes[i * 4 + 1] = b * invLength;
+        planes[i * 4 + 2] = c * invLength;
+        planes[i * 4 + 3] = d * invLength;
+    }
+
+    /**
+     * Transforms the bounding sphere of the model by the column major model matrix at {@code mo} in {@code m} and writes it at sphere index
+     * {@code i}.
+     */
+    public static void packSphere(float[] m, int mo, ModelData.Bounds bounds, float[] spheres, int i) {
+        float cx = bounds.centerX(), cy = bounds.centerY(), cz = bounds.centerZ();
+        float sx = m[mo] * m[mo] + m[mo + 1] * m[mo + 1] + m[mo + 2] * m[mo + 2];
+        float sy = m[mo + 4] * m[mo + 4] + m[mo + 5] * m[mo + 5] + m[mo + 6] * m[mo + 6];
+        float sz = m[mo + 8] * m[mo + 8] + m[mo + 9] * m[mo + 9] + m[mo + 10] * m[mo + 10];
+        int o = i * 4;
+        spheres[o] = m[mo] * cx + m[mo + 4] * cy + m[mo + 8] * cz + m[mo + 12];
+        spheres[o + 1] = m[mo + 1] * cx + m[mo + 5] * cy + m[mo + 9] * cz + m[mo + 13];
+        spheres[o + 2] = m[mo + 2] * cx + m[mo + 6] * cy + m[mo + 10] * cz + m[mo + 14];
+        spheres[o + 3] = bounds.radius() * (float) Math.sqrt(Math.max(sx, Math.max(sy, sz)));
+    }
+
+    /**
+     * Tests the spheres {@code from} (inclusive) to {@code to} (exclusive) and writes the indices of the visible ones to {@code visible}
+     * starting at {@code visibleOffset}.
+     *
+     * @return the number of visible spheres
+     */
+    public static int cull(float[] planes, float[] spheres, int from, int to, int[] visible, int visibleOffset) {
+        int n = visibleOffset;
+        for (int i = from; i < to; i++) {
+            int o = i * 4;
+            float x = spheres[o], y = spheres[o + 1], z = spheres[o + 2], r = -spheres[o + 3];
+            boolean inside = true;
+            for (int p = 0; p < PLANES * 4; p += 4) {
+                if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < r) {
+                    inside = false;
+                    break;
+                }
+            }
+            if (inside) visible[n++] = i;
+        }
+        return n - visibleOffset;
+    }
+
+    public float[] getPlanes() {
+        return planes;
+    }
+}
@@ -0,0 +1,304 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loose octree over the bounding spheres of entities. Every node reaches twice as far as its cell, so an entity is stored in the deepest
+ * node whose cell contains its center and whose half size is at least its radius. Moving an entity only touches the tree when it leaves
+ * that cell, nodes are created on demand and removed again once they are empty. The root grows when an entity is added outside of it.
+ */
+public class Octree {
+    private final float minHalfSize;
+    private Node root;
+    private int size;
+
+    /**
+     * @param halfSize    half size of the initial root cell around the origin
+     * @param minHalfSize nodes are not split below this half size
+     */
+    public Octree(float halfSize, float minHalfSize) {
+        this.minHalfSize = minHalfSize;
+        root = new Node(null, 0, 0, 0, 0, halfSize);
+    }
+
+    public void insert(Entity entity, float x, float y, float z, float radius) {
+        if (entity.octreeItem != null) throw new IllegalStateException("Entity " + entity.getId() + " is already in an octree");
+        Item item = new Item(entity);
+        entity.octreeItem = item;
+        set(item, x, y, z, radius);
+        insert(item);
+        size++;
+    }
+
+    /**
+     * Moves the sphere of the entity. The entity is only relinked if it left the cell of its node or does not fit its node size anymore.
+     */
+    public void update(Entity entity, float x, float y, float z, float radius) {
+        Item item = entity.octreeItem;
+        if (item == null) throw new IllegalStateException("Entity " + entity.getId() + " is not in an octree");
+        set(item, x, y, z, radius);
+        if (fits(item.node, item)) return;
+        unlink(item);
+        insert(item);
+    }
+
+    public void remove(Entity entity) {
+        Item item = entity.octreeItem;
+        if (item == null) return;
+        unlink(item);
+        entity.octreeItem = null;
+        size--;
+    }
+
+    public void clear() {
+        clear(root);
+        root = new Node(null, 0, root.x, root.y, root.z, root.halfSize);
+        size = 0;
+    }
+
+    private void clear(Node node) {
+        for (int i = 0; i < node.count; i++) node.items[i].entity.octreeItem = null;
+        for (Node child : node.children) {
+            if (child != null) clear(child);
+        }
+    }
+
+    private static void set(Item item, float x, float y, float z, float radius) {
+        if (!Float.isFinite(x) || !Float.isFinite(y) || !Float.isFinite(z) || !Float.isFinite(radius))
+            throw new IllegalArgumentException("Invalid bounding sphere for entity " + item.entity.getId());
+        item.x = x;
+        item.y = y;
+        item.z = z;
+        item.radius = radius;
+    }
+
+    private boolean fits(Node node, Item item) {
+        if (!node.contains(item.x, item.y, item.z) || item.radius > node.halfSize) return false;
+        float childHalfSize = node.halfSize * 0.5f;
+        return item.radius > childHalfSize || childHalfSize < minHalfSize;
+    }
+
+    private void insert(Item item) {
+        while (!root.contains(item.x, item.y, item.z) || item.radius > root.halfSize) grow(item.x, item.y, item.z);
+        Node node = root;
+        while (!fits(node, item)) {
+            int octant = node.octant(item.x, item.y, item.z);
+            Node child = node.children[octant];
+            if (child == null) {
+                float h = node.halfSize * 0.5f;
+                child = new Node(node, octant, node.x + ((octant & 1) != 0 ? h : -h), node.y + ((octant & 2) != 0 ? h : -h),
+                        node.z + ((octant & 4) != 0 ? h : -h), h);
+                node.children[octant] = child;
+                node.childCount++;
+            }
+            node = child;
+        }
+        node.add(item);
+    }
+
+    /**
+     * Doubles the root towards the given point, the old root becomes one of the children of the new one.
+     */
+    private void grow(float x, float y, float z) {
+        Node old = root;
+        float h = old.halfSize;
+        float nx = old.x + (x >= old.x ? h : -h), ny = old.y + (y >= old.y ? h : -h), nz = old.z + (z >= old.z ? h : -h);
+        root = new Node(null, 0, nx, ny, nz, h * 2);
+        int octant = root.octant(old.x, old.y, old.z);
+        old.parent = root;
+        old.octant = octant;
+        root.children[octant] = old;
+        root.childCount = 1;
+    }
+
+    private void unlink(Item item) {
+        Node node = item.node;
+        node.remove(item);
+        while (node != root && node.count == 0 && node.childCount == 0) {
+            Node parent = node.parent;
+            parent.children[node.octant] = null;
+            parent.childCount--;
+            node = parent;
+        }
+    }
+
+    /**
+     * Adds all entities intersecting the frustum given as six normalized planes (see {@link FrustumCuller#extractPlanes}) to {@code result}.
+     */
+    public void queryFrustum(float[] planes, List<Entity> result) {
+        queryFrustum(root, planes, result);
+    }
+
+    private void queryFrustum(Node node, float[] planes, List<Entity> result) {
+        float e = node.halfSize * 2;
+        boolean contained = true;
+        for (int p = 0; p < FrustumCuller.PLANES * 4; p += 4) {
+            float a = planes[p], b = planes[p + 1], c = planes[p + 2];
+            float d = a * node.x + b * node.y + c * node.z + planes[p + 3];
+            float r = e * (Math.abs(a) + Math.abs(b) + Math.abs(c));
+            if (d < -r) return;
+            if (d < r) contained = false;
+        }
+        if (contained) {
+            collect(node, result);
+            return;
+        }
+        for (int i = 0; i < node.count; i++) {
+            Item item = node.items[i];
+            if (inside(planes, item)) result.add(item.entity);
+        }
+        for (Node child : node.children) {
+            if (child != null) queryFrustum(child, planes, result);
+        }
+    }
+
+    private static boolean inside(float[] planes, Item item) {
+        for (int p = 0; p < FrustumCuller.PLANES * 4; p += 4) {
+            if (planes[p] * item.x + planes[p + 1] * item.y + planes[p + 2] * item.z + planes[p + 3] < -item.radius) return false;
+        }
+        return true;
+    }
+
+    private static void collect(Node node, List<Entity> result) {
+        for (int i = 0; i < node.count; i++) result.add(node.items[i].entity);
+        for (Node child : node.children) {
+            if (child != null) collect(child, result);
+        }
+    }
+
+    /**
+     * Adds all entities whose bounding sphere intersects the box to {@code result}.
+     */
+    public void queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, List<Entity> result) {
+        queryBox(root, minX, minY, minZ, maxX, maxY, maxZ, result);
+    }
+
+    private void queryBox(Node node, float minX, float minY, float minZ, float maxX, float maxY, float maxZ, List<Entity> result) {
+        float e = node.halfSize * 2;
+        if (node.x + e < minX || node.x - e > maxX || node.y + e < minY || node.y - e > maxY || node.z + e < minZ || node.z - e > maxZ) return;
+        for (int i = 0; i < node.count; i++) {
+            Item item = node.items[i];
+            float dx = item.x - Math.max(minX, Math.min(item.x, maxX));
+            float dy = item.y - Math.max(minY, Math.min(item.y, maxY));
+            float dz = item.z - Math.max(minZ, Math.min(item.z, maxZ));
+            if (dx * dx + dy * dy + dz * dz <= item.radius * item.radius) result.add(item.entity);
+        }
+        for (Node child : node.children) {
+            if (child != null) queryBox(child, minX, minY, minZ, maxX, maxY, maxZ, result);
+        }
+    }
+
+    /**
+     * Adds all entities whose bounding sphere intersects the sphere to {@code result}.
+     */
+    public void querySphere(float x, float y, float z, float radius, List<Entity> result) {
+        querySphere(root, x, y, z, radius, result);
+    }
+
+    private void querySphere(Node node, float x, float y, float z, float radius, List<Entity> result) {
+        float e = node.halfSize * 2;
+        float dx = Math.max(Math.abs(x - node.x) - e, 0), dy = Math.max(Math.abs(y - node.y) - e, 0), dz = Math.max(Math.abs(z - node.z) - e, 0);
+        if (dx * dx + dy * dy + dz * dz > radius * radius) return;
+        for (int i = 0; i < node.count; i++) {
+            Item item = node.items[i];
+            float ix = item.x - x, iy = item.y - y, iz = item.z - z, r = item.radius + radius;
+            if (ix * ix + iy * iy + iz * iz <= r * r) result.add(item.entity);
+        }
+        for (Node child : node.children) {
+            if (child != null) querySphere(child, x, y, z, radius, result);
+        }
+    }
+
+    /**
+     * Adds all entities whose bounding sphere is hit by the ray within {@code maxDistance} to {@code result}. The direction has to be normalized,
+     * the hits are not sorted by distance.
+     */
+    public void queryRay(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, List<Entity> result) {
+        queryRay(root, ox, oy, oz, dx, dy, dz, 1 / dx, 1 / dy, 1 / dz, maxDistance, result);
+    }
+
+    private void queryRay(Node node, float ox, float oy, float oz, float dx, float dy, float dz, float ix, float iy, float iz, float maxDistance,
+                          List<Entity> result) {
+        float e = node.halfSize * 2;
+        float t1 = (node.x - e - ox) * ix, t2 = (node.x + e - ox) * ix;
+        float near = Math.min(t1, t2), far = Math.max(t1, t2);
+        t1 = (node.y - e - oy) * iy;
+        t2 = (node.y + e - oy) * iy;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        t1 = (node.z - e - oz) * iz;
+        t2 = (node.z + e - oz) * iz;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        if (near > far || far < 0 || near > maxDistance) return;
+
+        for (int i = 0; i < node.count; i++) {
+            Item item = node.items[i];
+            float px = item.x - ox, py = item.y - oy, pz = item.z - oz;
+            float t = Math.max(0, Math.min(px * dx + py * dy + pz * dz, maxDistance));
+            float cx = px - dx * t, cy = py - dy * t, cz = pz - dz * t;
+            if (cx * cx + cy * cy + cz * cz <= item.radius * item.radius) result.add(item.entity);
+        }
+        for (Node child : node.children) {
+            if (child != null) queryRay(child, ox, oy, oz, dx, dy, dz, ix, iy, iz, maxDistance, result);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    static final class Item {
+        final Entity entity;
+        float x, y, z, radius;
+        Node node;
+        int index;
+
+        Item(Entity entity) {
+            this.entity = entity;
+        }
+    }
+
+    private static final class Node {
+        final float x, y, z, halfSize;
+        final Node[] children = new Node[8];
+        Node parent;
+        int octant;
+        int childCount;
+        Item[] items = new Item[4];
+        int count;
+
+        Node(Node parent, int octant, float x, float y, float z, float halfSize) {
+            this.parent = parent;
+            this.octant = octant;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.halfSize = halfSize;
+        }
+
+        boolean contains(float px, float py, float pz) {
+            return Math.abs(px - x) <= halfSize && Math.abs(py - y) <= halfSize && Math.abs(pz - z) <= halfSize;
+        }
+
+        int octant(float px, float py, float pz) {
+            return (px >= x ? 1 : 0) | (py >= y ? 2 : 0) | (pz >= z ? 4 : 0);
+        }
+
+        void add(Item item) {
+            if (count == items.length) items = Arrays.copyOf(items, count * 2);
+            item.node = this;
+            item.index = count;
+            items[count++] = item;
+        }
+
+        void remove(Item item) {
+            Item last = items[--count];
+            items[item.index] = last;
+            last.index = item.index;
+            items[count] = null;
+            item.node = null;
+        }
+    }
+}
@@ -1,22 +1,47 @@
 package de.survivalworkers.core.engine.graphics.scene;
 
 import de.survivalworkers.core.Window;
+import de.survivalworkers.core.engine.graphics.vertex.ModelData;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
 
 public class Scene {
     private Camera camera;
     private Map<String , List<Entity>> entitiesMap;
     private Projection projection;
+    private final List<SceneListener> listeners;
+    private final Map<String, ModelData.Bounds> modelBounds;
+    private final Octree octree;
+    private final float[] sphere;
+    private TransformStore transforms;
+    private final ReentrantLock lock;
+    private final IntConsumer interpolatedSlot;
+    private TransformSnapshot snapshot;
 
     public Scene(Window window){
+        this(window.getWidth(), window.getHeight());
+    }
+
+    /**
+     * Creates a scene for a viewport of the given size, e.g. for a headless renderer.
+     */
+    public Scene(int width, int height){
         entitiesMap = new HashMap<>();
         projection = new Projection();
-        projection.resize(window.getWidth(), window.getHeight());
+        projection.resize(width, height);
         camera = new Camera();
+        listeners = new ArrayList<>();
+        modelBounds = new HashMap<>();
+        octree = new Octree(512, 1);
+        sphere = new float[4];
+        transforms = new TransformStore(1024);
+        lock = new ReentrantLock();
+        interpolatedSlot = slot -> updateEntity(transforms.getEntity(slot));
     }
 
     public void addEntity(Entity entity) {
@@ -26,6 +51,105 @@ public class Scene {
             entitiesMap.put(entity.getModelId(), entities);
         }
         entities.add(entity);
+        entity.moveTo(transforms);
+        boundingSphere(entity);
+        octree.insert(entity, sphere[0], sphere[1], sphere[2], sphere[3]);
+        listeners.forEach(l -> l.entityAdded(entity));
+    }
+
+    public void removeEntity(Entity entity) {
+        List<Entity> entities = entitiesMap.get(entity.getModelId());
+        if (entities == null || !entities.remove(entity)) return;
+        octree.remove(entity);
+        entity.detach();
+        listeners.forEach(l -> l.entityRemoved(entity));
+    }
+
+    /**
+     * Rebuilds the model matrices of all entities changed since the last call in one batch, then moves them in the spatial index and notifies
+     * the listeners. Has to be called once per frame before rendering.
+     */
+    public void update() {
+        if (snapshot != null) {
+            updateInterpolated();
+            return;
+        }
+        transforms.update();
+        updateMoved();
+    }
+
+    /**
+     * Same as {@link #update()}, but the model matrices are rebuilt in parallel by the updater.
+     */
+    public void update(SceneUpdater updater) {
+        if (snapshot != null) {
+            updateInterpolated();
+            return;
+        }
+        updater.updateTransforms(transforms);
+        updateMoved();
+    }
+
+    private void updateInterpolated() {
+        snapshot.acquire();
+        snapshot.interpolate(transforms, snapshot.alpha(System.nanoTime()), interpolatedSlot);
+    }
+
+    /**
+     * Lets the render thread interpolate between the states published by {@link #publish(long, long)} instead of using the transforms
+     * directly. Pass {@code null} to switch back.
+     */
+    public void setSnapshot(TransformSnapshot snapshot) {
+        this.snapshot = snapshot;
+        transforms.setInterpolated(snapshot != null);
+    }
+
+    /**
+     * Called by the simulation thread after every tick, see {@link TransformSnapshot}.
+     */
+    public void publish(long tick, long time) {
+        snapshot.publish(transforms, tick, time);
+    }
+
+    /**
+     * Guards the scene while it is shared between the simulation and the render thread. The simulation holds it during a tick, the renderer
+     * while updating the scene and preparing the frame. Neither recording the draws, uploads nor anything waiting for the device may hold
+     * it, so a GPU stall never delays a tick.
+     */
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
+    private void updateMoved() {
+        for (int slot = transforms.nextMoved(0); slot >= 0; slot = transforms.nextMoved(slot + 1)) updateEntity(transforms.getEntity(slot));
+        transforms.clearMoved();
+    }
+
+    /**
+     * Applies a transform change of a single entity right away instead of waiting for {@link #update()}.
+     */
+    public void updateEntity(Entity entity) {
+        if (entity.store != transforms) return;
+        boundingSphere(entity);
+        octree.update(entity, sphere[0], sphere[1], sphere[2], sphere[3]);
+        listeners.forEach(l -> l.entityUpdated(entity));
+    }
+
+    /**
+     * Sets the model space bounds used for the spatial index of all entities with the given model id.
+     */
+    public void setModelBounds(String modelId, ModelData.Bounds bounds) {
+        modelBounds.put(modelId, bounds);
+        List<Entity> entities = entitiesMap.get(modelId);
+        if (entities == null) return;
+        for (Entity entity : entities) {
+            boundingSphere(entity);
+            octree.update(entity, sphere[0], sphere[1], sphere[2], sphere[3]);
+        }
+    }
+
+    private void boundingSphere(Entity entity) {
+        FrustumCuller.packSphere(entity.store.matrices, entity.store.matrix(entity.slot), modelBounds.getOrDefault(entity.getModelId(), ModelData.Bounds.EMPTY), sphere, 0);
     }
 
     public List<Entity> get(String  id){
@@ -34,12 +158,31 @@ public class Scene {
 
     public void removeEntities(){
         entitiesMap.clear();
+        octree.clear();
+        transforms = new TransformStore(1024);
+        transforms.setInterpolated(snapshot != null);
+        listeners.forEach(SceneListener::entitiesCleared);
+    }
+
+    public void addListener(SceneListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SceneListener listener) {
+        listeners.remove(listener);
     }
 
     public Projection getProjection() {
         return projection;
     }
 
+    /**
+     * Spatial index over all entities for frustum, box, sphere and ray queries.
+     */
+    public Octree getOctree() {
+        return octree;
+    }
+
     public Camera getCamera() {
         return camera;
     }
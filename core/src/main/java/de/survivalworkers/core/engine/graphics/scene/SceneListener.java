@@ -0,0 +1,14 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+/**
+ * Notified by {@link Scene} when its entities change so that GPU side copies can update single slots instead of being rebuilt.
+ */
+public interface SceneListener {
+    void entityAdded(Entity entity);
+
+    void entityRemoved(Entity entity);
+
+    void entityUpdated(Entity entity);
+
+    void entitiesCleared();
+}
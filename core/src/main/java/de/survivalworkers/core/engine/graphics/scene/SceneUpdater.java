@@ -0,0 +1,146 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+import de.survivalworkers.core.engine.graphics.vertex.ModelData;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the per frame work over all entities on a {@link ForkJoinPool}. The entities are split into chunks of a fixed size, each chunk writes only
+ * to its own part of the output arrays, and the visible indices of all chunks are merged in chunk order, so the result does not depend on the
+ * number of threads. Work smaller than one chunk runs on the calling thread.
+ * <p>
+ * The methods are not thread safe themselves, only one frame may use an updater at a time.
+ */
+public class SceneUpdater {
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private float[] spheres;
+    private int[] chunkVisible;
+    private int[] chunkCounts;
+    private int[] chunkOffsets;
+    private int[] visible;
+
+    public SceneUpdater(ForkJoinPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        spheres = new float[chunkSize * 4];
+        chunkVisible = new int[chunkSize];
+        chunkCounts = new int[16];
+        chunkOffsets = new int[16];
+        visible = new int[chunkSize];
+    }
+
+    /**
+     * Rebuilds the model matrices of all dirty slots of the store in parallel.
+     */
+    public void updateTransforms(TransformStore store) {
+        run(store.size(), store::update);
+        store.clearDirty();
+    }
+
+    /**
+     * Tests the bounding spheres of the entities against the frustum planes (see {@link FrustumCuller#extractPlanes}). The transforms of the
+     * entities have to be up to date, {@link Scene#update(SceneUpdater)} takes care of that for the entities of a scene.
+     *
+     * @return the number of visible entities, their indices into {@code entities} are available in ascending order through {@link #getVisible()}
+     */
+    public int cull(List<Entity> entities, ModelData.Bounds bounds, float[] planes) {
+        int count = entities.size();
+        int chunks = (count + chunkSize - 1) / chunkSize;
+        if (spheres.length < count * 4) spheres = new float[count * 8];
+        if (chunkVisible.length < count) chunkVisible = new int[count * 2];
+        if (visible.length < count) visible = new int[count * 2];
+        if (chunkCounts.length < chunks) {
+            chunkCounts = new int[chunks * 2];
+            chunkOffsets = new int[chunks * 2];
+        }
+
+        float[] spheres = this.spheres;
+        int[] chunkVisible = this.chunkVisible;
+        int[] chunkCounts = this.chunkCounts;
+        run(count, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                Entity entity = entities.get(i);
+                FrustumCuller.packSphere(entity.store.matrices, entity.slot * TransformStore.MATRIX_FLOATS, bounds, spheres, i);
+            }
+            chunkCounts[from / chunkSize] = FrustumCuller.cull(planes, spheres, from, to, chunkVisible, from);
+        });
+
+        int total = 0;
+        for (int c = 0; c < chunks; c++) {
+            chunkOffsets[c] = total;
+            total += chunkCounts[c];
+        }
+
+        int[] chunkOffsets = this.chunkOffsets;
+        int[] visible = this.visible;
+        run(count, (from, to) -> {
+            int c = from / chunkSize;
+            System.arraycopy(chunkVisible, from, visible, chunkOffsets[c], chunkCounts[c]);
+        });
+        return total;
+    }
+
+    /**
+     * Writes the model matrices of the entities at the given indices one after the other to {@code dst}, starting at the absolute byte
+     * {@code offset}.
+     */
+    public void writeMatrices(List<Entity> entities, int[] indices, int numIndices, ByteBuffer dst, int offset) {
+        run(numIndices, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                Entity entity = entities.get(indices[i]);
+                int o = entity.slot * TransformStore.MATRIX_FLOATS;
+                float[] m = entity.store.matrices;
+                int dstOffset = offset + i * TransformStore.MATRIX_FLOATS * 4;
+                for (int j = 0; j < TransformStore.MATRIX_FLOATS; j++) dst.putFloat(dstOffset + j * 4, m[o + j]);
+            }
+        });
+    }
+
+    public int[] getVisible() {
+        return visible;
+    }
+
+    private void run(int count, Chunk chunk) {
+        if (count <= chunkSize) {
+            if (count > 0) chunk.process(0, count);
+            return;
+        }
+        pool.invoke(new ChunkTask(chunk, 0, (count + chunkSize - 1) / chunkSize, count));
+    }
+
+    @FunctionalInterface
+    private interface Chunk {
+        void process(int from, int to);
+    }
+
+    private final class ChunkTask extends RecursiveAction {
+        private final Chunk chunk;
+        private final int firstChunk;
+        private final int lastChunk;
+        private final int count;
+
+        ChunkTask(Chunk chunk, int firstChunk, int lastChunk, int count) {
+            this.chunk = chunk;
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastChunk - firstChunk == 1) {
+                int from = firstChunk * chunkSize;
+                chunk.process(from, Math.min(from + chunkSize, count));
+                return;
+            }
+            int mid = (firstChunk + lastChunk) >>> 1;
+            invokeAll(new ChunkTask(chunk, firstChunk, mid, count), new ChunkTask(chunk, mid, lastChunk, count));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Hands the entity transforms from the simulation thread to the render thread. The simulation publishes a copy of its transforms after every
+ * tick, the render thread keeps the last two published states and interpolates between them. There are four states: one written by the
+ * simulation, one waiting in the exchange and the previous and current state of the render thread. Publishing and acquiring only swap an
+ * index in an {@link AtomicInteger}, neither side ever waits for the other.
+ */
+public class TransformSnapshot {
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final State[] states;
+    private final AtomicInteger exchange;
+    private final long tickNanos;
+    private int back;
+    private int previous;
+    private int current;
+
+    public TransformSnapshot(long tickNanos) {
+        this.tickNanos = tickNanos;
+        states = new State[4];
+        for (int i = 0; i < states.length; i++) states[i] = new State();
+        back = 0;
+        exchange = new AtomicInteger(1);
+        previous = 2;
+        current = 3;
+    }
+
+    /**
+     * Simulation thread: copies the transforms of the store together with the slots changed since the last state the render thread took.
+     *
+     * @param time the time of the tick in {@link System#nanoTime()}
+     */
+    void publish(TransformStore store, long tick, long time) {
+        State state = states[back];
+        int size = store.size();
+        if (state.scales.length < size) {
+            int capacity = Math.max(size, state.scales.length * 2);
+            state.positions = new float[capacity * 3];
+            state.rotations = new float[capacity * 4];
+            state.scales = new float[capacity];
+            state.entities = new Entity[capacity];
+        }
+        System.arraycopy(store.positions, 0, state.positions, 0, size * 3);
+        System.arraycopy(store.rotations, 0, state.rotations, 0, size * 4);
+        System.arraycopy(store.scales, 0, state.scales, 0, size);
+        store.copyEntities(state.entities, size);
+        if (state.size > size) Arrays.fill(state.entities, size, state.size, null);
+        store.takeMoved(state.changed);
+        // a state still waiting in the exchange is dropped by this publish, its changed slots would never reach the render thread otherwise.
+        // If the renderer takes it in the meantime the slots are just interpolated once more.
+        int waiting = exchange.get();
+        if ((waiting & FRESH) != 0) state.changed.or(states[waiting & INDEX_MASK].changed);
+        state.size = size;
+        state.tick = tick;
+        state.time = time;
+        back = exchange.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Render thread: takes the newest published state if there is one, the current state becomes the previous one.
+     *
+     * @return whether a new state was taken
+     */
+    boolean acquire() {
+        if ((exchange.get() & FRESH) == 0) return false;
+        int taken = exchange.getAndSet(previous) & INDEX_MASK;
+        previous = current;
+        current = taken;
+        return true;
+    }
+
+    /**
+     * Render thread: interpolation factor between the previous and the current state for the given time. Rendering is one tick behind the
+     * simulation, 0 is the previous state and 1 the current one.
+     */
+    float alpha(long now) {
+        State state = states[current];
+        if (state.tick == 0) return 1;
+        return (float) Math.max(0, Math.min(1, (double) (now - state.time) / tickNanos));
+    }
+
+    /**
+     * Render thread: writes the interpolated model matrices of all slots changed in the previous or current state into the store and passes
+     * each of those slots to {@code changed}. Slots which were reused by another entity in between are not interpolated.
+     */
+    void interpolate(TransformStore store, float alpha, IntConsumer changed) {
+        State prev = states[previous], cur = states[current];
+        for (int slot = cur.changed.nextSetBit(0); slot >= 0; slot = cur.changed.nextSetBit(slot + 1)) {
+            if (interpolate(store, prev, cur, slot, alpha)) changed.accept(slot);
+        }
+        for (int slot = prev.changed.nextSetBit(0); slot >= 0; slot = prev.changed.nextSetBit(slot + 1)) {
+            if (!cur.changed.get(slot) && interpolate(store, prev, cur, slot, alpha)) changed.accept(slot);
+        }
+    }
+
+    private static boolean interpolate(TransformStore store, State prev, State cur, int slot, float alpha) {
+        if (slot >= cur.size) return false;
+        Entity entity = cur.entities[slot];
+        if (entity == null || entity.store != store || entity.slot != slot) return false;
+        if (slot >= prev.size || prev.entities[slot] != entity) alpha = 1;
+
+        float[] pp = prev.positions, cp = cur.positions, pr = prev.rotations, cr = cur.rotations;
+        int p = slot * 3, r = slot * 4;
+        float x = alpha < 1 ? pp[p] + (cp[p] - pp[p]) * alpha : cp[p];
+        float y = alpha < 1 ? pp[p + 1] + (cp[p + 1] - pp[p + 1]) * alpha : cp[p + 1];
+        float z = alpha < 1 ? pp[p + 2] + (cp[p + 2] - pp[p + 2]) * alpha : cp[p + 2];
+        float s = alpha < 1 ? prev.scales[slot] + (cur.scales[slot] - prev.scales[slot]) * alpha : cur.scales[slot];
+        float qx = cr[r], qy = cr[r + 1], qz = cr[r + 2], qw = cr[r + 3];
+        if (alpha < 1) {
+            float ax = pr[r], ay = pr[r + 1], az = pr[r + 2], aw = pr[r + 3];
+            float sign = ax * qx + ay * qy + az * qz + aw * qw < 0 ? -1 : 1;
+            qx = ax + (qx * sign - ax) * alpha;
+            qy = ay + (qy * sign - ay) * alpha;
+            qz = az + (qz * sign - az) * alpha;
+            qw = aw + (qw * sign - aw) * alpha;
+            float invLength = 1.0f / (float) Math.sqrt(qx * qx + qy * qy + qz * qz + qw * qw);
+            qx *= invLength;
+            qy *= invLength;
+            qz *= invLength;
+            qw *= invLength;
+        }
+        store.compose(slot, x, y, z, qx, qy, qz, qw, s);
+        return true;
+    }
+
+    private static final class State {
+        float[] positions = new float[0];
+        float[] rotations = new float[0];
+        float[] scales = new float[0];
+        Entity[] entities = new Entity[0];
+        final BitSet changed = new BitSet();
+        int size;
+        long tick;
+        long time;
+    }
+}
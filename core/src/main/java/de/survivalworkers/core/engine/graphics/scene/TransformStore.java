@@ -0,0 +1,235 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+import org.joml.Matrix4f;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Positions, rotations, scales and model matrices of many entities in flat float arrays indexed by slot. Setters only mark the slot dirty,
+ * the model matrices are rebuilt in one batch by {@link #update()} or when a dirty slot is read. Slots changed since the last
+ * {@link #clearMoved()} are tracked separately, so the owner can update its own structures once per frame.
+ */
+public class TransformStore {
+    public static final int MATRIX_FLOATS = 16;
+
+    float[] positions;
+    float[] rotations;
+    float[] scales;
+    float[] matrices;
+    private Entity[] entities;
+    private int[] freeSlots;
+    private int freeCount;
+    private int size;
+    private final BitSet dirty;
+    private final BitSet moved;
+    private boolean interpolated;
+
+    public TransformStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        positions = new float[capacity * 3];
+        rotations = new float[capacity * 4];
+        scales = new float[capacity];
+        matrices = new float[capacity * MATRIX_FLOATS];
+        entities = new Entity[capacity];
+        freeSlots = new int[16];
+        dirty = new BitSet(capacity);
+        moved = new BitSet(capacity);
+    }
+
+    /**
+     * Reserves a slot with identity transform for the entity.
+     */
+    int allocate(Entity entity) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (size == entities.length) grow();
+            slot = size++;
+        }
+        entities[slot] = entity;
+        set(slot, 0, 0, 0, 0, 0, 0, 1, 1);
+        return slot;
+    }
+
+    void free(int slot) {
+        entities[slot] = null;
+        dirty.clear(slot);
+        moved.clear(slot);
+        if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+    }
+
+    private void grow() {
+        int capacity = entities.length * 2;
+        positions = Arrays.copyOf(positions, capacity * 3);
+        rotations = Arrays.copyOf(rotations, capacity * 4);
+        scales = Arrays.copyOf(scales, capacity);
+        matrices = Arrays.copyOf(matrices, capacity * MATRIX_FLOATS);
+        entities = Arrays.copyOf(entities, capacity);
+    }
+
+    void set(int slot, float x, float y, float z, float qx, float qy, float qz, float qw, float scale) {
+        positions[slot * 3] = x;
+        positions[slot * 3 + 1] = y;
+        positions[slot * 3 + 2] = z;
+        rotations[slot * 4] = qx;
+        rotations[slot * 4 + 1] = qy;
+        rotations[slot * 4 + 2] = qz;
+        rotations[slot * 4 + 3] = qw;
+        scales[slot] = scale;
+        mark(slot);
+        if (interpolated) compute(slot);
+    }
+
+    void setPosition(int slot, float x, float y, float z) {
+        positions[slot * 3] = x;
+        positions[slot * 3 + 1] = y;
+        positions[slot * 3 + 2] = z;
+        mark(slot);
+    }
+
+    void setRotation(int slot, float x, float y, float z, float w) {
+        rotations[slot * 4] = x;
+        rotations[slot * 4 + 1] = y;
+        rotations[slot * 4 + 2] = z;
+        rotations[slot * 4 + 3] = w;
+        mark(slot);
+    }
+
+    void setScale(int slot, float scale) {
+        scales[slot] = scale;
+        mark(slot);
+    }
+
+    private void mark(int slot) {
+        dirty.set(slot);
+        moved.set(slot);
+    }
+
+    /**
+     * Rebuilds the model matrices of all dirty slots.
+     *
+     * @return the number of rebuilt matrices
+     */
+    public int update() {
+        int count = 0;
+        for (int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1)) {
+            compute(slot);
+            count++;
+        }
+        dirty.clear();
+        return count;
+    }
+
+    /**
+     * Rebuilds the model matrices of the dirty slots from {@code from} (inclusive) to {@code to} (exclusive) without clearing the dirty flags,
+     * so disjoint ranges can be processed by different threads. {@link #clearDirty()} has to be called once all ranges are done.
+     */
+    void update(int from, int to) {
+        for (int slot = dirty.nextSetBit(from); slot >= 0 && slot < to; slot = dirty.nextSetBit(slot + 1)) compute(slot);
+    }
+
+    void clearDirty() {
+        dirty.clear();
+    }
+
+    /**
+     * Number of slots in use including freed ones, every slot is below this value.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Makes sure the model matrix of the slot is up to date and returns the offset of it in {@link #matrices}.
+     */
+    int matrix(int slot) {
+        if (!interpolated && dirty.get(slot)) {
+            compute(slot);
+            dirty.clear(slot);
+        }
+        return slot * MATRIX_FLOATS;
+    }
+
+    private void compute(int slot) {
+        compose(slot, positions[slot * 3], positions[slot * 3 + 1], positions[slot * 3 + 2], rotations[slot * 4], rotations[slot * 4 + 1],
+                rotations[slot * 4 + 2], rotations[slot * 4 + 3], scales[slot]);
+    }
+
+    /**
+     * Same as {@link Matrix4f#translationRotateScale}, written out so it works on the arrays directly.
+     */
+    void compose(int slot, float tx, float ty, float tz, float qx, float qy, float qz, float qw, float s) {
+        float dqx = qx + qx, dqy = qy + qy, dqz = qz + qz;
+        float q00 = dqx * qx, q11 = dqy * qy, q22 = dqz * qz;
+        float q01 = dqx * qy, q02 = dqx * qz, q03 = dqx * qw;
+        float q12 = dqy * qz, q13 = dqy * qw, q23 = dqz * qw;
+        float[] m = matrices;
+        int o = slot * MATRIX_FLOATS;
+        m[o] = s - (q11 + q22) * s;
+        m[o + 1] = (q01 + q23) * s;
+        m[o + 2] = (q02 - q13) * s;
+        m[o + 3] = 0;
+        m[o + 4] = (q01 - q23) * s;
+        m[o + 5] = s - (q22 + q00) * s;
+        m[o + 6] = (q12 + q03) * s;
+        m[o + 7] = 0;
+        m[o + 8] = (q02 + q13) * s;
+        m[o + 9] = (q12 - q03) * s;
+        m[o + 10] = s - (q11 + q00) * s;
+        m[o + 11] = 0;
+        m[o + 12] = tx;
+        m[o + 13] = ty;
+        m[o + 14] = tz;
+        m[o + 15] = 1;
+    }
+
+    Matrix4f getMatrix(int slot, Matrix4f dest) {
+        return dest.set(matrices, matrix(slot));
+    }
+
+    /**
+     * Writes the column major model matrix of the slot to {@code dst} at the absolute byte {@code offset}.
+     */
+    void getMatrix(int slot, int offset, ByteBuffer dst) {
+        int o = matrix(slot);
+        for (int i = 0; i < MATRIX_FLOATS; i++) dst.putFloat(offset + i * 4, matrices[o + i]);
+    }
+
+    int nextMoved(int from) {
+        return moved.nextSetBit(from);
+    }
+
+    void clearMoved() {
+        moved.clear();
+    }
+
+    /**
+     * Copies the slots changed since the last call to {@code dst} and clears them together with the dirty flags.
+     */
+    void takeMoved(BitSet dst) {
+        dst.clear();
+        dst.or(moved);
+        moved.clear();
+        dirty.clear();
+    }
+
+    void copyEntities(Entity[] dst, int count) {
+        System.arraycopy(entities, 0, dst, 0, count);
+    }
+
+    /**
+     * While interpolated, the model matrices are written by {@link TransformSnapshot} on the render thread and not rebuilt from the
+     * transforms. Only slots which get a new entity are built right away.
+     */
+    void setInterpolated(boolean interpolated) {
+        this.interpolated = interpolated;
+    }
+
+    Entity getEntity(int slot) {
+        return entities[slot];
+    }
+}
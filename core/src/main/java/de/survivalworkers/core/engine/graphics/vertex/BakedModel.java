@@ -0,0 +1,251 @@
+package de.survivalworkers.core.engine.graphics.vertex;
+
+import lombok.extern.slf4j.Slf4j;
+import org.joml.Vector4f;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary model format which stores the meshes in the layout of {@link VertexBufferStruct}, so loading it is one memory map instead of an
+ * Assimp import. The vertex and index sections are handed to the upload path as slices of the mapping without being copied into arrays.
+ * <p>
+ * Layout, little endian like every platform we run Vulkan on:
+ * <pre>
+ * header    magic, version, vertex size, material count, mesh count, 0, source hash (32 bytes), bounds (6 floats)
+ * materials per material: texture path length (-1 for none), UTF-8 texture path, diffuse color (4 floats)
+ * meshes    per mesh: material index, vertex count, index count, 0, vertex section offset (long), index section offset (long)
+ * sections  interleaved vertices and 32 bit indices of every mesh, each aligned to {@link #SECTION_ALIGNMENT}
+ * </pre>
+ * Files with another version or vertex size are stale, a baker run after a format change recreates them. Version 2 marks meshes which went
+ * through the {@link MeshOptimizer}.
+ */
+@Slf4j
+public class BakedModel {
+    public static final String EXTENSION = ".swm";
+    public static final int HASH_SIZE = 32;
+    private static final int MAGIC = 0x4C444D53;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24 + HASH_SIZE + 6 * 4;
+    private static final int MESH_ENTRY_SIZE = 32;
+    private static final int SECTION_ALIGNMENT = 16;
+
+    private BakedModel() {
+    }
+
+    /**
+     * Writes {@code modelData} to {@code file}. The file is written to a temporary file next to it first and then moved, so a crash never leaves
+     * a truncated file behind and loaders baking the same file at once do not write into each other's data.
+     *
+     * @param sourceHash hash of everything the model was created from, {@link #HASH_SIZE} bytes
+     */
+    public static void write(ModelData modelData, byte[] sourceHash, Path file) {
+        if (sourceHash.length != HASH_SIZE) throw new IllegalArgumentException("Source hash must have " + HASH_SIZE + " bytes");
+        List<ModelData.Material> materials = modelData.getMaterials();
+        List<ModelData.MeshData> meshes = modelData.getMeshData();
+
+        byte[][] texPaths = new byte[materials.size()][];
+        long tableSize = HEADER_SIZE;
+        for (int i = 0; i < materials.size(); i++) {
+            String texPath = materials.get(i).texPath();
+            texPaths[i] = texPath != null ? texPath.getBytes(StandardCharsets.UTF_8) : null;
+            tableSize += 4 + (texPaths[i] != null ? texPaths[i].length : 0) + 4 * 4;
+        }
+        tableSize += (long) meshes.size() * MESH_ENTRY_SIZE;
+
+        long[] vertexOffsets = new long[meshes.size()];
+        long[] indexOffsets = new long[meshes.size()];
+        long end = align(tableSize);
+        for (int i = 0; i < meshes.size(); i++) {
+            vertexOffsets[i] = end;
+            end = align(end + (long) meshes.get(i).vertexCount() * VertexBufferStruct.VERTEX_SIZE);
+            indexOffsets[i] = end;
+            end = align(end + (long) meshes.get(i).indexCount() * 4);
+        }
+
+        ByteBuffer table = ByteBuffer.allocate((int) tableSize).order(ByteOrder.LITTLE_ENDIAN);
+        table.putInt(MAGIC).putInt(VERSION).putInt(VertexBufferStruct.VERTEX_SIZE).putInt(materials.size()).putInt(meshes.size()).putInt(0);
+        table.put(sourceHash);
+        ModelData.Bounds bounds = modelData.getBounds();
+        table.putFloat(bounds.minX()).putFloat(bounds.minY()).putFloat(bounds.minZ()).putFloat(bounds.maxX()).putFloat(bounds.maxY()).putFloat(bounds.maxZ());
+        for (int i = 0; i < materials.size(); i++) {
+            if (texPaths[i] == null) {
+                table.putInt(-1);
+            } else {
+                table.putInt(texPaths[i].length).put(texPaths[i]);
+            }
+            Vector4f color = materials.get(i).diffuseColor();
+            table.putFloat(color.x).putFloat(color.y).putFloat(color.z).putFloat(color.w);
+        }
+        for (int i = 0; i < meshes.size(); i++) {
+            ModelData.MeshData mesh = meshes.get(i);
+            table.putInt(mesh.materialI()).putInt(mesh.vertexCount()).putInt(mesh.indexCount()).putInt(0).putLong(vertexOffsets[i]).putLong(indexOffsets[i]);
+        }
+        table.flip();
+
+        Path tmp = null;
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, table, 0);
+                for (int i = 0; i < meshes.size(); i++) {
+                    ModelData.MeshData mesh = meshes.get(i);
+                    ByteBuffer vertices = ByteBuffer.allocate(mesh.vertexCount() * VertexBufferStruct.VERTEX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    mesh.writeVertices(vertices);
+                    writeFully(channel, vertices.flip(), vertexOffsets[i]);
+                    ByteBuffer indices = ByteBuffer.allocate(mesh.indexCount() * 4).order(ByteOrder.LITTLE_ENDIAN);
+                    mesh.writeIndices(indices);
+                    writeFully(channel, indices.flip(), indexOffsets[i]);
+                }
+                // pads the last section, so every section can be mapped with its alignment
+                if (channel.size() < end) writeFully(channel, ByteBuffer.allocate(1), end - 1);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                if (tmp != null) Files.deleteIfExists(tmp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new RuntimeException("Could not write baked model " + file, e);
+        }
+    }
+
+    /**
+     * Maps {@code file} and creates the model data from it. The mapping stays alive as long as the returned meshes are referenced.
+     *
+     * @param sourceHash the hash the file has to have been baked from, null to accept any
+     * @return null if the file does not exist, belongs to another format version or another source, or is damaged
+     */
+    public static ModelData read(String id, Path file, byte[] sourceHash) {
+        if (!Files.isRegularFile(file)) return null;
+        MappedByteBuffer mapped;
+        int materialCount, meshCount;
+        ModelData.Bounds bounds;
+        // the header is checked before mapping, a stale file which is not mapped can be replaced right away on every platform
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (!readFully(channel, header)) {
+                log.warn("Baked model {} is damaged", file);
+                return null;
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                log.warn("{} is not a baked model", file);
+                return null;
+            }
+            if (header.getInt() != VERSION || header.getInt() != VertexBufferStruct.VERTEX_SIZE) {
+                log.debug("{} was baked with another format version", file);
+                return null;
+            }
+            materialCount = header.getInt();
+            meshCount = header.getInt();
+            header.getInt();
+            byte[] hash = new byte[HASH_SIZE];
+            header.get(hash);
+            if (sourceHash != null && !Arrays.equals(hash, sourceHash)) {
+                log.debug("{} was baked from another source", file);
+                return null;
+            }
+            bounds = new ModelData.Bounds(header.getFloat(), header.getFloat(), header.getFloat(), header.getFloat(), header.getFloat(), header.getFloat());
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map baked model " + file, e);
+        }
+        ByteBuffer data = mapped.order(ByteOrder.LITTLE_ENDIAN).position(HEADER_SIZE);
+        try {
+            List<ModelData.Material> materials = new ArrayList<>(materialCount);
+            for (int i = 0; i < materialCount; i++) {
+                int length = data.getInt();
+                String texPath = null;
+                if (length >= 0) {
+                    byte[] bytes = new byte[length];
+                    data.get(bytes);
+                    texPath = new String(bytes, StandardCharsets.UTF_8);
+                }
+                materials.add(new ModelData.Material(texPath, new Vector4f(data.getFloat(), data.getFloat(), data.getFloat(), data.getFloat())));
+            }
+
+            List<ModelData.MeshData> meshes = new ArrayList<>(meshCount);
+            for (int i = 0; i < meshCount; i++) {
+                int materialI = data.getInt();
+                int vertexCount = data.getInt();
+                int indexCount = data.getInt();
+                data.getInt();
+                long vertexOffset = data.getLong();
+                long indexOffset = data.getLong();
+                ByteBuffer vertices = data.slice((int) vertexOffset, vertexCount * VertexBufferStruct.VERTEX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                ByteBuffer indices = data.slice((int) indexOffset, indexCount * 4).order(ByteOrder.LITTLE_ENDIAN);
+                meshes.add(new ModelData.MeshData(new MappedSource(vertices, indices), materialI));
+            }
+            return new ModelData(id, meshes, materials, bounds);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            log.warn("Baked model {} is damaged", file);
+            return null;
+        }
+    }
+
+    /**
+     * The sections of a mesh in the mapped file, already in the final layout.
+     */
+    private record MappedSource(ByteBuffer vertices, ByteBuffer indices) implements ModelData.MeshSource {
+        @Override
+        public int vertexCount() {
+            return vertices.remaining() / VertexBufferStruct.VERTEX_SIZE;
+        }
+
+        @Override
+        public int indexCount() {
+            return indices.remaining() / 4;
+        }
+
+        @Override
+        public void writeVertices(ByteBuffer dst) {
+            dst.put(vertices.duplicate());
+        }
+
+        @Override
+        public void writeIndices(ByteBuffer dst) {
+            dst.put(indices.duplicate());
+        }
+
+        @Override
+        public void writeShortIndices(ByteBuffer dst) {
+            int pos = dst.position();
+            for (int i = 0; i < indices.remaining(); i += 4, pos += 2) dst.putShort(pos, (short) indices.getInt(indices.position() + i));
+            dst.position(pos);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    /**
+     * @return false if the channel ended before the buffer was full
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) return false;
+        }
+        return true;
+    }
+
+    private static long align(long offset) {
+        return (offset + SECTION_ALIGNMENT - 1) / SECTION_ALIGNMENT * SECTION_ALIGNMENT;
+    }
+}
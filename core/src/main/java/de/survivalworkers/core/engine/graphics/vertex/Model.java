@@ -1,153 +1,97 @@
 package de.survivalworkers.core.engine.graphics.vertex;
 
 import de.survivalworkers.core.engine.graphics.rendering.Buffer;
-import de.survivalworkers.core.engine.graphics.rendering.CommandBuffer;
-import de.survivalworkers.core.engine.graphics.rendering.CommandPool;
-import de.survivalworkers.core.engine.graphics.rendering.Fence;
+import de.survivalworkers.core.engine.graphics.rendering.MeshArena;
+import de.survivalworkers.core.engine.graphics.rendering.StagingRing;
+import de.survivalworkers.core.engine.graphics.rendering.UploadService;
 import de.survivalworkers.engine.core.engine.graphics.rendering.*;
-import de.survivalworkers.core.vk.device.LogicalDevice;
 import org.joml.Vector4f;
-import org.lwjgl.system.MemoryStack;
-import org.lwjgl.system.MemoryUtil;
-import org.lwjgl.vulkan.VkBufferCopy;
-import org.lwjgl.vulkan.VkQueue;
-import org.lwjgl.vulkan.VkSubmitInfo;
-
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.lwjgl.vulkan.VK10.*;
 
 public class Model {
     private final String modelId;
     private final List<Material> materials;
+    private final ModelData.Bounds bounds;
 
-    public Model(String modelId) {
+    public Model(String modelId, ModelData.Bounds bounds) {
         this.modelId = modelId;
+        this.bounds = bounds;
         materials = new ArrayList<>();
     }
 
-    private static TransferBuffers createIndicesBuffers(LogicalDevice device, ModelData.MeshData meshData) {
-        int[] indices = meshData.indices();
-        int numIndices = indices.length;
-        int bufferSize = numIndices * 4;
-
-        Buffer srcBuffer = new Buffer(device, bufferSize, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
-        Buffer dstBuffer = new Buffer(device, bufferSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-
-        long mappedMemory = srcBuffer.map();
-        IntBuffer data = MemoryUtil.memIntBuffer(mappedMemory, (int) srcBuffer.getRequestedSize());
-        data.put(indices);
-        srcBuffer.unMap();
-
-        return new TransferBuffers(srcBuffer, dstBuffer);
-    }
-
-    private static TransferBuffers createVerticesBuffers(LogicalDevice device, ModelData.MeshData meshData) {
-        float[] positions = meshData.pos();
-        float[] textCoords = meshData.texCords();
-        if (textCoords == null || textCoords.length == 0) {
-            textCoords = new float[(positions.length / 3) * 2];
-        }
-        int numElements = positions.length + textCoords.length;
-        int bufferSize = numElements * 4;
-
-        Buffer srcBuffer = new Buffer(device, bufferSize, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
-        Buffer dstBuffer = new Buffer(device, bufferSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-
-        long mappedMemory = srcBuffer.map();
-        FloatBuffer data = MemoryUtil.memFloatBuffer(mappedMemory, (int) srcBuffer.getRequestedSize());
-
-        int rows = positions.length / 3;
-        for (int row = 0; row < rows; row++) {
-            int startPos = row * 3;
-            int startTextCoord = row * 2;
-            data.put(positions[startPos]);
-            data.put(positions[startPos + 1]);
-            data.put(positions[startPos + 2]);
-            data.put(textCoords[startTextCoord]);
-            data.put(textCoords[startTextCoord + 1]);
+    private static StagingRing.Region stageIndices(UploadService uploadService, ModelData.MeshData meshData, int indexSize) {
+        StagingRing.Region region = uploadService.stage((long) meshData.indexCount() * indexSize);
+        try {
+            if (indexSize == MeshArena.SHORT_INDEX_SIZE) meshData.writeShortIndices(region.getBytes());
+            else meshData.writeIndices(region.getBytes());
+        } catch (RuntimeException e) {
+            uploadService.discard(region);
+            throw e;
         }
-
-        srcBuffer.unMap();
-
-        return new TransferBuffers(srcBuffer, dstBuffer);
+        return region;
     }
 
-    private static void recordTransferCommand(CommandBuffer cmd, TransferBuffers transferBuffers) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            VkBufferCopy.Buffer copyRegion = VkBufferCopy.calloc(1, stack)
-                    .srcOffset(0).dstOffset(0).size(transferBuffers.srcBuffer().getRequestedSize());
-            vkCmdCopyBuffer(cmd.getCmdBuf(), transferBuffers.srcBuffer().getBuffer(),
-                    transferBuffers.dstBuffer().getBuffer(), copyRegion);
+    private static StagingRing.Region stageVertices(UploadService uploadService, ModelData.MeshData meshData) {
+        StagingRing.Region region = uploadService.stage((long) meshData.vertexCount() * VertexBufferStruct.VERTEX_SIZE);
+        try {
+            meshData.writeVertices(region.getBytes());
+        } catch (RuntimeException e) {
+            uploadService.discard(region);
+            throw e;
         }
+        return region;
     }
 
-    public static List<Model> transformModels(List<ModelData> modelDataList, TextureCache texCache, CommandPool commandPool, VkQueue queue) {
+    /**
+     * Creates the models and queues the upload of their meshes and textures. The returned future completes once the device has finished all
+     * copies, i.e. in {@link UploadService#poll()}, and the models may be drawn from then on.
+     */
+    public static CompletableFuture<List<Model>> transformModels(List<ModelData> modelDataList, TextureCache texCache, MeshArena meshArena,
+                                                                 UploadService uploadService) {
         List<Model> models = new ArrayList<>();
-        LogicalDevice device = commandPool.getDevice();
-        CommandBuffer cmd = new CommandBuffer(commandPool, true, true);
-        List<Buffer> stagingBufferList = new ArrayList<>();
-        List<Texture> textures = new ArrayList<>();
-
-        cmd.beginRec();
+        List<CompletableFuture<Void>> uploads = new ArrayList<>();
 
         for (ModelData modelData : modelDataList) {
-            Model model = new Model(modelData.getId());
+            Model model = new Model(modelData.getId(), modelData.getBounds());
             models.add(model);
 
             Material defaultMat = null;
             modelData.getMaterials().forEach((material) -> {
-                Material material1 = transformMaterial(material,device,texCache,cmd,textures);
+                Material material1 = transformMaterial(material,texCache,uploadService,uploads);
                 model.materials.add(material1);
             });
 
             for (ModelData.MeshData meshData : modelData.getMeshData()) {
-                TransferBuffers verticesBuffers = createVerticesBuffers(device, meshData);
-                TransferBuffers indicesBuffers = createIndicesBuffers(device, meshData);
-                stagingBufferList.add(verticesBuffers.srcBuffer());
-                stagingBufferList.add(indicesBuffers.srcBuffer());
-                recordTransferCommand(cmd, verticesBuffers);
-                recordTransferCommand(cmd, indicesBuffers);
-
-                Mesh mesh = new Mesh(verticesBuffers.dstBuffer(), indicesBuffers.dstBuffer(), meshData.indices().length);
+                MeshArena.Range range = meshArena.allocate(meshData.vertexCount(), meshData.indexCount(), meshData.hasShortIndices());
+                uploads.add(uploadService.copyVertices(stageVertices(uploadService, meshData), range));
+                uploads.add(uploadService.copyIndices(stageIndices(uploadService, meshData, range.getIndexSize()), range));
+
+                Mesh mesh = new Mesh(range);
                 Material material;
                 int matI = meshData.materialI();
                 if(matI >= 0 && matI < model.materials.size()) material = model.materials.get(matI);
                 else {
-                    if(defaultMat == null)defaultMat = transformMaterial(new ModelData.Material(),device,texCache,cmd,textures);
+                    if(defaultMat == null)defaultMat = transformMaterial(new ModelData.Material(),texCache,uploadService,uploads);
                     material = defaultMat;
                 }
                 material.meshes.add(mesh);
             }
         }
 
-        cmd.endRec();
-        Fence fence = new Fence(device, true);
-        fence.reset();
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            VkSubmitInfo submitInfo = VkSubmitInfo.calloc(stack)
-                    .sType$Default()
-                    .pCommandBuffers(stack.pointers(cmd.getCmdBuf()));
-            vkQueueSubmit(queue, submitInfo, fence.getHandle());
-        }
-        fence.fenceWait();
-        fence.close();
-        cmd.close();
-
-        stagingBufferList.forEach(Buffer::close);
-
-        return models;
+        return CompletableFuture.allOf(uploads.toArray(CompletableFuture[]::new)).thenApply(v -> models);
     }
 
-    private static Material transformMaterial(ModelData.Material material, LogicalDevice device, TextureCache cache, CommandBuffer cmdBuf, List<Texture> textures){
-        Texture tex = cache.createTexture(device,material.texPath(), VK_FORMAT_R8G8B8A8_SRGB);
+    private static Material transformMaterial(ModelData.Material material, TextureCache cache, UploadService uploadService,
+                                              List<CompletableFuture<Void>> uploads){
+        Texture tex = cache.createTexture(uploadService,material.texPath(), VK_FORMAT_R8G8B8A8_SRGB);
         boolean hasTex = material.texPath() != null && material.texPath().trim().length() > 0;
         if(hasTex){
-            tex.recordTextureTransition(cmdBuf);
-            textures.add(tex);
+            uploads.add(tex.getUploaded());
         }
 
         return new Material(material.diffuseColor(),tex,hasTex,new ArrayList<>());
@@ -165,7 +109,8 @@ public class Model {
         return materials;
     }
 
-    private record TransferBuffers(Buffer srcBuffer, Buffer dstBuffer) {
+    public ModelData.Bounds getBounds() {
+        return bounds;
     }
 
     public record Material(Vector4f diffuseColor, Texture texture, boolean hasTexture, List<Mesh> meshes){
@@ -174,10 +119,40 @@ public class Model {
         }
     }
 
-    public record Mesh(Buffer verticesBuffer, Buffer indicesBuffer, int numIndices) {
+    /**
+     * A mesh is a range of the shared vertex and index buffers of a {@link MeshArena}, drawn with {@link #firstIndex()} and
+     * {@link #vertexOffset()}.
+     */
+    public record Mesh(MeshArena.Range range) {
+        public Buffer verticesBuffer() {
+            return range.getVertexBuffer();
+        }
+
+        public Buffer indicesBuffer() {
+            return range.getIndexBuffer();
+        }
+
+        public int numIndices() {
+            return range.getIndexCount();
+        }
+
+        public int indexType() {
+            return range.getIndexType();
+        }
+
+        public int firstIndex() {
+            return range.getFirstIndex();
+        }
+
+        public int vertexOffset() {
+            return range.getFirstVertex();
+        }
+
+        /**
+         * Gives the range back to the arena, which reuses it once the frames in flight no longer draw it.
+         */
         public void close() {
-            verticesBuffer.close();
-            indicesBuffer.close();
+            range.free();
         }
     }
 }
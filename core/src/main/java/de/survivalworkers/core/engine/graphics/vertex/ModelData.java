@@ -2,17 +2,37 @@ package de.survivalworkers.core.engine.graphics.vertex;
 
 import org.joml.Vector4f;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class ModelData {
+    /**
+     * Meshes with fewer vertices get 16 bit indices, so the highest index is 0xFFFE and 0xFFFF stays free for primitive restart.
+     */
+    public static final int SHORT_INDEX_LIMIT = 0xFFFF;
     private List<MeshData> meshData;
     private String  id;
     private List<Material> materials;
+    private Bounds bounds;
+    private Runnable release;
 
     public ModelData(String  id, List<MeshData> meshData,List<Material> materials){
+        this(id,meshData,materials,Bounds.of(meshData));
+    }
+
+    public ModelData(String  id, List<MeshData> meshData,List<Material> materials,Bounds bounds){
         this.id = id;
         this.meshData = meshData;
         this.materials = materials;
+        this.bounds = bounds;
+    }
+
+    /**
+     * @param release frees what the mesh sources read from, see {@link #close()}
+     */
+    public ModelData(String  id, List<MeshData> meshData,List<Material> materials,Bounds bounds,Runnable release){
+        this(id,meshData,materials,bounds);
+        this.release = release;
     }
 
     public List<MeshData> getMeshData() {
@@ -23,7 +43,154 @@ public class ModelData {
         return id;
     }
 
-    public record MeshData(float[] pos, float[] texCords, int[] indices,int materialI){}
+    /**
+     * A mesh either as separate arrays or read from a {@link MeshSource}, like the memory mapped file of a {@link BakedModel} or a live Assimp
+     * import streamed by {@link ModelLoader#streamModel(String, String, String)}. The arrays are null in the second case.
+     */
+    public record MeshData(float[] pos, float[] texCords, int[] indices, int materialI, MeshSource source){
+        public MeshData(float[] pos, float[] texCords, int[] indices, int materialI){
+            this(pos, texCords, indices, materialI, null);
+        }
+
+        public MeshData(MeshSource source, int materialI){
+            this(null, null, null, materialI, source);
+        }
+
+        public int vertexCount(){
+            return source != null ? source.vertexCount() : pos.length / 3;
+        }
+
+        public int indexCount(){
+            return source != null ? source.indexCount() : indices.length;
+        }
+
+        /**
+         * Whether every index fits into 16 bits, which halves the index data and the bandwidth the GPU spends on it.
+         */
+        public boolean hasShortIndices(){
+            return vertexCount() < SHORT_INDEX_LIMIT;
+        }
+
+        /**
+         * Writes the vertices interleaved as laid out by {@link VertexBufferStruct} to {@code dst} at its position and in its byte order and
+         * advances the position, missing texture coordinates are written as 0.
+         */
+        public void writeVertices(ByteBuffer dst){
+            if(source != null){
+                source.writeVertices(dst);
+                return;
+            }
+            int rows = pos.length / 3;
+            boolean hasTexCoords = texCords != null && texCords.length >= rows * 2;
+            int base = dst.position();
+            for (int row = 0; row < rows; row++) {
+                int vertex = base + row * VertexBufferStruct.VERTEX_SIZE;
+                dst.putFloat(vertex + VertexBufferStruct.POS_OFFSET, pos[row * 3]);
+                dst.putFloat(vertex + VertexBufferStruct.POS_OFFSET + 4, pos[row * 3 + 1]);
+                dst.putFloat(vertex + VertexBufferStruct.POS_OFFSET + 8, pos[row * 3 + 2]);
+                dst.putFloat(vertex + VertexBufferStruct.TEX_OFFSET, hasTexCoords ? texCords[row * 2] : 0);
+                dst.putFloat(vertex + VertexBufferStruct.TEX_OFFSET + 4, hasTexCoords ? texCords[row * 2 + 1] : 0);
+            }
+            dst.position(base + rows * VertexBufferStruct.VERTEX_SIZE);
+        }
+
+        /**
+         * Writes the 32 bit indices to {@code dst} at its position and in its byte order and advances the position.
+         */
+        public void writeIndices(ByteBuffer dst){
+            if(source != null){
+                source.writeIndices(dst);
+                return;
+            }
+            dst.asIntBuffer().put(indices);
+            dst.position(dst.position() + indices.length * 4);
+        }
+
+        /**
+         * Writes the indices as 16 bit values, only valid if {@link #hasShortIndices()}.
+         */
+        public void writeShortIndices(ByteBuffer dst){
+            if(source != null){
+                source.writeShortIndices(dst);
+                return;
+            }
+            int pos = dst.position();
+            for (int index : indices) {
+                dst.putShort(pos, (short) index);
+                pos += 2;
+            }
+            dst.position(pos);
+        }
+    }
+
+    /**
+     * Mesh data which is not held in arrays but written straight into the destination, usually a staging buffer, so every vertex is copied
+     * once on its way to the GPU.
+     */
+    public interface MeshSource {
+        int vertexCount();
+
+        int indexCount();
+
+        /**
+         * Same contract as {@link MeshData#writeVertices(ByteBuffer)}.
+         */
+        void writeVertices(ByteBuffer dst);
+
+        /**
+         * Same contract as {@link MeshData#writeIndices(ByteBuffer)}.
+         */
+        void writeIndices(ByteBuffer dst);
+
+        /**
+         * Same contract as {@link MeshData#writeShortIndices(ByteBuffer)}.
+         */
+        void writeShortIndices(ByteBuffer dst);
+    }
+
+    /**
+     * Axis aligned box around all vertices of a model in model space together with the enclosing sphere used for culling.
+     */
+    public record Bounds(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        public static final Bounds EMPTY = new Bounds(0, 0, 0, 0, 0, 0);
+
+        public static Bounds of(List<MeshData> meshes) {
+            float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+            boolean any = false;
+            for (MeshData mesh : meshes) {
+                float[] pos = mesh.pos();
+                if (pos == null) continue;
+                for (int i = 0; i + 2 < pos.length; i += 3) {
+                    minX = Math.min(minX, pos[i]);
+                    minY = Math.min(minY, pos[i + 1]);
+                    minZ = Math.min(minZ, pos[i + 2]);
+                    maxX = Math.max(maxX, pos[i]);
+                    maxY = Math.max(maxY, pos[i + 1]);
+                    maxZ = Math.max(maxZ, pos[i + 2]);
+                    any = true;
+                }
+            }
+            return any ? new Bounds(minX, minY, minZ, maxX, maxY, maxZ) : EMPTY;
+        }
+
+        public float centerX() {
+            return (minX + maxX) * 0.5f;
+        }
+
+        public float centerY() {
+            return (minY + maxY) * 0.5f;
+        }
+
+        public float centerZ() {
+            return (minZ + maxZ) * 0.5f;
+        }
+
+        public float radius() {
+            float x = maxX - minX, y = maxY - minY, z = maxZ - minZ;
+            return (float) Math.sqrt(x * x + y * y + z * z) * 0.5f;
+        }
+    }
 
     public record Material(String texPath, Vector4f diffuseColor) {
         public static final Vector4f DEFAULT_COLOR = new Vector4f(1.0f,1.0f,1.0f,1.0f);
@@ -36,4 +203,17 @@ public class ModelData {
     public List<Material> getMaterials() {
         return materials;
     }
+
+    public Bounds getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Frees the memory the meshes are read from if they are streamed from an import. The model data must not be used anymore afterwards,
+     * e.g. once its upload was staged.
+     */
+    public void close() {
+        if (release != null) release.run();
+        release = null;
+    }
 }
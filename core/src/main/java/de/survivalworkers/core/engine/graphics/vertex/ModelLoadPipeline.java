@@ -0,0 +1,122 @@
+package de.survivalworkers.core.engine.graphics.vertex;
+
+import de.survivalworkers.core.vk.Renderer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads many model files at once. Every worker imports one file (or maps its baked version), stages its meshes and textures and hands it to
+ * the upload stage of the {@link Renderer}, so at most {@code parallelism} models are being parsed and converted at the same time and no
+ * worker holds more than one model in memory. The models are registered for drawing on the render thread once their upload is done.
+ */
+@Slf4j
+public class ModelLoadPipeline {
+    private final Renderer renderer;
+    private final Path bakeDir;
+    private final ExecutorService workers;
+    /**
+     * Parses which have not finished yet, the ones never started are cancelled by {@link #close()}.
+     */
+    private final Set<CompletableFuture<?>> parsing;
+
+    public record Request(String id, String modelPath, String texPath) {
+    }
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * Called once per model after its upload finished, on the render thread, or after it failed to load, on the thread it failed on.
+         *
+         * @param done the number of models of the load which are uploaded or failed, including this one
+         * @param error why the model could not be loaded, null if it was
+         */
+        void progress(String id, int done, int total, Throwable error);
+    }
+
+    public ModelLoadPipeline(Renderer renderer, Path bakeDir) {
+        this(renderer, bakeDir, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param bakeDir directory of the baked models, which are created on the first load, or null to always import with Assimp
+     * @param parallelism the number of models loaded at the same time
+     */
+    public ModelLoadPipeline(Renderer renderer, Path bakeDir, int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        this.renderer = renderer;
+        this.bakeDir = bakeDir;
+        parsing = ConcurrentHashMap.newKeySet();
+        AtomicInteger threads = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "Model Loader " + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the models and returns at once. The future completes on the render thread once all of them are uploaded and registered, or
+     * exceptionally once all are done if one of them failed to load.
+     */
+    public CompletableFuture<List<Model>> load(List<Request> requests, ProgressListener listener) {
+        int total = requests.size();
+        AtomicInteger done = new AtomicInteger();
+        List<CompletableFuture<List<Model>>> loads = new ArrayList<>(total);
+        for (Request request : requests) {
+            CompletableFuture<CompletableFuture<List<Model>>> parse = CompletableFuture.supplyAsync(() -> loadModel(request), workers);
+            parsing.add(parse);
+            parse.whenComplete((future, e) -> parsing.remove(parse));
+            CompletableFuture<List<Model>> load = parse.thenCompose(future -> future);
+            loads.add(load.whenComplete((models, e) -> {
+                if (e != null) log.error("Could not load model {} from {}", request.id(), request.modelPath(), e);
+                if (listener != null) listener.progress(request.id(), done.incrementAndGet(), total, e);
+            }));
+        }
+        return CompletableFuture.allOf(loads.toArray(CompletableFuture[]::new)).thenApply(v -> {
+            List<Model> models = new ArrayList<>(total);
+            loads.forEach(load -> models.addAll(load.join()));
+            return models;
+        });
+    }
+
+    public CompletableFuture<List<Model>> load(List<Request> requests) {
+        return load(requests, null);
+    }
+
+    /**
+     * Runs on a worker: parses the model and stages it, the returned future is completed by the upload stage.
+     */
+    private CompletableFuture<List<Model>> loadModel(Request request) {
+        ModelData data = bakeDir != null ? ModelLoader.loadModel(request.id(), request.modelPath(), request.texPath(), bakeDir) :
+                ModelLoader.streamModel(request.id(), request.modelPath(), request.texPath());
+        try {
+            return renderer.loadModels(List.of(data));
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Waits for the models being parsed, loads which have not started yet are cancelled, so the futures of {@link #load} still complete.
+     */
+    public void close() {
+        workers.shutdownNow();
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.MINUTES)) log.warn("Model loaders did not finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // shutdownNow drops the queued tasks without completing their futures
+        parsing.forEach(parse -> parse.cancel(false));
+    }
+}
@@ -1,33 +1,146 @@
 package de.survivalworkers.core.engine.graphics.vertex;
 
-import de.survivalworkers.core.engine.graphics.Util;
+import lombok.extern.slf4j.Slf4j;
 import org.joml.Vector4f;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.assimp.*;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
+@Slf4j
 public class ModelLoader {
+    public static final int DEFAULT_FLAGS = Assimp.aiProcess_GenSmoothNormals | Assimp.aiProcess_JoinIdenticalVertices | Assimp.aiProcess_Triangulate |
+            Assimp.aiProcess_FixInfacingNormals | Assimp.aiProcess_CalcTangentSpace | Assimp.aiProcess_PreTransformVertices;
+
     public static ModelData loadModel(String id,String modelPath,String texPath){
-        return loadModel(id,modelPath,texPath,
-                Assimp.aiProcess_GenSmoothNormals | Assimp.aiProcess_JoinIdenticalVertices | Assimp.aiProcess_Triangulate | Assimp.aiProcess_FixInfacingNormals | Assimp.aiProcess_CalcTangentSpace | Assimp.aiProcess_PreTransformVertices);
+        return loadModel(id,modelPath,texPath,DEFAULT_FLAGS);
     }
 
-    private static ModelData loadModel(String id, String modelPath, String texPath, int i) {
-        if(!new File(modelPath).exists())throw new RuntimeException("Path to model:" + modelPath + " does not exist");
-        if(!new File(texPath).exists())throw new RuntimeException("Path to Texture:" + texPath + " does not exist");
-        AIScene scene = Assimp.aiImportFile(modelPath,i);
-        if(scene == null)throw new RuntimeException("Could not load model" + modelPath + " and " + texPath);
-        List<ModelData.Material> materials = new ArrayList<>();
-        for (int j = 0; j < scene.mNumMaterials(); j++) {
-            AIMaterial aiMaterial = AIMaterial.create(scene.mMaterials().get(j));
-            ModelData.Material material = processMaterial(aiMaterial,texPath);
-            materials.add(material);
+    /**
+     * Loads the model from its baked file in {@code bakeDir} and only imports it with Assimp if there is none yet or the source changed, the
+     * import is optimized with {@link MeshOptimizer} and baked for the next launch then.
+     */
+    public static ModelData loadModel(String id,String modelPath,String texPath,Path bakeDir){
+        byte[] hash = sourceHash(modelPath,texPath,DEFAULT_FLAGS);
+        Path baked = bakeDir.resolve(bakeName(modelPath,texPath));
+        ModelData data = BakedModel.read(id,baked,hash);
+        if(data != null) return data;
+        long start = System.currentTimeMillis();
+        data = MeshOptimizer.optimize(loadModel(id,modelPath,texPath,DEFAULT_FLAGS),false);
+        BakedModel.write(data,hash,baked);
+        log.info("Baked {} in {}ms", modelPath, System.currentTimeMillis() - start);
+        // another loader may replace the file meanwhile, the data just baked is returned instead of mapping it
+        return data;
+    }
+
+    /**
+     * Name of the baked file of a model: its file name and a hash of its full path and texture path, so models with the same file name in
+     * different directories, or one model loaded with different textures, get files of their own.
+     */
+    static String bakeName(String modelPath,String texPath){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Path.of(modelPath).toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(texPath.getBytes(StandardCharsets.UTF_8));
+            return Path.of(modelPath).getFileName() + "-" + String.format("%016x", ByteBuffer.wrap(digest.digest()).getLong()) + BakedModel.EXTENSION;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Could not hash model path " + modelPath, e);
         }
+    }
+
+    /**
+     * Imports the model but keeps the meshes in Assimp's memory instead of copying them into arrays, they are interleaved straight into the
+     * staging buffer when the model is uploaded. The import is released by {@link ModelData#close()}, which has to be called once the upload
+     * was queued.
+     */
+    public static ModelData streamModel(String id,String modelPath,String texPath){
+        AIScene scene = importScene(modelPath,texPath,DEFAULT_FLAGS);
+        try {
+            List<ModelData.Material> materials = processMaterials(scene,texPath);
+            PointerBuffer pp = scene.mMeshes();
+            List<ModelData.MeshData> meshes = new ArrayList<>(scene.mNumMeshes());
+            float[] bounds = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                    Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+            for (int j = 0; j < scene.mNumMeshes(); j++) {
+                AIMesh aiMesh = AIMesh.create(pp.get(j));
+                AssimpSource source = new AssimpSource(aiMesh);
+                source.extendBounds(bounds);
+                meshes.add(new ModelData.MeshData(source,aiMesh.mMaterialIndex()));
+            }
+            ModelData.Bounds modelBounds = bounds[0] <= bounds[3] ? new ModelData.Bounds(bounds[0],bounds[1],bounds[2],bounds[3],bounds[4],bounds[5]) :
+                    ModelData.Bounds.EMPTY;
+            return new ModelData(id,meshes,materials,modelBounds,() -> Assimp.aiReleaseImport(scene));
+        } catch (RuntimeException e) {
+            Assimp.aiReleaseImport(scene);
+            throw e;
+        }
+    }
+
+    /**
+     * SHA-256 over the model file and everything else the import depends on, so a baked file is recreated whenever one of them changes. That
+     * includes the material libraries of OBJ files, which hold the colors and texture names.
+     */
+    public static byte[] sourceHash(String modelPath,String texPath,int flags){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Path model = Path.of(modelPath);
+            digestFile(digest, model);
+            for (Path library : materialLibraries(model)) {
+                digest.update(library.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                if (Files.isRegularFile(library)) digestFile(digest, library);
+            }
+            digest.update(texPath.getBytes(StandardCharsets.UTF_8));
+            digest.update(ByteBuffer.allocate(4).putInt(flags).array());
+            return digest.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Could not hash model " + modelPath, e);
+        }
+    }
+
+    private static void digestFile(MessageDigest digest, Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            for (int n; (n = in.read(buf)) > 0; ) digest.update(buf, 0, n);
+        }
+    }
+
+    /**
+     * The files named by the {@code mtllib} statements of an OBJ file, none for other formats.
+     */
+    static List<Path> materialLibraries(Path model) throws IOException {
+        List<Path> libraries = new ArrayList<>();
+        if (!model.getFileName().toString().toLowerCase().endsWith(".obj")) return libraries;
+        Path dir = model.toAbsolutePath().getParent();
+        try (BufferedReader reader = Files.newBufferedReader(model, StandardCharsets.ISO_8859_1)) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                line = line.trim();
+                if (!line.startsWith("mtllib ") && !line.startsWith("mtllib\t")) continue;
+                for (String name : line.substring(6).trim().split("\\s+")) {
+                    if (!name.isEmpty()) libraries.add(dir.resolve(name));
+                }
+            }
+        }
+        return libraries;
+    }
+
+    private static ModelData loadModel(String id, String modelPath, String texPath, int i) {
+        AIScene scene = importScene(modelPath,texPath,i);
+        List<ModelData.Material> materials = processMaterials(scene,texPath);
 
         PointerBuffer pp = scene.mMeshes();
         List<ModelData.MeshData> meshes = new ArrayList<>();
@@ -37,62 +150,76 @@ public class ModelLoader {
             meshes.add(meshData);
         }
 
-        ModelData data = new ModelData(id,meshes,materials);
+        ModelData data = new ModelData(id,meshes,materials,ModelData.Bounds.of(meshes));
 
         Assimp.aiReleaseImport(scene);
         return data;
     }
 
-    private static ModelData.MeshData processMesh(AIMesh aiMesh) {
-        List<Float> vertices = processVertices(aiMesh);
-        List<Float> texCoords = processTexCoords(aiMesh);
-        List<Integer> indices = processIndicies(aiMesh);
+    private static AIScene importScene(String modelPath, String texPath, int flags) {
+        if(!new File(modelPath).exists())throw new RuntimeException("Path to model:" + modelPath + " does not exist");
+        if(!new File(texPath).exists())throw new RuntimeException("Path to Texture:" + texPath + " does not exist");
+        AIScene scene = Assimp.aiImportFile(modelPath,flags);
+        if(scene == null)throw new RuntimeException("Could not load model" + modelPath + " and " + texPath);
+        return scene;
+    }
 
-        if(texCoords.isEmpty()){
-            for (int i = 0; i < (vertices.size() / 3) * 2; i++) {
-                texCoords.add(0.0f);
-            }
+    private static List<ModelData.Material> processMaterials(AIScene scene, String texPath) {
+        List<ModelData.Material> materials = new ArrayList<>();
+        for (int j = 0; j < scene.mNumMaterials(); j++) {
+            AIMaterial aiMaterial = AIMaterial.create(scene.mMaterials().get(j));
+            ModelData.Material material = processMaterial(aiMaterial,texPath);
+            materials.add(material);
         }
-
-        int matI = aiMesh.mMaterialIndex();
-        return new ModelData.MeshData(Util.toArrayFloat(vertices),Util.toArrayFloat(texCoords),Util.toArrayInt(indices),matI);
+        return materials;
     }
 
-    private static List<Integer> processIndicies(AIMesh aiMesh) {
-        List<Integer> indices = new ArrayList<>();
-        AIFace.Buffer aiFaces = aiMesh.mFaces();
-        for (int i = 0; i < aiMesh.mNumFaces(); i++) {
-            AIFace aiFace = aiFaces.get(i);
-            IntBuffer ip = aiFace.mIndices();
-            while (ip.remaining() > 0) indices.add(ip.get());
+    /**
+     * Copies the mesh into arrays sized from the vertex and face counts, reading the Assimp memory directly instead of through struct
+     * wrappers, so the only allocations are the three arrays.
+     */
+    static ModelData.MeshData processMesh(AIMesh aiMesh) {
+        int numVertices = aiMesh.mNumVertices();
+        return new ModelData.MeshData(processVertices(aiMesh, numVertices), processTexCoords(aiMesh, numVertices), processIndices(aiMesh),
+                aiMesh.mMaterialIndex());
+    }
 
-        }
-        return indices;
+    private static float[] processVertices(AIMesh aiMesh, int numVertices) {
+        float[] vertices = new float[numVertices * 3];
+        MemoryUtil.memFloatBuffer(aiMesh.mVertices().address(), vertices.length).get(vertices);
+        return vertices;
     }
 
-    private static List<Float> processTexCoords(AIMesh aiMesh) {
-        List<Float> texCoords = new ArrayList<>();
+    /**
+     * @return the first UV channel with v flipped, or zeros if the mesh has none
+     */
+    private static float[] processTexCoords(AIMesh aiMesh, int numVertices) {
+        float[] texCoords = new float[numVertices * 2];
         AIVector3D.Buffer aiTexCoords = aiMesh.mTextureCoords(0);
-        int count = aiTexCoords != null ? aiTexCoords.remaining() : 0;
-        for (int i = 0; i < count; i++) {
-            AIVector3D texCoord = aiTexCoords.get();
-            texCoords.add(texCoord.x());
-            texCoords.add(1 - texCoord.y());
+        if (aiTexCoords == null) return texCoords;
+        long address = aiTexCoords.address();
+        for (int i = 0; i < numVertices; i++, address += AIVector3D.SIZEOF) {
+            texCoords[i * 2] = MemoryUtil.memGetFloat(address + AIVector3D.X);
+            texCoords[i * 2 + 1] = 1 - MemoryUtil.memGetFloat(address + AIVector3D.Y);
         }
-
         return texCoords;
     }
 
-    private static List<Float> processVertices(AIMesh aiMesh) {
-        List<Float> vertices = new ArrayList<>();
-        AIVector3D.Buffer aiVertices = aiMesh.mVertices();
-        while (aiVertices.remaining() > 0) {
-            AIVector3D aiVertex = aiVertices.get();
-            vertices.add(aiVertex.x());
-            vertices.add(aiVertex.y());
-            vertices.add(aiVertex.z());
+    private static int[] processIndices(AIMesh aiMesh) {
+        int numFaces = aiMesh.mNumFaces();
+        long faces = aiMesh.mFaces().address();
+        int count = 0;
+        for (int i = 0; i < numFaces; i++) count += MemoryUtil.memGetInt(faces + (long) i * AIFace.SIZEOF + AIFace.MNUMINDICES);
+
+        int[] indices = new int[count];
+        int pos = 0;
+        for (int i = 0; i < numFaces; i++) {
+            long face = faces + (long) i * AIFace.SIZEOF;
+            int numIndices = MemoryUtil.memGetInt(face + AIFace.MNUMINDICES);
+            long faceIndices = MemoryUtil.memGetAddress(face + AIFace.MINDICES);
+            for (int j = 0; j < numIndices; j++) indices[pos++] = MemoryUtil.memGetInt(faceIndices + j * 4L);
         }
-        return vertices;
+        return indices;
     }
 
     private static ModelData.Material processMaterial(AIMaterial aiMaterial, String texPath) {
@@ -114,4 +241,97 @@ public class ModelLoader {
             return new ModelData.Material(texturePath,diffuse);
         }
     }
+
+    /**
+     * Reads a mesh straight from the Assimp import, which must stay alive until the mesh was written.
+     */
+    private static final class AssimpSource implements ModelData.MeshSource {
+        private final long vertices;
+        private final long texCoords;
+        private final long faces;
+        private final int vertexCount;
+        private final int faceCount;
+        private final int indexCount;
+
+        private AssimpSource(AIMesh aiMesh) {
+            vertexCount = aiMesh.mNumVertices();
+            faceCount = aiMesh.mNumFaces();
+            vertices = aiMesh.mVertices().address();
+            AIVector3D.Buffer aiTexCoords = aiMesh.mTextureCoords(0);
+            texCoords = aiTexCoords != null ? aiTexCoords.address() : MemoryUtil.NULL;
+            faces = aiMesh.mFaces().address();
+            int count = 0;
+            for (int i = 0; i < faceCount; i++) count += MemoryUtil.memGetInt(faces + (long) i * AIFace.SIZEOF + AIFace.MNUMINDICES);
+            indexCount = count;
+        }
+
+        @Override
+        public int vertexCount() {
+            return vertexCount;
+        }
+
+        @Override
+        public int indexCount() {
+            return indexCount;
+        }
+
+        /**
+         * Grows {@code bounds} (min xyz, max xyz) to contain the vertices.
+         */
+        private void extendBounds(float[] bounds) {
+            for (int i = 0; i < vertexCount; i++) {
+                long vertex = vertices + (long) i * AIVector3D.SIZEOF;
+                for (int c = 0; c < 3; c++) {
+                    float v = MemoryUtil.memGetFloat(vertex + c * 4L);
+                    bounds[c] = Math.min(bounds[c], v);
+                    bounds[c + 3] = Math.max(bounds[c + 3], v);
+                }
+            }
+        }
+
+        @Override
+        public void writeVertices(ByteBuffer dst) {
+            int base = dst.position();
+            for (int i = 0; i < vertexCount; i++) {
+                int vertex = base + i * VertexBufferStruct.VERTEX_SIZE;
+                long pos = vertices + (long) i * AIVector3D.SIZEOF;
+                dst.putFloat(vertex + VertexBufferStruct.POS_OFFSET, MemoryUtil.memGetFloat(pos + AIVector3D.X));
+                dst.putFloat(vertex + VertexBufferStruct.POS_OFFSET + 4, MemoryUtil.memGetFloat(pos + AIVector3D.Y));
+                dst.putFloat(vertex + VertexBufferStruct.POS_OFFSET + 8, MemoryUtil.memGetFloat(pos + AIVector3D.Z));
+                if (texCoords != MemoryUtil.NULL) {
+                    long tex = texCoords + (long) i * AIVector3D.SIZEOF;
+                    dst.putFloat(vertex + VertexBufferStruct.TEX_OFFSET, MemoryUtil.memGetFloat(tex + AIVector3D.X));
+                    dst.putFloat(vertex + VertexBufferStruct.TEX_OFFSET + 4, 1 - MemoryUtil.memGetFloat(tex + AIVector3D.Y));
+                } else {
+                    dst.putFloat(vertex + VertexBufferStruct.TEX_OFFSET, 0);
+                    dst.putFloat(vertex + VertexBufferStruct.TEX_OFFSET + 4, 0);
+                }
+            }
+            dst.position(base + vertexCount * VertexBufferStruct.VERTEX_SIZE);
+        }
+
+        @Override
+        public void writeIndices(ByteBuffer dst) {
+            int pos = dst.position();
+            for (int i = 0; i < faceCount; i++) {
+                long face = faces + (long) i * AIFace.SIZEOF;
+                int numIndices = MemoryUtil.memGetInt(face + AIFace.MNUMINDICES);
+                long faceIndices = MemoryUtil.memGetAddress(face + AIFace.MINDICES);
+                for (int j = 0; j < numIndices; j++, pos += 4) dst.putInt(pos, MemoryUtil.memGetInt(faceIndices + j * 4L));
+            }
+            dst.position(pos);
+        }
+
+        @Override
+        public void writeShortIndices(ByteBuffer dst) {
+            int pos = dst.position();
+            for (int i = 0; i < faceCount; i++) {
+                long face = faces + (long) i * AIFace.SIZEOF;
+                int numIndices = MemoryUtil.memGetInt(face + AIFace.MNUMINDICES);
+                long faceIndices = MemoryUtil.memGetAddress(face + AIFace.MINDICES);
+                for (int j = 0; j < numIndices; j++, pos += 2) dst.putShort(pos, (short) MemoryUtil.memGetInt(faceIndices + j * 4L));
+            }
+            dst.position(pos);
+        }
+    }
 }
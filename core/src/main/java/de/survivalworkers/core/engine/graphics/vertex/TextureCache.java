@@ -1,29 +1,42 @@
 package de.survivalworkers.core.engine.graphics.vertex;
 
-import de.survivalworkers.core.vk.device.LogicalDevice;
+import de.survivalworkers.core.engine.graphics.rendering.UploadService;
 
-import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Shares textures between models. Safe to use from several loader threads, every texture is decoded once even if models referencing it are
+ * loaded at the same time.
+ */
 public class TextureCache {
-    private final HashMap<String, Texture> textures;
+    private final ConcurrentHashMap<String, CompletableFuture<Texture>> textures;
 
     public TextureCache(){
-        textures = new HashMap<>();
+        textures = new ConcurrentHashMap<>();
     }
 
-    public Texture createTexture(LogicalDevice device, String path, int format){
+    public Texture createTexture(UploadService uploadService, String path, int format){
         String texPath = path;
         if(path == null || path.trim().isEmpty())texPath = /*Properties.getInstance().getTexPath()*/ "";
-        Texture texture = textures.get(texPath);
-        if(texture == null){
-            texture = new Texture(device,texPath,format);
-            textures.put(path,texture);
+        // only a placeholder is put into the map, decoding inside computeIfAbsent would block every thread whose texture hashes to the same bin
+        CompletableFuture<Texture> created = new CompletableFuture<>();
+        CompletableFuture<Texture> texture = textures.putIfAbsent(texPath, created);
+        if(texture != null) return texture.join();
+        try {
+            created.complete(new Texture(uploadService,texPath,format));
+        } catch (RuntimeException e) {
+            textures.remove(texPath, created);
+            created.completeExceptionally(e);
+            throw e;
         }
-        return texture;
+        return created.join();
     }
 
     public void close() {
-        textures.forEach((k,v) -> v.close());
+        textures.forEach((k,v) -> {
+            if(v.isDone() && !v.isCompletedExceptionally()) v.join().close();
+        });
         textures.clear();
     }
 }
@@ -7,24 +7,48 @@ import org.lwjgl.vulkan.VkVertexInputBindingDescription;
 import static org.lwjgl.vulkan.VK10.*;
 
 public class VertexBufferStruct extends VertexInputInfo{
+    public static final int VERTEX_BINDING = 0;
+    public static final int INSTANCE_BINDING = 1;
+    public static final int INSTANCE_STRIDE = 64;
     private static final int NUM_ATTRIB = 2;
+    private static final int NUM_INSTANCE_ATTRIB = 4;
     private static final int POS_COMP = 3;
     private static final int TEX_COMP = 2;
+    public static final int VERTEX_SIZE = (POS_COMP + TEX_COMP) * 4;
+    /** Byte offsets of the attributes inside a vertex. */
+    public static final int POS_OFFSET = 0;
+    public static final int TEX_OFFSET = POS_OFFSET + POS_COMP * 4;
 
     private final VkVertexInputAttributeDescription.Buffer viAttrib;
     private final VkVertexInputBindingDescription.Buffer viDesc;
 
     public VertexBufferStruct(){
-        viAttrib = VkVertexInputAttributeDescription.calloc(NUM_ATTRIB);
-        viDesc = VkVertexInputBindingDescription.calloc(1);
+        this(false);
+    }
+
+    /**
+     * @param instanced if true a second binding with {@link #INSTANCE_STRIDE} bytes per instance is added which feeds the model matrix as four vec4 columns
+     *                  (locations 2 to 5) to the vertex shader
+     */
+    public VertexBufferStruct(boolean instanced){
+        viAttrib = VkVertexInputAttributeDescription.calloc(instanced ? NUM_ATTRIB + NUM_INSTANCE_ATTRIB : NUM_ATTRIB);
+        viDesc = VkVertexInputBindingDescription.calloc(instanced ? 2 : 1);
         stateInfo = VkPipelineVertexInputStateCreateInfo.calloc();
 
         int i = 0;
-        viAttrib.get(i).binding(0).location(i).format(VK_FORMAT_R32G32B32_SFLOAT).offset(0);
+        viAttrib.get(i).binding(VERTEX_BINDING).location(i).format(VK_FORMAT_R32G32B32_SFLOAT).offset(POS_OFFSET);
         i++;
-        viAttrib.get(i).binding(0).location(i).format(VK_FORMAT_R32G32_SFLOAT).offset(POS_COMP * 4);
+        viAttrib.get(i).binding(VERTEX_BINDING).location(i).format(VK_FORMAT_R32G32_SFLOAT).offset(TEX_OFFSET);
+
+        viDesc.get(0).binding(VERTEX_BINDING).stride(VERTEX_SIZE).inputRate(VK_VERTEX_INPUT_RATE_VERTEX);
 
-        viDesc.get(0).binding(0).stride(POS_COMP * 4 + TEX_COMP * 4).inputRate(VK_VERTEX_INPUT_RATE_VERTEX);
+        if(instanced){
+            for (int j = 0; j < NUM_INSTANCE_ATTRIB; j++) {
+                i++;
+                viAttrib.get(i).binding(INSTANCE_BINDING).location(i).format(VK_FORMAT_R32G32B32A32_SFLOAT).offset(j * 16);
+            }
+            viDesc.get(1).binding(INSTANCE_BINDING).stride(INSTANCE_STRIDE).inputRate(VK_VERTEX_INPUT_RATE_INSTANCE);
+        }
 
         stateInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO).pVertexBindingDescriptions(viDesc).pVertexAttributeDescriptions(viAttrib);
     }
@@ -1,10 +1,13 @@
 package de.survivalworkers.core.engine.io;
 
+import de.survivalworkers.core.engine.graphics.rendering.PresentMode;
 import lombok.Getter;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
 
 import java.io.InputStream;
 
+@Slf4j
 public class Configuration {
     private static Configuration instance;
     private static final String FILENAME = "game.properties";
@@ -23,6 +26,15 @@ public class Configuration {
     private String texPath;
     @Getter
     private int maxMaterials;
+    @Getter
+    private PresentMode presentMode;
+    /**
+     * Frame rate limit, 0 for none.
+     */
+    @Getter
+    private int maxFps;
+    @Getter
+    private boolean lowLatency;
 
     public static synchronized Configuration getInstance(){
         if(instance == null)
@@ -36,14 +48,26 @@ public class Configuration {
         java.util.Properties properties = new java.util.Properties();
         InputStream stream = Configuration.class.getResourceAsStream("/" + FILENAME);
 
-            properties.load(stream);
+            if(stream != null) properties.load(stream);
             tps = Integer.parseInt(properties.getOrDefault("tps",20).toString());
-            requImgs = Integer.parseInt(properties.getOrDefault("imgs",3).toString());
+            requImgs = Integer.parseInt(properties.getOrDefault("imgs",0).toString());
             fov = (float) Math.toRadians(Float.parseFloat(properties.getOrDefault("fov", 60.0f).toString()));
             zNear = Float.parseFloat(properties.getOrDefault("zNear", 1.0f).toString());
             zFar = Float.parseFloat(properties.getOrDefault("zFar", 100.0f).toString());
             maxMaterials = Integer.parseInt(properties.getOrDefault("max_materials",500).toString());
             debug = Boolean.parseBoolean(properties.getOrDefault("debug", false).toString());
-            texPath = properties.get("TexturePath").toString();
+            texPath = properties.getOrDefault("TexturePath", "").toString();
+            presentMode = parsePresentMode(properties.getOrDefault("present_mode", "immediate").toString());
+            maxFps = Integer.parseInt(properties.getOrDefault("max_fps",0).toString());
+            lowLatency = Boolean.parseBoolean(properties.getOrDefault("low_latency", false).toString());
+    }
+
+    private static PresentMode parsePresentMode(String value) {
+        try {
+            return PresentMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown present mode {}, using {}", value, PresentMode.FIFO);
+            return PresentMode.FIFO;
+        }
     }
 }
@@ -0,0 +1,118 @@
+package de.survivalworkers.core.engine.io;
+
+import de.survivalworkers.core.engine.graphics.rendering.CapturedFrame;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.lwjgl.stb.STBImageWrite;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes captured frames to numbered files on a background thread, so encoding never slows down the render thread. If the writer falls more
+ * than {@code maxQueued} frames behind, new frames are dropped instead of piling up.
+ */
+@Slf4j
+public class FrameWriter implements Consumer<CapturedFrame> {
+    public static final int DEFAULT_MAX_QUEUED = 8;
+
+    public enum Format {
+        /** RGBA png files. */
+        PNG,
+        /** The pixels exactly as read back, without a header, the file name contains the size and channel order. */
+        RAW
+    }
+
+    private final Path directory;
+    private final Format format;
+    private final ExecutorService executor;
+    private final Semaphore queued;
+    @Getter
+    private volatile long droppedFrames;
+
+    public FrameWriter(Path directory, Format format) {
+        this(directory, format, DEFAULT_MAX_QUEUED);
+    }
+
+    public FrameWriter(Path directory, Format format, int maxQueued) {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create capture directory " + directory, e);
+        }
+        this.directory = directory;
+        this.format = format;
+        queued = new Semaphore(maxQueued);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Frame Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void accept(CapturedFrame frame) {
+        if (!queued.tryAcquire()) {
+            droppedFrames++;
+            return;
+        }
+        ByteBuffer pixels = MemoryUtil.memAlloc(frame.pixels().remaining());
+        MemoryUtil.memCopy(frame.pixels(), pixels);
+        executor.execute(() -> {
+            try {
+                write(frame, pixels);
+            } catch (Exception e) {
+                log.error("Could not write frame {}", frame.frameNumber(), e);
+            } finally {
+                MemoryUtil.memFree(pixels);
+                queued.release();
+            }
+        });
+    }
+
+    private void write(CapturedFrame frame, ByteBuffer pixels) throws IOException {
+        String name = String.format("frame_%06d", frame.frameNumber());
+        if (format == Format.PNG) {
+            if (frame.isBgra()) swapRedBlue(pixels);
+            Path file = directory.resolve(name + ".png");
+            if (!STBImageWrite.stbi_write_png(file.toString(), frame.width(), frame.height(), 4, pixels, frame.width() * 4))
+                throw new IOException("Could not write " + file);
+        } else {
+            Path file = directory.resolve(name + "_" + frame.width() + "x" + frame.height() + (frame.isBgra() ? ".bgra" : ".rgba"));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (pixels.hasRemaining()) channel.write(pixels);
+            }
+        }
+    }
+
+    private static void swapRedBlue(ByteBuffer pixels) {
+        for (int i = 0; i < pixels.limit(); i += 4) {
+            byte blue = pixels.get(i);
+            pixels.put(i, pixels.get(i + 2));
+            pixels.put(i + 2, blue);
+        }
+    }
+
+    /**
+     * Waits until all queued frames are written.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) log.warn("Frame writer did not finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
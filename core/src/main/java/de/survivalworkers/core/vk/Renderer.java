@@ -1,13 +1,24 @@
 package de.survivalworkers.core.vk;
 
 import de.survivalworkers.core.engine.graphics.ForwardRenderActivity;
+import de.survivalworkers.core.engine.graphics.RenderStats;
 import de.survivalworkers.core.engine.graphics.pipeline.PipelineCache;
+import de.survivalworkers.core.engine.graphics.rendering.CapturedFrame;
 import de.survivalworkers.core.engine.graphics.rendering.CommandPool;
+import de.survivalworkers.core.engine.graphics.rendering.FrameCapture;
+import de.survivalworkers.core.engine.graphics.rendering.FrameScheduler;
 import de.survivalworkers.core.engine.graphics.rendering.Instance;
+import de.survivalworkers.core.engine.graphics.rendering.MeshArena;
+import de.survivalworkers.core.engine.graphics.rendering.OffscreenTarget;
+import de.survivalworkers.core.engine.graphics.rendering.PresentMode;
+import de.survivalworkers.core.engine.graphics.rendering.RenderTarget;
 import de.survivalworkers.core.engine.graphics.rendering.SwapChain;
+import de.survivalworkers.core.engine.graphics.rendering.UploadService;
 import de.survivalworkers.core.engine.graphics.scene.Scene;
+import de.survivalworkers.core.engine.graphics.scene.SceneUpdater;
 import de.survivalworkers.core.engine.graphics.vertex.Model;
 import de.survivalworkers.core.engine.graphics.vertex.ModelData;
+import de.survivalworkers.core.engine.graphics.vertex.ModelLoadPipeline;
 import de.survivalworkers.core.engine.graphics.vertex.TextureCache;
 import de.survivalworkers.core.Window;
 import de.survivalworkers.core.vk.device.LogicalDevice;
@@ -15,9 +26,19 @@ import de.survivalworkers.core.vk.device.PhysicalDevice;
 import lombok.Getter;
 import org.lwjgl.system.MemoryStack;
 
+import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static org.lwjgl.vulkan.KHRSurface.vkDestroySurfaceKHR;
+import static org.lwjgl.vulkan.VK10.VK_NULL_HANDLE;
 
 public class Renderer {
     @Getter
@@ -26,67 +47,262 @@ public class Renderer {
     private final PhysicalDevice physicalDevice;
     @Getter
     private final LogicalDevice logicalDevice;
-    private SwapChain swapChain;
+    /**
+     * The swap chain, or null for a headless renderer.
+     */
+    private final SwapChain swapChain;
+    /**
+     * The window surface, or {@code VK_NULL_HANDLE} for a headless renderer.
+     */
+    private final long surface;
+    private final RenderTarget target;
     private final CommandPool cmdPool;
+    private final FrameScheduler frames;
     private final ForwardRenderActivity activity;
     private final List<Model> models;
     private final PipelineCache cache;
     private final Scene scene;
+    private final SceneUpdater sceneUpdater;
+    private final MeshArena meshArena;
+    private final UploadService uploadService;
+    /**
+     * Work handed to the render thread, run at the start of the next frame.
+     */
+    private final Queue<Runnable> renderTasks;
     private TextureCache textureCache;
+    private FrameCapture capture;
+    private boolean swapChainOutdated;
 
     public Renderer(Window window, Scene scene) {
+        this(window, scene, PresentMode.IMMEDIATE, 0);
+    }
+
+    /**
+     * @param imageCount the number of swap chain images, 0 for the number the present mode needs
+     */
+    public Renderer(Window window, Scene scene, PresentMode presentMode, int imageCount) {
+        this(window, scene, presentMode, imageCount, window.getWidth(), window.getHeight());
+    }
+
+    /**
+     * Creates a headless renderer which draws into offscreen images of the given size instead of a window, so it needs neither GLFW nor a
+     * display and runs with software drivers like lavapipe. Frames are drawn with {@link #render()} and read back with
+     * {@link #readPixels(ByteBuffer)}.
+     */
+    public Renderer(Scene scene, int width, int height) {
+        this(null, scene, PresentMode.FIFO, 0, width, height);
+    }
+
+    private Renderer(Window window, Scene scene, PresentMode presentMode, int imageCount, int width, int height) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            instance = new Instance("Test");
-            LongBuffer pSurface = stack.mallocLong(1);
-            window.createSurface(instance.getHandle(), pSurface);
-            long surface = pSurface.get(0);
-            physicalDevice = new PhysicalDevice(instance, surface);
+            instance = new Instance("Test", window != null);
+            if (window != null) {
+                LongBuffer pSurface = stack.mallocLong(1);
+                window.createSurface(instance.getHandle(), pSurface);
+                surface = pSurface.get(0);
+                physicalDevice = new PhysicalDevice(instance, surface);
+            } else {
+                surface = VK_NULL_HANDLE;
+                physicalDevice = new PhysicalDevice(instance, surface, new String[0]);
+            }
             logicalDevice = new LogicalDevice(physicalDevice);
-            swapChain = new SwapChain(physicalDevice, logicalDevice, surface, window.getWidth(), window.getHeight());
-            cmdPool = new CommandPool(logicalDevice, physicalDevice.queryQueueFamilies(stack).getGraphicsFamily());
+            cmdPool = new CommandPool(logicalDevice, physicalDevice.getCapabilities().getQueueFamilies().getGraphicsFamily());
+            frames = new FrameScheduler(logicalDevice, cmdPool);
+            if (window != null) {
+                swapChain = new SwapChain(physicalDevice, logicalDevice, surface, width, height, presentMode, imageCount);
+                target = swapChain;
+                frames.setImageCount(swapChain.getImageViews().length);
+            } else {
+                swapChain = null;
+                target = new OffscreenTarget(logicalDevice, width, height, frames.getFramesInFlight());
+            }
             cache = new PipelineCache(logicalDevice);
             this.scene = scene;
-            activity = new ForwardRenderActivity(swapChain, cmdPool, cache, scene);
+            sceneUpdater = new SceneUpdater(ForkJoinPool.commonPool(), SceneUpdater.DEFAULT_CHUNK_SIZE);
+            activity = new ForwardRenderActivity(target, cmdPool, cache, scene, sceneUpdater, frames.getFramesInFlight());
             models = new ArrayList<>();
+            meshArena = new MeshArena(logicalDevice, frames.getFramesInFlight());
+            uploadService = new UploadService(logicalDevice);
             textureCache = new TextureCache();
+            renderTasks = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Queues the upload of the models without waiting for it. They are registered for drawing by the render thread once the upload is done,
+     * which is when the returned future completes. The meshes are staged before this returns, so streamed model data may be closed right after.
+     * May be called from any thread, e.g. by the workers of a {@link ModelLoadPipeline}.
+     */
+    public CompletableFuture<List<Model>> loadModels(List<ModelData> modelDataList) {
+        scene.getLock().lock();
+        try {
+            modelDataList.forEach(modelData -> scene.setModelBounds(modelData.getId(), modelData.getBounds()));
+        } finally {
+            scene.getLock().unlock();
         }
+        return Model.transformModels(modelDataList, textureCache, meshArena, uploadService).thenApplyAsync(loaded -> {
+            models.addAll(loaded);
+            activity.registerModels(loaded);
+            return loaded;
+        }, renderTasks::add);
+    }
+
+    /**
+     * Packs the meshes of all loaded models tightly into one vertex and one index buffer, e.g. after a level was unloaded. May be called from
+     * any thread, the returned future completes once the render thread compacted the meshes before its next frame.
+     */
+    public CompletableFuture<Void> compactMeshes() {
+        // runs on the render thread between frames, so no draws are recorded against the pages being released
+        return CompletableFuture.runAsync(() -> {
+            if (!meshArena.isFragmented()) return;
+            meshArena.compact(cmdPool, logicalDevice.getGraphicsQueue());
+            activity.meshesMoved();
+        }, renderTasks::add);
+    }
+
+    public void setDrawMode(ForwardRenderActivity.DrawMode drawMode) {
+        activity.setDrawMode(drawMode);
+    }
+
+    public void setRecordThreads(int threads) {
+        activity.setRecordThreads(threads);
+    }
+
+    /**
+     * Switches the present mode, the swap chain is recreated before the next frame.
+     *
+     * @param imageCount the number of swap chain images, 0 for the number the present mode needs
+     */
+    public void setPresentMode(PresentMode presentMode, int imageCount) {
+        if (swapChain == null) throw new IllegalStateException("A headless renderer does not present");
+        swapChain.setPresentMode(presentMode, imageCount);
+        swapChainOutdated = true;
+    }
+
+    public PresentMode getPresentMode() {
+        return swapChain != null ? swapChain.getPresentMode() : null;
+    }
+
+    /**
+     * In low latency mode the CPU starts a frame only once the GPU finished the previous one, so every frame shows the most recent scene state
+     * at the cost of CPU and GPU no longer overlapping.
+     */
+    public void setLowLatency(boolean lowLatency) {
+        frames.setMaxFramesAhead(lowLatency ? 1 : frames.getFramesInFlight());
+    }
+
+    public boolean isLowLatency() {
+        return frames.getMaxFramesAhead() == 1;
     }
 
-    public void loadModels(List<ModelData> modelDataList) {
-        models.addAll(Model.transformModels(modelDataList, textureCache, cmdPool, logicalDevice.getGraphicsQueue()));
-        models.forEach(m -> m.getMaterials().sort((a, b) -> Boolean.compare(a.isTransparent(), b.isTransparent())));
-        models.sort((a, b) -> {
-            boolean aTrans = a.getMaterials().stream().anyMatch(Model.Material::isTransparent);
-            boolean bTrans = b.getMaterials().stream().anyMatch(Model.Material::isTransparent);
-            return Boolean.compare(aTrans, bTrans);
-        });
-        activity.registerModels(models);
+    public RenderStats getStats() {
+        return activity.getStats();
+    }
+
+    public boolean isHeadless() {
+        return swapChain == null;
     }
 
     public void render(Window window) {
+        if (swapChain == null) throw new IllegalStateException("A headless renderer is drawn with render()");
         if (window.getWidth() <= 0 && window.getHeight() <= 0) return;
 
-        if (window.isResized() || swapChain.acquireNextImage()) {
+        FrameScheduler.Frame frame = frames.begin();
+        if (window.isResized() || swapChainOutdated || swapChain.acquireNextImage(frame.getImageAcquired())) {
             window.setResized(false);
+            swapChainOutdated = false;
             resize(window);
             scene.getProjection().resize(window.getWidth(), window.getHeight());
-            swapChain.acquireNextImage();
+            swapChain.acquireNextImage(frame.getImageAcquired());
         }
 
-        activity.recordCommandBuffer(models);
-        activity.submit(logicalDevice.getPresentQueue());
+        record(frame);
+        int imageIndex = swapChain.getImageIndex();
+        frames.submit(logicalDevice.getGraphicsQueue(), frame, imageIndex);
+
+        if (swapChain.presentImage(logicalDevice.getPresentQueue(), frames.getRenderFinished(imageIndex))) window.setResized(true);
+    }
+
+    /**
+     * Draws one frame of a headless renderer into the next offscreen image.
+     */
+    public void render() {
+        if (swapChain != null) throw new IllegalStateException("A renderer with a window is drawn with render(Window)");
+        FrameScheduler.Frame frame = frames.begin();
+        target.acquireNextImage(frame.getImageAcquired());
+        record(frame);
+        frames.submit(logicalDevice.getGraphicsQueue(), frame);
+    }
+
+    /**
+     * Copies the last frame of a headless renderer into {@code dst}, as tightly packed RGBA rows. Waits for the device.
+     */
+    public void readPixels(ByteBuffer dst) {
+        if (swapChain != null) throw new IllegalStateException("Only headless renderers can read frames back");
+        ((OffscreenTarget) target).readPixels(cmdPool, logicalDevice.getGraphicsQueue(), dst);
+    }
+
+    /**
+     * Reads every rendered frame back and hands it to {@code consumer} on the render thread, a few frames later and without waiting for the
+     * GPU, see {@link FrameCapture}. Works for headless renderers and, if the surface allows it, for swap chains.
+     */
+    public void startCapture(Consumer<CapturedFrame> consumer) {
+        if (!target.isReadable()) throw new IllegalStateException("The render target does not support reading back its images");
+        stopCapture();
+        capture = new FrameCapture(logicalDevice, frames.getFramesInFlight(), consumer);
+        activity.setCapture(capture);
+    }
+
+    /**
+     * Waits for the device and hands the frames still in flight to the consumer before capturing stops.
+     */
+    public void stopCapture() {
+        if (capture == null) return;
+        logicalDevice.waitIdle();
+        activity.setCapture(null);
+        capture.collectAll();
+        capture.close();
+        capture = null;
+    }
+
+    public boolean isCapturing() {
+        return capture != null;
+    }
 
-        if (swapChain.presentImage(logicalDevice.getGraphicsQueue())) window.setResized(true);
+    private void record(FrameScheduler.Frame frame) {
+        meshArena.update();
+        uploadService.update();
+        // tasks may wait for the device, they take the scene lock themselves for the short parts touching the scene
+        for (Runnable task; (task = renderTasks.poll()) != null; ) task.run();
+        ReentrantLock lock = scene.getLock();
+        lock.lock();
+        try {
+            scene.update(sceneUpdater);
+            activity.prepareFrame(models, frame);
+        } finally {
+            lock.unlock();
+        }
+        activity.recordCommandBuffer(frame);
     }
 
+    /**
+     * Destroys everything in dependency order: whatever lives in device memory before the device, the device before the surface and instance.
+     */
     public void close() {
-        instance.close();
-        logicalDevice.close();
-        swapChain.close();
-        cmdPool.close();
+        stopCapture();
+        logicalDevice.waitIdle();
+        frames.close();
+        uploadService.close();
         activity.close();
         models.forEach(Model::close);
+        meshArena.close();
         textureCache.close();
+        target.close();
+        cmdPool.close();
+        cache.close();
+        logicalDevice.close();
+        if (surface != VK_NULL_HANDLE) vkDestroySurfaceKHR(instance.getHandle(), surface, null);
+        instance.close();
     }
 
     private void resize(Window window) {
@@ -94,9 +310,8 @@ public class Renderer {
 
         logicalDevice.waitIdle();
 
-        swapChain.close();
-
         swapChain.resize(window.getWidth(), window.getHeight());
+        frames.setImageCount(swapChain.getImageViews().length);
         activity.resize(swapChain);
     }
 }
@@ -0,0 +1,230 @@
+package de.survivalworkers.core.vk.device;
+
+import de.survivalworkers.core.engine.graphics.rendering.SwapChain;
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.vulkan.KHRSurface.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Everything about a {@link PhysicalDevice} which does not change while it is used, queried once when the device is selected. A headless
+ * device has no surface, it reports no surface formats and present modes.
+ */
+public final class DeviceCapabilities {
+    /**
+     * All memory property bits of Vulkan 1.0 and the common extensions, requests for other bits fall back to a linear search.
+     */
+    private static final int MEMORY_PROPERTY_MASK = 0x1FF;
+
+    @Getter
+    private final String deviceName;
+    @Getter
+    private final int apiVersion;
+    @Getter
+    private final long minUniformBufferOffsetAlignment;
+    @Getter
+    private final long minStorageBufferOffsetAlignment;
+    @Getter
+    private final long nonCoherentAtomSize;
+    @Getter
+    private final long bufferImageGranularity;
+    @Getter
+    private final int maxMemoryAllocationCount;
+    @Getter
+    private final int maxPushConstantsSize;
+    @Getter
+    private final float maxSamplerAnisotropy;
+    @Getter
+    private final boolean samplerAnisotropy;
+    @Getter
+    private final boolean multiDrawIndirect;
+    @Getter
+    private final boolean drawIndirectFirstInstance;
+    @Getter
+    private final PhysicalDevice.QueueFamilyIndices queueFamilies;
+    /**
+     * A queue family which supports transfers but not graphics, or -1 if there is none.
+     */
+    @Getter
+    private final int transferFamily;
+    @Getter
+    private final int minImageCount;
+    @Getter
+    private final int maxImageCount;
+    private final int[] queueFlags;
+    private final int[] queueCounts;
+    private final int[] memoryTypeFlags;
+    private final int[] memoryTypeHeaps;
+    private final long[] heapSizes;
+    private final int[] heapFlags;
+    private final int[] typesWithProperties;
+    private final List<SwapChain.SurfaceFormat> surfaceFormats;
+    private final int[] presentModes;
+
+    DeviceCapabilities(VkPhysicalDevice device, long surface, PhysicalDevice.QueueFamilyIndices queueFamilies) {
+        this.queueFamilies = queueFamilies;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.malloc(stack);
+            vkGetPhysicalDeviceProperties(device, properties);
+            deviceName = properties.deviceNameString();
+            apiVersion = properties.apiVersion();
+            VkPhysicalDeviceLimits limits = properties.limits();
+            minUniformBufferOffsetAlignment = limits.minUniformBufferOffsetAlignment();
+            minStorageBufferOffsetAlignment = limits.minStorageBufferOffsetAlignment();
+            nonCoherentAtomSize = limits.nonCoherentAtomSize();
+            bufferImageGranularity = limits.bufferImageGranularity();
+            maxMemoryAllocationCount = limits.maxMemoryAllocationCount();
+            maxPushConstantsSize = limits.maxPushConstantsSize();
+            maxSamplerAnisotropy = limits.maxSamplerAnisotropy();
+
+            VkPhysicalDeviceFeatures features = VkPhysicalDeviceFeatures.malloc(stack);
+            vkGetPhysicalDeviceFeatures(device, features);
+            samplerAnisotropy = features.samplerAnisotropy();
+            multiDrawIndirect = features.multiDrawIndirect();
+            drawIndirectFirstInstance = features.drawIndirectFirstInstance();
+
+            VkPhysicalDeviceMemoryProperties memoryProperties = VkPhysicalDeviceMemoryProperties.malloc(stack);
+            vkGetPhysicalDeviceMemoryProperties(device, memoryProperties);
+            memoryTypeFlags = new int[memoryProperties.memoryTypeCount()];
+            memoryTypeHeaps = new int[memoryTypeFlags.length];
+            for (int i = 0; i < memoryTypeFlags.length; i++) {
+                memoryTypeFlags[i] = memoryProperties.memoryTypes(i).propertyFlags();
+                memoryTypeHeaps[i] = memoryProperties.memoryTypes(i).heapIndex();
+            }
+            heapSizes = new long[memoryProperties.memoryHeapCount()];
+            heapFlags = new int[heapSizes.length];
+            for (int i = 0; i < heapSizes.length; i++) {
+                heapSizes[i] = memoryProperties.memoryHeaps(i).size();
+                heapFlags[i] = memoryProperties.memoryHeaps(i).flags();
+            }
+            typesWithProperties = new int[MEMORY_PROPERTY_MASK + 1];
+            for (int required = 0; required <= MEMORY_PROPERTY_MASK; required++) {
+                for (int i = 0; i < memoryTypeFlags.length; i++) {
+                    if ((memoryTypeFlags[i] & required) == required) typesWithProperties[required] |= 1 << i;
+                }
+            }
+
+            IntBuffer ip = stack.mallocInt(1);
+            vkGetPhysicalDeviceQueueFamilyProperties(device, ip, null);
+            VkQueueFamilyProperties.Buffer families = VkQueueFamilyProperties.malloc(ip.get(0), stack);
+            vkGetPhysicalDeviceQueueFamilyProperties(device, ip, families);
+            queueFlags = new int[families.capacity()];
+            queueCounts = new int[families.capacity()];
+            int transfer = -1;
+            for (int i = 0; i < queueFlags.length; i++) {
+                queueFlags[i] = families.get(i).queueFlags();
+                queueCounts[i] = families.get(i).queueCount();
+                if (queueCounts[i] == 0 || (queueFlags[i] & VK_QUEUE_GRAPHICS_BIT) != 0) continue;
+                if ((queueFlags[i] & (VK_QUEUE_TRANSFER_BIT | VK_QUEUE_COMPUTE_BIT)) == 0) continue;
+                if (transfer < 0 || (queueFlags[i] & VK_QUEUE_COMPUTE_BIT) == 0) transfer = i;
+            }
+            transferFamily = transfer;
+
+            if (surface == VK_NULL_HANDLE) {
+                minImageCount = 0;
+                maxImageCount = 0;
+                this.surfaceFormats = List.of();
+                presentModes = new int[0];
+                return;
+            }
+
+            VkSurfaceCapabilitiesKHR surfaceCapabilities = VkSurfaceCapabilitiesKHR.malloc(stack);
+            vkGetPhysicalDeviceSurfaceCapabilitiesKHR(device, surface, surfaceCapabilities);
+            minImageCount = surfaceCapabilities.minImageCount();
+            maxImageCount = surfaceCapabilities.maxImageCount();
+
+            vkGetPhysicalDeviceSurfaceFormatsKHR(device, surface, ip, null);
+            VkSurfaceFormatKHR.Buffer formats = VkSurfaceFormatKHR.malloc(ip.get(0), stack);
+            vkGetPhysicalDeviceSurfaceFormatsKHR(device, surface, ip, formats);
+            List<SwapChain.SurfaceFormat> surfaceFormats = new ArrayList<>(formats.capacity());
+            for (VkSurfaceFormatKHR format : formats) surfaceFormats.add(new SwapChain.SurfaceFormat(format.format(), format.colorSpace()));
+            this.surfaceFormats = List.copyOf(surfaceFormats);
+
+            vkGetPhysicalDeviceSurfacePresentModesKHR(device, surface, ip, null);
+            IntBuffer modes = stack.mallocInt(ip.get(0));
+            vkGetPhysicalDeviceSurfacePresentModesKHR(device, surface, ip, modes);
+            presentModes = new int[modes.capacity()];
+            modes.get(presentModes);
+        }
+    }
+
+    /**
+     * Returns the first memory type allowed by {@code typeBits} which has all {@code required} property flags, a table lookup for the usual
+     * flags.
+     *
+     * @throws RuntimeException if there is no such memory type
+     */
+    public int memoryType(int typeBits, int required) {
+        int candidates = 0;
+        if ((required & ~MEMORY_PROPERTY_MASK) == 0) {
+            candidates = typeBits & typesWithProperties[required];
+        } else {
+            for (int i = 0; i < memoryTypeFlags.length; i++) {
+                if ((memoryTypeFlags[i] & required) == required) candidates |= typeBits & (1 << i);
+            }
+        }
+        if (candidates == 0) throw new RuntimeException("Could not get memoryType");
+        return Integer.numberOfTrailingZeros(candidates);
+    }
+
+    public int getMemoryTypeCount() {
+        return memoryTypeFlags.length;
+    }
+
+    public int getMemoryTypeFlags(int memoryType) {
+        return memoryTypeFlags[memoryType];
+    }
+
+    public int getMemoryTypeHeap(int memoryType) {
+        return memoryTypeHeaps[memoryType];
+    }
+
+    public int getHeapCount() {
+        return heapSizes.length;
+    }
+
+    public long getHeapSize(int heap) {
+        return heapSizes[heap];
+    }
+
+    public int getHeapFlags(int heap) {
+        return heapFlags[heap];
+    }
+
+    public int getQueueFamilyCount() {
+        return queueFlags.length;
+    }
+
+    public int getQueueFlags(int family) {
+        return queueFlags[family];
+    }
+
+    public int getQueueCount(int family) {
+        return queueCounts[family];
+    }
+
+    public List<SwapChain.SurfaceFormat> getSurfaceFormats() {
+        return surfaceFormats;
+    }
+
+    public boolean supportsPresentMode(int presentMode) {
+        for (int mode : presentModes) {
+            if (mode == presentMode) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rounds {@code size} up to a multiple of {@link #getMinUniformBufferOffsetAlignment()}, for dynamic uniform buffer offsets.
+     */
+    public long alignUniform(long size) {
+        long alignment = Math.max(1, minUniformBufferOffsetAlignment);
+        return (size + alignment - 1) / alignment * alignment;
+    }
+}
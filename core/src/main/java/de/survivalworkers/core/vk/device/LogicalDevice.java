@@ -1,5 +1,7 @@
 package de.survivalworkers.core.vk.device;
 
+import de.survivalworkers.core.engine.graphics.rendering.MemoryAllocator;
+import de.survivalworkers.core.engine.graphics.rendering.VulkanMemoryBackend;
 import de.survivalworkers.core.vk.util.VkUtil;
 import lombok.Getter;
 import org.lwjgl.PointerBuffer;
@@ -7,6 +9,7 @@ import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import static org.lwjgl.system.MemoryUtil.NULL;
 import static org.lwjgl.vulkan.VK10.*;
@@ -20,13 +23,32 @@ public class LogicalDevice {
     private final VkQueue graphicsQueue;
     @Getter
     private final VkQueue presentQueue;
+    @Getter
+    private final boolean multiDrawIndirect;
+    @Getter
+    private final boolean drawIndirectFirstInstance;
+    @Getter
+    private final MemoryAllocator memoryAllocator;
+    /**
+     * The queue of the dedicated transfer family, or the graphics queue if the device has none.
+     */
+    @Getter
+    private final VkQueue transferQueue;
+    @Getter
+    private final int transferFamily;
 
     public LogicalDevice(PhysicalDevice physicalDevice) {
         this.physicalDevice = physicalDevice;
         try(MemoryStack stack = MemoryStack.stackPush()) {
-            PhysicalDevice.QueueFamilyIndices queueFamilyIndices = physicalDevice.queryQueueFamilies(stack);
+            DeviceCapabilities capabilities = physicalDevice.getCapabilities();
+            PhysicalDevice.QueueFamilyIndices queueFamilyIndices = capabilities.getQueueFamilies();
 
             int[] uniqueQueueFamilies = queueFamilyIndices.getUniqueIndices();
+            transferFamily = capabilities.getTransferFamily() >= 0 ? capabilities.getTransferFamily() : queueFamilyIndices.getGraphicsFamily();
+            if (Arrays.stream(uniqueQueueFamilies).noneMatch(i -> i == transferFamily)) {
+                uniqueQueueFamilies = Arrays.copyOf(uniqueQueueFamilies, uniqueQueueFamilies.length + 1);
+                uniqueQueueFamilies[uniqueQueueFamilies.length - 1] = transferFamily;
+            }
             VkDeviceQueueCreateInfo.Buffer queueCreateInfos = VkDeviceQueueCreateInfo.malloc(uniqueQueueFamilies.length);
 
             FloatBuffer pQueuePriorities = stack.floats(1.0f);
@@ -39,8 +61,13 @@ public class LogicalDevice {
                         .pQueuePriorities(pQueuePriorities);
             }
 
+            multiDrawIndirect = capabilities.isMultiDrawIndirect();
+            drawIndirectFirstInstance = capabilities.isDrawIndirectFirstInstance();
+
             VkPhysicalDeviceFeatures deviceFeatures = VkPhysicalDeviceFeatures.calloc(stack)
-                    .samplerAnisotropy(true);
+                    .samplerAnisotropy(true)
+                    .multiDrawIndirect(multiDrawIndirect)
+                    .drawIndirectFirstInstance(drawIndirectFirstInstance);
 
             String[] extensions = physicalDevice.getRequiredExtensions();
 
@@ -70,7 +97,14 @@ public class LogicalDevice {
             graphicsQueue = new VkQueue(pQueue.get(0), handle);
             vkGetDeviceQueue(handle, queueFamilyIndices.getPresentFamily(), 0, pQueue);
             presentQueue = new VkQueue(pQueue.get(0), handle);
+            if (transferFamily == queueFamilyIndices.getGraphicsFamily()) {
+                transferQueue = graphicsQueue;
+            } else {
+                vkGetDeviceQueue(handle, transferFamily, 0, pQueue);
+                transferQueue = new VkQueue(pQueue.get(0), handle);
+            }
         }
+        memoryAllocator = new MemoryAllocator(new VulkanMemoryBackend(this));
     }
 
     public void waitIdle() {
@@ -78,6 +112,7 @@ public class LogicalDevice {
     }
 
     public void close() {
+        memoryAllocator.close();
         vkDestroyDevice(handle,null);
     }
 }
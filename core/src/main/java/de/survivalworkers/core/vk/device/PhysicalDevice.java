@@ -26,7 +26,12 @@ public class PhysicalDevice {
     private final long surface;
     @Getter
     private final String[] requiredExtensions;
+    @Getter
+    private final DeviceCapabilities capabilities;
 
+    /**
+     * @param surface the surface to present to, or {@code VK_NULL_HANDLE} for a headless device which only renders offscreen
+     */
     public PhysicalDevice(Instance instance, long surface, String... requiredExtensions) {
         this.surface = surface;
         this.requiredExtensions = requiredExtensions;
@@ -49,7 +54,8 @@ public class PhysicalDevice {
                 throw new RuntimeException("Failed to find a suitable GPU");
             }
 
-            log.atTrace().addArgument(this::getDeviceName).log("Physical device: {}");
+            capabilities = new DeviceCapabilities(handle, surface, queryQueueFamilies(handle, stack));
+            log.trace("Physical device: {}", capabilities.getDeviceName());
         }
     }
 
@@ -57,10 +63,6 @@ public class PhysicalDevice {
         this(instance, surface, VK_KHR_SWAPCHAIN_EXTENSION_NAME);
     }
 
-    public QueueFamilyIndices queryQueueFamilies(MemoryStack stack) {
-        return queryQueueFamilies(handle, stack);
-    }
-
     public SwapChainSupportDetails querySwapChainSupport(MemoryStack stack) {
         return querySwapChainSupport(handle, stack);
     }
@@ -77,8 +79,8 @@ public class PhysicalDevice {
 
     private boolean isDeviceSuitable(VkPhysicalDevice device, String[] extensions) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            return queryQueueFamilies(device, stack).isComplete() && hasDeviceExtensionSupport(device, extensions) && querySwapChainSupport(device, stack).check() &&
-                    hasSamplerAnisotropy(device);
+            return queryQueueFamilies(device, stack).isComplete() && hasDeviceExtensionSupport(device, extensions) &&
+                    (surface == VK_NULL_HANDLE || querySwapChainSupport(device, stack).check()) && hasSamplerAnisotropy(device);
         }
     }
 
@@ -96,9 +98,13 @@ public class PhysicalDevice {
             if (queueFamily.queueCount() > 0 && (queueFamily.queueFlags() & VK_QUEUE_GRAPHICS_BIT) != 0) {
                 indices.graphicsFamily = i;
             }
-            VkUtil.check(vkGetPhysicalDeviceSurfaceSupportKHR(device, i, surface, pPropertyCount), "Failed to check device surface support");
-            if (queueFamily.queueCount() > 0 && pPropertyCount.get(0) != 0) {
-                indices.presentFamily = i;
+            if (surface == VK_NULL_HANDLE) {
+                indices.presentFamily = indices.graphicsFamily;
+            } else {
+                VkUtil.check(vkGetPhysicalDeviceSurfaceSupportKHR(device, i, surface, pPropertyCount), "Failed to check device surface support");
+                if (queueFamily.queueCount() > 0 && pPropertyCount.get(0) != 0) {
+                    indices.presentFamily = i;
+                }
             }
             if (indices.isComplete()) {
                 break;
@@ -158,14 +164,6 @@ public class PhysicalDevice {
         }
     }
 
-    private String getDeviceName() {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.malloc(stack);
-            vkGetPhysicalDeviceProperties(handle, properties);
-            return properties.deviceNameString();
-        }
-    }
-
     public static class SwapChainSupportDetails {
         @Getter
         private VkSurfaceCapabilitiesKHR capabilities;
@@ -0,0 +1,25 @@
+#version 450
+#pragma shader_stage(vertex)
+
+// Same as the per entity vertex shader, but the model matrix comes from the instance binding instead of a push constant.
+// The layout has to match VertexBufferStruct(true): binding 0 holds the vertices, binding 1 one mat4 per instance.
+
+layout(location = 0) in vec3 entityPos;
+layout(location = 1) in vec2 entityTextCoords;
+// a mat4 attribute takes the four locations 2 to 5, one column each
+layout(location = 2) in mat4 instanceModelMatrix;
+
+layout(location = 0) out vec2 textCoords;
+
+layout(set = 0, binding = 0) uniform ProjUniform {
+    mat4 projectionMatrix;
+} projUniform;
+
+layout(set = 1, binding = 0) uniform ViewUniform {
+    mat4 viewMatrix;
+} viewUniform;
+
+void main() {
+    textCoords = entityTextCoords;
+    gl_Position = projUniform.projectionMatrix * viewUniform.viewMatrix * instanceModelMatrix * vec4(entityPos, 1);
+}
@@ -0,0 +1,61 @@
+package de.survivalworkers.core.engine.graphics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RenderQueueTest {
+    @Test
+    public void sortsUnsignedAndKeepsValues() {
+        RenderQueue queue = new RenderQueue(4);
+        Random random = new Random(42);
+        long[] expected = new long[1000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = random.nextLong();
+            queue.add(expected[i], i);
+        }
+        long[] unsorted = expected.clone();
+        Arrays.sort(expected);
+        queue.sort();
+
+        long[] positive = Arrays.stream(expected).filter(k -> k >= 0).toArray();
+        long[] negative = Arrays.stream(expected).filter(k -> k < 0).toArray();
+        for (int i = 0; i < queue.size(); i++) {
+            long expectedKey = i < positive.length ? positive[i] : negative[i - positive.length];
+            assertEquals(expectedKey, queue.key(i));
+            assertEquals(queue.key(i), unsorted[queue.value(i)]);
+        }
+    }
+
+    @Test
+    public void opaqueBeforeTransparentAndDepthOrder() {
+        long state = RenderQueue.state(0, 1, 2);
+        RenderQueue queue = new RenderQueue(8);
+        queue.add(RenderQueue.transparentKey(state, 1), 0);
+        queue.add(RenderQueue.transparentKey(state, 50), 1);
+        queue.add(RenderQueue.opaqueKey(state, 50), 2);
+        queue.add(RenderQueue.opaqueKey(state, 1), 3);
+        queue.sort();
+
+        assertEquals(3, queue.value(0));
+        assertEquals(2, queue.value(1));
+        assertEquals(1, queue.value(2));
+        assertEquals(0, queue.value(3));
+    }
+
+    @Test
+    public void opaqueGroupedByState() {
+        RenderQueue queue = new RenderQueue(8);
+        queue.add(RenderQueue.opaqueKey(RenderQueue.state(0, 2, 0), 1), 0);
+        queue.add(RenderQueue.opaqueKey(RenderQueue.state(0, 1, 0), 100), 1);
+        queue.add(RenderQueue.opaqueKey(RenderQueue.state(0, 2, 0), 0.5f), 2);
+        queue.sort();
+
+        assertEquals(1, queue.value(0));
+        assertEquals(2, queue.value(1));
+        assertEquals(0, queue.value(2));
+    }
+}
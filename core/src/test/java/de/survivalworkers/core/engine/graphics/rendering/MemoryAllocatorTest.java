@@ -0,0 +1,134 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MemoryAllocatorTest {
+    private static final long BLOCK = 1 << 16;
+
+    @Test
+    public void subAllocatesAlignedRangesFromOneBlock() {
+        FakeBackend backend = new FakeBackend();
+        MemoryAllocator allocator = new MemoryAllocator(backend, BLOCK);
+        List<MemoryAllocator.Allocation> allocations = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            MemoryAllocator.Allocation allocation = allocator.allocate(0, 100 + i * 13, 1024, true);
+            assertEquals(0, allocation.getOffset() % 1024);
+            allocations.add(allocation);
+        }
+        assertEquals(1, backend.allocated.size());
+        for (int i = 0; i < allocations.size(); i++) {
+            for (int j = i + 1; j < allocations.size(); j++) {
+                MemoryAllocator.Allocation a = allocations.get(i), b = allocations.get(j);
+                assertTrue(a.getOffset() + a.getSize() <= b.getOffset() || b.getOffset() + b.getSize() <= a.getOffset());
+            }
+        }
+        assertEquals(32, allocator.getStats().get(0).allocations());
+    }
+
+    @Test
+    public void freeingMergesBuddies() {
+        FakeBackend backend = new FakeBackend();
+        MemoryAllocator allocator = new MemoryAllocator(backend, BLOCK);
+        Random random = new Random(7);
+        List<MemoryAllocator.Allocation> allocations = new ArrayList<>();
+        for (int i = 0; i < 200; i++) allocations.add(allocator.allocate(0, 1 + random.nextInt(4000), 256, true));
+        assertTrue(allocator.getStats().get(0).blocks() > 1);
+        for (int i = allocations.size() - 1; i >= 0; i -= 2) allocations.remove(i).free();
+        assertTrue(allocator.getStats().get(0).fragmentation() > 0);
+        allocations.forEach(MemoryAllocator.Allocation::free);
+
+        MemoryAllocator.HeapStats stats = allocator.getStats().get(0);
+        assertEquals(0, stats.allocations());
+        assertEquals(0, stats.usedBytes());
+        assertEquals(1, stats.blocks());
+        assertEquals(0, stats.fragmentation(), 0);
+        assertEquals(BLOCK, allocator.allocate(0, BLOCK, 1, true).getSize());
+        assertEquals(1, backend.allocated.size());
+    }
+
+    @Test
+    public void largeRequestsGetDedicatedMemory() {
+        FakeBackend backend = new FakeBackend();
+        MemoryAllocator allocator = new MemoryAllocator(backend, BLOCK);
+        MemoryAllocator.Allocation allocation = allocator.allocate(0, BLOCK * 3, 256, true);
+        assertTrue(allocation.isDedicated());
+        assertEquals(BLOCK * 3, (long) backend.allocated.get(allocation.getMemory()));
+        allocation.free();
+        assertTrue(backend.allocated.isEmpty());
+    }
+
+    @Test
+    public void separatesHeapsAndResourceKinds() {
+        FakeBackend backend = new FakeBackend();
+        MemoryAllocator allocator = new MemoryAllocator(backend, BLOCK);
+        MemoryAllocator.Allocation buffer = allocator.allocate(0, 512, 256, true);
+        MemoryAllocator.Allocation image = allocator.allocate(0, 512, 256, false);
+        MemoryAllocator.Allocation host = allocator.allocate(1, 512, 256, true);
+        assertNotEquals(buffer.getMemory(), image.getMemory());
+
+        List<MemoryAllocator.HeapStats> stats = allocator.getStats();
+        assertEquals(2, stats.size());
+        assertEquals(2, stats.get(0).blocks());
+        assertEquals(1024, stats.get(0).usedBytes());
+        assertEquals(1, stats.get(1).allocations());
+        assertEquals(BLOCK, stats.get(1).reservedBytes());
+
+        long address = host.map();
+        assertEquals(backend.mapped.get(host.getMemory()) + host.getOffset(), address);
+        assertEquals(address, host.map());
+        allocator.close();
+        assertTrue(backend.allocated.isEmpty());
+        assertTrue(backend.mapped.isEmpty());
+        buffer.free();
+    }
+
+    /**
+     * Memory types 0 and 1 live in heap 0 and 1.
+     */
+    private static class FakeBackend implements MemoryBackend {
+        final Map<Long, Long> allocated = new HashMap<>();
+        final Map<Long, Long> mapped = new HashMap<>();
+        long next = 1;
+
+        @Override
+        public long allocate(int memoryType, long size) {
+            allocated.put(next, size);
+            return next++;
+        }
+
+        @Override
+        public void free(long memory) {
+            assertNotNull(allocated.remove(memory));
+        }
+
+        @Override
+        public long map(long memory, long size) {
+            assertFalse(mapped.containsKey(memory));
+            mapped.put(memory, memory << 32);
+            return memory << 32;
+        }
+
+        @Override
+        public void unmap(long memory) {
+            assertNotNull(mapped.remove(memory));
+        }
+
+        @Override
+        public int heapIndex(int memoryType) {
+            return memoryType;
+        }
+
+        @Override
+        public int heapCount() {
+            return 2;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package de.survivalworkers.core.engine.graphics.rendering;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RingAllocatorTest {
+    private static final long CAPACITY = 1024;
+
+    @Test
+    public void alignsAllocations() {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+        assertEquals(0, ring.allocate(100, 64));
+        assertEquals(128, ring.allocate(10, 64));
+        assertEquals(138, ring.allocate(5, 1));
+        assertEquals(144, ring.allocate(16, 16));
+        assertEquals(160, ring.getUsed());
+    }
+
+    @Test
+    public void wrapsAroundInsteadOfSplitting() {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+        long first = ring.allocate(600, 1);
+        ring.commit(first);
+        ring.release(ring.mark());
+        assertEquals(0, ring.getUsed());
+
+        long second = ring.allocate(600, 1);
+        assertEquals(CAPACITY, second);
+        assertEquals(0, ring.offset(second));
+        // the 424 bytes skipped at the end count as used until the allocation is released
+        assertEquals(CAPACITY, ring.getUsed());
+    }
+
+    @Test
+    public void refusesUntilSpaceIsReleased() {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+        assertEquals(-1, ring.allocate(CAPACITY + 1, 1));
+        long first = ring.allocate(600, 1);
+        assertEquals(-1, ring.allocate(600, 1));
+
+        ring.commit(first);
+        long mark = ring.mark();
+        assertEquals(-1, ring.allocate(600, 1));
+        ring.release(mark);
+        assertEquals(CAPACITY, ring.allocate(600, 1));
+    }
+
+    @Test
+    public void markStopsAtOldestPendingAllocation() {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+        long a = ring.allocate(100, 1);
+        long b = ring.allocate(100, 1);
+        assertEquals(0, ring.mark());
+        ring.commit(b);
+        assertEquals(a, ring.mark());
+        ring.commit(a);
+        assertEquals(200, ring.mark());
+
+        ring.release(100);
+        assertEquals(100, ring.getUsed());
+        // an older mark never moves the tail back
+        ring.release(50);
+        assertEquals(100, ring.getUsed());
+    }
+
+    @Test
+    public void discardedAllocationsDoNotHoldBackTheMark() {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+        long lost = ring.allocate(100, 1);
+        long copied = ring.allocate(100, 1);
+        ring.commit(copied);
+        assertEquals(lost, ring.mark());
+
+        ring.discard(lost);
+        assertEquals(200, ring.mark());
+        ring.release(ring.mark());
+        assertEquals(0, ring.getUsed());
+    }
+
+    @Test
+    public void liveAllocationsNeverOverlap() {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+        Random random = new Random(3);
+        Deque<Long> batches = new ArrayDeque<>();
+        List<long[]> live = new ArrayList<>();
+        for (int frame = 0; frame < 2000; frame++) {
+            int count = 1 + random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                long size = 1 + random.nextInt(200);
+                long alignment = 1L << random.nextInt(5);
+                long position = ring.allocate(size, alignment);
+                if (position < 0) continue;
+                assertEquals(0, ring.offset(position) % alignment);
+                assertTrue(ring.offset(position) + size <= CAPACITY);
+                // positions only grow, so live allocations within one capacity never share a byte of the ring
+                for (long[] other : live) {
+                    assertTrue(position >= other[0] + other[1]);
+                    assertTrue(position + size - other[0] <= CAPACITY);
+                }
+                live.add(new long[]{position, size});
+                ring.commit(position);
+            }
+            batches.add(ring.mark());
+            // batches finish two frames later, like frames in flight
+            if (batches.size() > 2) {
+                long mark = batches.poll();
+                ring.release(mark);
+                live.removeIf(a -> a[0] + a[1] <= mark);
+            }
+            assertTrue(ring.getUsed() <= CAPACITY);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EntityTest {
+    @Test
+    public void detachedEntitiesHaveNoStore() {
+        Entity entity = new Entity("tree", "tree", new Vector3f(1, 2, 3));
+        entity.setScale(2);
+        assertNull(entity.store);
+        assertEquals(2, entity.getY(), 0);
+        Matrix4f matrix = entity.getModelMatrix(new Matrix4f());
+        assertEquals(1, matrix.m30(), 0);
+        assertEquals(2, matrix.m00(), 0);
+    }
+
+    @Test
+    public void transformSurvivesMovingInAndOut() {
+        TransformStore store = new TransformStore(4);
+        Entity entity = new Entity("tree", "tree", new Vector3f(1, 2, 3));
+        entity.setScale(2);
+        entity.moveTo(store);
+        assertSame(store, entity.store);
+        assertEquals(1, entity.getModelMatrix(new Matrix4f()).m30(), 0);
+
+        entity.setPosition(4, 5, 6);
+        int slot = entity.slot;
+        entity.detach();
+        assertNull(entity.store);
+        assertEquals(4, entity.getX(), 0);
+        assertEquals(2, entity.getScale(), 0);
+        // the slot is free again
+        assertEquals(slot, store.allocate(new Entity("rock", "rock", new Vector3f())));
+
+        entity.moveTo(store);
+        assertEquals(6, entity.getZ(), 0);
+        assertEquals(4, entity.getModelMatrix(new Matrix4f()).m30(), 0);
+    }
+}
@@ -0,0 +1,72 @@
+package de.survivalworkers.core.engine.graphics.scene;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.*;
+
+public class TransformSnapshotTest {
+    @Test
+    public void keepsChangesOfStatesTheRendererSkipped() {
+        TransformStore store = new TransformStore(4);
+        store.setInterpolated(true);
+        Entity first = new Entity("first", "model", new Vector3f());
+        Entity second = new Entity("second", "model", new Vector3f());
+        first.moveTo(store);
+        second.moveTo(store);
+        TransformSnapshot snapshot = new TransformSnapshot(1000);
+
+        // two ticks without changes, so neither state the renderer holds marks a slot
+        snapshot.publish(store, 1, 1000);
+        assertTrue(snapshot.acquire());
+        snapshot.publish(store, 2, 2000);
+        assertTrue(snapshot.acquire());
+
+        // the renderer misses tick 3, only tick 4 is taken
+        first.setPosition(1, 0, 0);
+        snapshot.publish(store, 3, 3000);
+        second.setPosition(2, 0, 0);
+        snapshot.publish(store, 4, 4000);
+        assertTrue(snapshot.acquire());
+        assertFalse(snapshot.acquire());
+
+        BitSet interpolated = new BitSet();
+        snapshot.interpolate(store, 1, interpolated::set);
+        assertTrue(interpolated.get(first.slot));
+        assertTrue(interpolated.get(second.slot));
+        assertEquals(1, first.getModelMatrix(new Matrix4f()).m30(), 0);
+        assertEquals(2, second.getModelMatrix(new Matrix4f()).m30(), 0);
+    }
+
+    @Test
+    public void takenStatesOnlyCarryTheirOwnChanges() {
+        TransformStore store = new TransformStore(4);
+        store.setInterpolated(true);
+        Entity first = new Entity("first", "model", new Vector3f());
+        Entity second = new Entity("second", "model", new Vector3f());
+        first.moveTo(store);
+        second.moveTo(store);
+        TransformSnapshot snapshot = new TransformSnapshot(1000);
+        snapshot.publish(store, 1, 1000);
+        assertTrue(snapshot.acquire());
+        snapshot.publish(store, 2, 2000);
+        assertTrue(snapshot.acquire());
+
+        first.setPosition(1, 0, 0);
+        snapshot.publish(store, 3, 3000);
+        assertTrue(snapshot.acquire());
+        snapshot.publish(store, 4, 4000);
+        assertTrue(snapshot.acquire());
+        second.setPosition(2, 0, 0);
+        snapshot.publish(store, 5, 5000);
+        assertTrue(snapshot.acquire());
+
+        BitSet interpolated = new BitSet();
+        snapshot.interpolate(store, 1, interpolated::set);
+        assertFalse(interpolated.get(first.slot));
+        assertTrue(interpolated.get(second.slot));
+    }
+}
@@ -0,0 +1,100 @@
+package de.survivalworkers.core.engine.graphics.vertex;
+
+import org.joml.Vector4f;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BakedModelTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripKeepsMeshesAndMaterials() throws Exception {
+        ModelData.MeshData quad = new ModelData.MeshData(new float[]{0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 1, 0}, new float[]{0, 0, 1, 0, 1, 1, 0, 1},
+                new int[]{0, 1, 2, 2, 3, 0}, 0);
+        ModelData.MeshData noTexCoords = new ModelData.MeshData(new float[]{0, 0, 5, 1, 0, 5, 1, 1, 5}, new float[0], new int[]{0, 1, 2}, 1);
+        ModelData model = new ModelData("quad", List.of(quad, noTexCoords), List.of(new ModelData.Material("tex/grass.png", new Vector4f(0, 0, 0, 0)),
+                new ModelData.Material()));
+        byte[] hash = new byte[BakedModel.HASH_SIZE];
+        hash[3] = 7;
+        Path file = folder.getRoot().toPath().resolve("quad" + BakedModel.EXTENSION);
+        BakedModel.write(model, hash, file);
+
+        ModelData read = BakedModel.read("quad", file, hash);
+        assertNotNull(read);
+        assertEquals(model.getBounds(), read.getBounds());
+        assertEquals(model.getMaterials(), read.getMaterials());
+        assertEquals(2, read.getMeshData().size());
+        for (int i = 0; i < 2; i++) {
+            ModelData.MeshData expected = model.getMeshData().get(i);
+            ModelData.MeshData actual = read.getMeshData().get(i);
+            assertNull(actual.pos());
+            assertEquals(expected.materialI(), actual.materialI());
+            assertEquals(expected.vertexCount(), actual.vertexCount());
+            assertEquals(expected.indexCount(), actual.indexCount());
+            assertArrayEquals(vertices(expected), vertices(actual));
+        }
+        assertEquals(0, ByteBuffer.wrap(vertices(read.getMeshData().get(1))).order(ByteOrder.LITTLE_ENDIAN).getFloat(VertexBufferStruct.TEX_OFFSET), 0);
+    }
+
+    @Test
+    public void staleFilesAreRejected() {
+        ModelData model = new ModelData("tri", List.of(new ModelData.MeshData(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0}, new float[6], new int[]{0, 1, 2}, 0)),
+                List.of());
+        byte[] hash = new byte[BakedModel.HASH_SIZE];
+        Path file = folder.getRoot().toPath().resolve("tri" + BakedModel.EXTENSION);
+        BakedModel.write(model, hash, file);
+
+        byte[] other = hash.clone();
+        other[0] = 1;
+        assertNull(BakedModel.read("tri", file, other));
+        assertNotNull(BakedModel.read("tri", file, null));
+        assertNull(BakedModel.read("tri", folder.getRoot().toPath().resolve("missing" + BakedModel.EXTENSION), hash));
+    }
+
+    @Test
+    public void truncatedFilesAreRejected() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("short" + BakedModel.EXTENSION);
+        Files.write(file, new byte[10]);
+        assertNull(BakedModel.read("short", file, null));
+    }
+
+    @Test
+    public void materialLibrariesArePartOfTheSourceHash() throws Exception {
+        Path dir = folder.newFolder("tree").toPath();
+        Path obj = dir.resolve("model.obj");
+        Files.writeString(obj, "mtllib model.mtl\nv 0 0 0\nv 1 0 0\nv 0 1 0\nusemtl bark\nf 1 2 3\n");
+        Path mtl = dir.resolve("model.mtl");
+        Files.writeString(mtl, "newmtl bark\nKd 0.5 0.3 0.1\n");
+        assertEquals(List.of(mtl.toAbsolutePath()), ModelLoader.materialLibraries(obj));
+
+        byte[] before = ModelLoader.sourceHash(obj.toString(), dir.toString(), 0);
+        Files.writeString(mtl, "newmtl bark\nKd 0.6 0.3 0.1\n");
+        assertFalse(Arrays.equals(before, ModelLoader.sourceHash(obj.toString(), dir.toString(), 0)));
+    }
+
+    @Test
+    public void bakeNamesDependOnFullPathAndTextures() {
+        String tree = ModelLoader.bakeName("tree/model.obj", "textures");
+        assertTrue(tree.startsWith("model.obj-") && tree.endsWith(BakedModel.EXTENSION));
+        assertNotEquals(tree, ModelLoader.bakeName("rock/model.obj", "textures"));
+        assertNotEquals(tree, ModelLoader.bakeName("tree/model.obj", "winter"));
+        assertEquals(tree, ModelLoader.bakeName("tree/../tree/model.obj", "textures"));
+    }
+
+    private static byte[] vertices(ModelData.MeshData mesh) {
+        ByteBuffer buffer = ByteBuffer.allocate(mesh.vertexCount() * VertexBufferStruct.VERTEX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mesh.writeVertices(buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
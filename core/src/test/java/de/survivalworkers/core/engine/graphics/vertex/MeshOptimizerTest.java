@@ -0,0 +1,102 @@
+package de.survivalworkers.core.engine.graphics.vertex;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MeshOptimizerTest {
+    private static final int SIZE = 32;
+
+    @Test
+    public void optimizeLowersAcmrOfShuffledGrid() {
+        ModelData.MeshData grid = grid();
+        double before = MeshOptimizer.acmr(grid.indices(), grid.vertexCount(), MeshOptimizer.DEFAULT_CACHE_SIZE);
+        ModelData.MeshData optimized = MeshOptimizer.optimize(grid, false);
+        double after = MeshOptimizer.acmr(optimized.indices(), optimized.vertexCount(), MeshOptimizer.DEFAULT_CACHE_SIZE);
+        assertTrue("ACMR " + before + " -> " + after, after < before * 0.5);
+        assertTrue(after < 1);
+    }
+
+    @Test
+    public void optimizeKeepsTriangles() {
+        ModelData.MeshData grid = grid();
+        for (boolean overdraw : new boolean[]{false, true}) {
+            ModelData.MeshData optimized = MeshOptimizer.optimize(grid, overdraw);
+            assertEquals(grid.indexCount(), optimized.indexCount());
+            assertEquals(grid.vertexCount(), optimized.vertexCount());
+            assertEquals(triangles(grid), triangles(optimized));
+        }
+    }
+
+    @Test
+    public void vertexFetchFollowsFirstUseAndDropsUnused() {
+        ModelData.MeshData mesh = new ModelData.MeshData(new float[]{0, 0, 0, 1, 0, 0, 9, 9, 9, 0, 1, 0}, new float[]{0, 0, 1, 0, 9, 9, 0, 1},
+                new int[]{3, 1, 0}, 2);
+        ModelData.MeshData fetched = MeshOptimizer.optimizeVertexFetch(mesh);
+        assertArrayEquals(new int[]{0, 1, 2}, fetched.indices());
+        assertArrayEquals(new float[]{0, 1, 0, 1, 0, 0, 0, 0, 0}, fetched.pos(), 0);
+        assertArrayEquals(new float[]{0, 1, 1, 0, 0, 0}, fetched.texCords(), 0);
+        assertEquals(2, fetched.materialI());
+    }
+
+    @Test
+    public void acmrOfSeparateTrianglesIsThree() {
+        assertEquals(3, MeshOptimizer.acmr(new int[]{0, 1, 2, 3, 4, 5}, 6, MeshOptimizer.DEFAULT_CACHE_SIZE), 0);
+    }
+
+    /**
+     * A flat grid of {@link #SIZE}² quads with its triangles in random order.
+     */
+    private static ModelData.MeshData grid() {
+        int side = SIZE + 1;
+        float[] pos = new float[side * side * 3];
+        float[] texCords = new float[side * side * 2];
+        for (int z = 0; z < side; z++) {
+            for (int x = 0; x < side; x++) {
+                int v = z * side + x;
+                pos[v * 3] = x;
+                pos[v * 3 + 2] = z;
+                texCords[v * 2] = (float) x / SIZE;
+                texCords[v * 2 + 1] = (float) z / SIZE;
+            }
+        }
+        List<int[]> triangles = new ArrayList<>();
+        for (int z = 0; z < SIZE; z++) {
+            for (int x = 0; x < SIZE; x++) {
+                int i = z * side + x;
+                triangles.add(new int[]{i, i + side, i + side + 1});
+                triangles.add(new int[]{i + side + 1, i + 1, i});
+            }
+        }
+        Collections.shuffle(triangles, new Random(42));
+        int[] indices = new int[triangles.size() * 3];
+        for (int t = 0; t < triangles.size(); t++) System.arraycopy(triangles.get(t), 0, indices, t * 3, 3);
+        return new ModelData.MeshData(pos, texCords, indices, 0);
+    }
+
+    /**
+     * The triangles by the positions of their vertices, each rotated to start at its smallest vertex so the winding is kept.
+     */
+    private static List<String> triangles(ModelData.MeshData mesh) {
+        List<String> triangles = new ArrayList<>();
+        int[] indices = mesh.indices();
+        float[] pos = mesh.pos();
+        for (int t = 0; t < indices.length; t += 3) {
+            String[] corners = new String[3];
+            for (int c = 0; c < 3; c++) {
+                int v = indices[t + c] * 3;
+                corners[c] = pos[v] + "/" + pos[v + 1] + "/" + pos[v + 2];
+            }
+            int first = 0;
+            for (int c = 1; c < 3; c++) if (corners[c].compareTo(corners[first]) < 0) first = c;
+            triangles.add(corners[first] + " " + corners[(first + 1) % 3] + " " + corners[(first + 2) % 3]);
+        }
+        Collections.sort(triangles);
+        return triangles;
+    }
+}